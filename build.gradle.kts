@@ -18,6 +18,7 @@ dependencies {
     implementation("org.apache.lucene:lucene-core:9.7.0")
     implementation("org.apache.lucene:lucene-analysis-common:9.7.0")
     implementation("org.apache.lucene:lucene-queryparser:9.7.0")
+    implementation("org.apache.lucene:lucene-facet:9.7.0")
     implementation("org.apache.commons:commons-csv:1.10.0")
     implementation("net.loomchild:segment:2.0.1")
     // JAX-B dependencies for JDK 9+
@@ -32,6 +33,38 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// Benchmarks of the corpus and index hot paths, in src/jmh/java, run with: gradle jmh
+// Extra JMH options can be passed with -PjmhArgs="...", e.g. -PjmhArgs="-f 1 -wi 1 -i 2 Cleaner".
+// Compare the results in build/jmh/results.json with the baseline in src/jmh/baseline.json, which
+// was recorded by a plain "gradle jmh" with the iterations declared on the benchmarks; runs with
+// fewer iterations through -PjmhArgs are only rough checks against it.
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations[jmh.implementationConfigurationName].extendsFrom(configurations.implementation.get())
+configurations[jmh.runtimeOnlyConfigurationName].extendsFrom(configurations.runtimeOnly.get())
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks with allocation profiling."
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = layout.buildDirectory.file("jmh/results.json")
+    outputs.upToDateWhen { false }
+    doFirst {
+        results.get().asFile.parentFile.mkdirs()
+    }
+    args = listOf("-prof", "gc", "-rf", "json", "-rff", results.get().asFile.path) +
+        (project.findProperty("jmhArgs") as String? ?: "").split(" ").filter { it.isNotBlank() }
+}
+
 application {
     // Define the main class for the application.
     mainClass.set("pl.marcinmilkowski.JSONSearcher")
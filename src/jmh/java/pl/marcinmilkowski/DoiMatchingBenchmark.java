@@ -0,0 +1,86 @@
+package pl.marcinmilkowski;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** DOIs matched per second by {@link DoiMatcher}, as in {@link JSONSearcher}, half of them in the index. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DoiMatchingBenchmark {
+
+  private static final int INDEXED = 100_000;
+  private static final int QUERIES = 20_000;
+
+  /** Discards the output, so that only the matching is measured. */
+  private static final Appendable DISCARD = new Appendable() {
+    @Override
+    public Appendable append(CharSequence csq) {
+      return this;
+    }
+
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) {
+      return this;
+    }
+
+    @Override
+    public Appendable append(char c) {
+      return this;
+    }
+  };
+
+  private Directory dir;
+  private DirectoryReader reader;
+  private String[] dois;
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = new ByteBuffersDirectory();
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+      for (int i = 0; i < INDEXED; i++) {
+        Document doc = new Document();
+        doc.add(new StringField(DoiMatcher.DOI_KEY_FIELD, DoiMatcher.normalize(Fixtures.doi(i * 2)), Field.Store.NO));
+        writer.addDocument(doc);
+      }
+    }
+    reader = DirectoryReader.open(dir);
+    Random random = new Random(42);
+    dois = new String[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      dois[i] = "https://doi.org/" + Fixtures.doi(random.nextInt(INDEXED * 2));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    reader.close();
+    dir.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public int matchDois() throws IOException {
+    DoiMatcher matcher = new DoiMatcher(reader, DoiMatcher.DOI_KEY_FIELD, 4096, DISCARD, DISCARD);
+    for (String doi : dois) {
+      matcher.add(doi);
+    }
+    matcher.flush();
+    return matcher.getMatched();
+  }
+}
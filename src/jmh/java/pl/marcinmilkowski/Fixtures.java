@@ -0,0 +1,133 @@
+package pl.marcinmilkowski;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Synthetic eLife-style fixtures for the benchmarks: JATS article XML with sections, inline
+ * markup, comments, CDATA and entities, and the JSON metadata next to it. The same index and
+ * size always give the same fixture.
+ */
+final class Fixtures {
+
+  /** The approximate sizes of the XML fixtures. */
+  enum Size {
+    SMALL(4 << 10),
+    MEDIUM(64 << 10),
+    LARGE(1 << 20);
+
+    final int chars;
+
+    Size(int chars) {
+      this.chars = chars;
+    }
+  }
+
+  private static final String[] WORDS = {
+      "the", "cells", "neurons", "model", "we", "found", "that", "understanding", "of", "protein",
+      "activity", "in", "response", "to", "signal", "cortex", "memory", "data", "results", "suggest",
+      "mechanism", "binding", "expression", "mice", "levels", "analysis", "understandings", "structure",
+      "dynamics", "behavior", "evolution", "genome", "fig.", "al.", "significantly", "increased"};
+
+  private Fixtures() {
+  }
+
+  /**
+   * @param index the article number
+   * @param size  the size of the article
+   * @return the article XML
+   */
+  static String xml(int index, Size size) {
+    Random random = new Random(index * 31L + size.ordinal());
+    StringBuilder xml = new StringBuilder(size.chars + 1024);
+    xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+        .append("<!DOCTYPE article PUBLIC \"-//NLM//DTD JATS (Z39.96) Journal Archiving and Interchange DTD v1.1 20151215//EN\" \"JATS-archivearticle1.dtd\">\n")
+        .append("<article article-type=\"research-article\" dtd-version=\"1.1\"><front><article-meta>")
+        .append("<article-id pub-id-type=\"doi\">").append(doi(index)).append("</article-id>")
+        .append("<title-group><article-title>").append(sentence(random)).append("</article-title></title-group>")
+        .append("</article-meta></front><body>\n");
+    int section = 0;
+    while (xml.length() < size.chars) {
+      xml.append("<sec id=\"s").append(++section).append("\"><title>Section ").append(section).append("</title>\n");
+      for (int p = 0; p < 4 && xml.length() < size.chars; p++) {
+        xml.append("<p>");
+        int sentences = 3 + random.nextInt(5);
+        for (int s = 0; s < sentences; s++) {
+          xml.append(sentence(random)).append(' ');
+          switch (random.nextInt(8)) {
+            case 0:
+              xml.append("<italic>in vivo</italic> ");
+              break;
+            case 1:
+              xml.append("(<xref ref-type=\"bibr\" rid=\"bib").append(random.nextInt(50)).append("\">Smith et al., 2012</xref>) ");
+              break;
+            case 2:
+              xml.append("10&#x2013;20 &amp; 30&#8212;40 &lt;5% ");
+              break;
+            case 3:
+              xml.append("<!-- editorial note --> ");
+              break;
+            case 4:
+              xml.append("<![CDATA[a < b]]> ");
+              break;
+            default:
+              break;
+          }
+        }
+        xml.append("</p>\n");
+      }
+      xml.append("</sec>\n");
+    }
+    return xml.append("</body></article>\n").toString();
+  }
+
+  /**
+   * @param index the article number
+   * @return the JSON metadata of the article
+   */
+  static String json(int index) {
+    Random random = new Random(index);
+    return "{\"doi\": \"" + doi(index) + "\", \"title\": \"" + sentence(random).replace("\"", "") + "\","
+        + " \"year\": " + (2012 + index % 10) + ", \"reviewed\": true,"
+        + " \"authors\": [{\"name\": \"Author " + index + "\"}, {\"name\": \"Author " + (index + 1) + "\"}],"
+        + " \"journal\": {\"title\": \"eLife\", \"issn\": \"2050-084X\"}}";
+  }
+
+  /**
+   * @param index the article number
+   * @return the DOI of the article
+   */
+  static String doi(int index) {
+    return String.format("10.7554/eLife.%05d", index);
+  }
+
+  /**
+   * Write the JSON metadata and the XML of the given number of articles.
+   *
+   * @param dir   the directory
+   * @param count the number of articles
+   * @param size  the size of the articles
+   * @throws IOException If the files cannot be written
+   */
+  static void writeArticles(Path dir, int count, Size size) throws IOException {
+    for (int i = 0; i < count; i++) {
+      String name = String.format("eLife.%05d", i);
+      Files.writeString(dir.resolve(name + ".json"), json(i), StandardCharsets.UTF_8);
+      Files.writeString(dir.resolve(name + ".xml"), xml(i, size), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static String sentence(Random random) {
+    StringBuilder sentence = new StringBuilder();
+    int words = 6 + random.nextInt(20);
+    for (int w = 0; w < words; w++) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      sentence.append(w == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+      sentence.append(w + 1 < words ? " " : ".");
+    }
+    return sentence.toString();
+  }
+}
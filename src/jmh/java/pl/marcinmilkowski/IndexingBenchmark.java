@@ -0,0 +1,62 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/** Documents per second of the {@link JSONIndexer} pipeline, metadata and full text, into an in-memory index. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexingBenchmark {
+
+  private static final int DOCUMENTS = 200;
+
+  @Param({"SMALL", "MEDIUM"})
+  public String size;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private Path jsonDir;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Setup
+  public void setUp() throws IOException {
+    jsonDir = Files.createTempDirectory("jmh-index");
+    Fixtures.writeArticles(jsonDir, DOCUMENTS, Fixtures.Size.valueOf(size));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(jsonDir)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DOCUMENTS)
+  public int indexDocuments() throws IOException, InterruptedException {
+    try (IndexWriter writer = new IndexWriter(new ByteBuffersDirectory(), new IndexWriterConfig(new StandardAnalyzer()))) {
+      IndexingPipeline pipeline = new IndexingPipeline(writer, mapper, null, threads, 64);
+      pipeline.run(jsonDir);
+      writer.commit();
+      return pipeline.getIndexed();
+    }
+  }
+}
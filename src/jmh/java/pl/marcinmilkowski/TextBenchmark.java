@@ -0,0 +1,58 @@
+package pl.marcinmilkowski;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/** The text cleaning and segmentation steps of {@link TextCorpusMaker}, per article. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TextBenchmark {
+
+  @Param({"SMALL", "MEDIUM", "LARGE"})
+  public String size;
+
+  private String xml;
+  private String text;
+  private Pattern filter;
+
+  @Setup
+  public void setUp() {
+    xml = Fixtures.xml(1, Fixtures.Size.valueOf(size));
+    text = TextCorpusMaker.getCleanText(xml);
+    filter = Pattern.compile(TextCorpusMaker.KEYWORD_FILTER);
+    // Load the SRX rules outside of the measurement
+    TextCorpusMaker.sentenceTokenize("Warm up. The rules.");
+  }
+
+  @Benchmark
+  public String getCleanText() {
+    return TextCorpusMaker.getCleanText(xml);
+  }
+
+  @Benchmark
+  public String convertXmlEntityToUtf8() {
+    return TextCorpusMaker.convertXmlEntityToUtf8(xml);
+  }
+
+  @Benchmark
+  public int getWordCount() {
+    return TextCorpusMaker.getWordCount(xml);
+  }
+
+  @Benchmark
+  public List<String> sentenceTokenize() {
+    return TextCorpusMaker.sentenceTokenize(text);
+  }
+
+  @Benchmark
+  public List<String> getFilteredText() {
+    return TextCorpusMaker.getFilteredText(text, filter);
+  }
+}
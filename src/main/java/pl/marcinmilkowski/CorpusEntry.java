@@ -0,0 +1,159 @@
+package pl.marcinmilkowski;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * One input file of a corpus, see {@link CorpusSource}: a file in a directory or a zip archive,
+ * read through its {@link Path}, or a file of a tar archive, whose contents are held in memory
+ * because the archive can only be read in order.
+ */
+public final class CorpusEntry {
+
+  private final String name;
+  private final String relativeName;
+  private final Path file;
+  private final BasicFileAttributes attrs;
+  private final byte[] contents;
+
+  /**
+   * An entry read from a path, in the default or a zip file system.
+   *
+   * @param name         the unique name of the entry, e.g. the path
+   * @param relativeName the name below the root of the source, with "/" separators
+   * @param file         the path of the entry
+   * @param attrs        the attributes of the entry
+   */
+  CorpusEntry(String name, String relativeName, Path file, BasicFileAttributes attrs) {
+    this.name = name;
+    this.relativeName = relativeName;
+    this.file = file;
+    this.attrs = attrs;
+    this.contents = null;
+  }
+
+  /**
+   * An entry held in memory.
+   *
+   * @param name         the unique name of the entry, e.g. "corpus.tar.gz!/dir/file.xml"
+   * @param relativeName the name below the root of the source, with "/" separators
+   * @param contents     the contents of the entry
+   * @param modified     the modification time, in milliseconds since the epoch
+   */
+  CorpusEntry(String name, String relativeName, byte[] contents, long modified) {
+    this.name = name;
+    this.relativeName = relativeName;
+    this.file = null;
+    this.attrs = new EntryAttributes(contents.length, FileTime.fromMillis(modified));
+    this.contents = contents;
+  }
+
+  /** @return the unique name of the entry, used as its "path" in the index */
+  public String getName() {
+    return name;
+  }
+
+  /** @return the name below the root of the source, with "/" separators */
+  public String getRelativeName() {
+    return relativeName;
+  }
+
+  /** @return the last part of the name, e.g. "eLife.00003.xml" */
+  public String getFileName() {
+    return relativeName.substring(relativeName.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * @return the path of the entry, through which the files next to it can be found,
+   *     or null for an entry held in memory
+   */
+  public Path getFile() {
+    return file;
+  }
+
+  /** @return the size and times of the entry; archive entries have only their modification time */
+  public BasicFileAttributes getAttributes() {
+    return attrs;
+  }
+
+  /**
+   * @return the contents of the entry
+   * @throws IOException If the entry cannot be read
+   */
+  public byte[] readAllBytes() throws IOException {
+    return contents != null ? contents : Files.readAllBytes(file);
+  }
+
+  /**
+   * @return a stream over the contents of the entry
+   * @throws IOException If the entry cannot be opened
+   */
+  public InputStream openStream() throws IOException {
+    return contents != null ? new ByteArrayInputStream(contents) : Files.newInputStream(file);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  private static final class EntryAttributes implements BasicFileAttributes {
+    private final long size;
+    private final FileTime modified;
+
+    EntryAttributes(long size, FileTime modified) {
+      this.size = size;
+      this.modified = modified;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+      return modified;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+      return modified;
+    }
+
+    @Override
+    public FileTime creationTime() {
+      return modified;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+      return true;
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return false;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+      return false;
+    }
+
+    @Override
+    public boolean isOther() {
+      return false;
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public Object fileKey() {
+      return null;
+    }
+  }
+}
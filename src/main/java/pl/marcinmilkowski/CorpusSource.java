@@ -0,0 +1,177 @@
+package pl.marcinmilkowski;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The input files of a corpus: a directory tree, a zip archive, or a tar archive, possibly gzipped,
+ * so that published dumps can be processed without extracting millions of small files.
+ * <p>
+ * Zip archives are opened as a zip {@link FileSystem}, so their entries are read on demand and
+ * the files next to an entry can be found as in a directory. Tar archives are read in one pass
+ * by a {@link TarReader}, and only the accepted entries are read into memory; as the entries
+ * come in archive order, the files next to an entry cannot be looked up.
+ * Entries in archives are named "archive!/path/in/archive", entries in directories by their path.
+ */
+public abstract class CorpusSource implements Closeable {
+
+  /** Receives the accepted entries of a source, in the order of the walk. */
+  public interface EntryVisitor {
+    /**
+     * @param entry the entry, which may be handed to other threads
+     * @throws IOException To stop the walk
+     */
+    void visit(CorpusEntry entry) throws IOException;
+
+    /**
+     * Called for a file of a directory or zip archive that cannot be read; stops the walk by default.
+     *
+     * @param name the name of the file
+     * @param e    the error
+     * @throws IOException To stop the walk
+     */
+    default void visitFailed(String name, IOException e) throws IOException {
+      throw e;
+    }
+  }
+
+  private final String name;
+
+  private CorpusSource(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Open a directory, a ".zip" archive, or a ".tar", ".tar.gz" or ".tgz" archive.
+   *
+   * @param input the directory or archive
+   * @return the source, to be closed after the walk
+   * @throws IOException If the archive cannot be opened
+   */
+  public static CorpusSource open(Path input) throws IOException {
+    if (Files.isDirectory(input)) {
+      return new PathSource(input, input, null, null);
+    }
+    String fileName = input.getFileName().toString().toLowerCase();
+    if (fileName.endsWith(".zip")) {
+      FileSystem zip = FileSystems.newFileSystem(input, (ClassLoader) null);
+      return new PathSource(input, zip.getRootDirectories().iterator().next(), zip, input + "!");
+    }
+    if (fileName.endsWith(".tar.gz") || fileName.endsWith(".tgz")) {
+      return new TarSource(input, true);
+    }
+    if (fileName.endsWith(".tar")) {
+      return new TarSource(input, false);
+    }
+    throw new IllegalArgumentException("Not a directory or a zip or tar archive: " + input);
+  }
+
+  /** @return the file name of the directory or archive, e.g. "elife.zip" */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Hand every entry whose relative name is accepted to the visitor.
+   *
+   * @param accept  tests the name of the entry below the root, with "/" separators
+   * @param visitor receives the accepted entries
+   * @throws IOException If the source cannot be read, or the visitor stops the walk
+   */
+  public abstract void walk(Predicate<String> accept, EntryVisitor visitor) throws IOException;
+
+  private static String fileName(Path input) {
+    return input.getFileName() != null ? input.getFileName().toString() : input.toString();
+  }
+
+  /** A directory, or the root of a zip file system. */
+  private static final class PathSource extends CorpusSource {
+    private final Path root;
+    private final FileSystem fileSystem;
+    private final String prefix;
+
+    PathSource(Path input, Path root, FileSystem fileSystem, String prefix) {
+      super(fileName(input));
+      this.root = root;
+      this.fileSystem = fileSystem;
+      this.prefix = prefix;
+    }
+
+    @Override
+    public void walk(Predicate<String> accept, EntryVisitor visitor) throws IOException {
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          String relativeName = relativeName(file);
+          if (accept.test(relativeName)) {
+            visitor.visit(new CorpusEntry(prefix != null ? prefix + file : file.toString(), relativeName, file, attrs));
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+          visitor.visitFailed(prefix != null ? prefix + file : file.toString(), e);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+
+    private String relativeName(Path file) {
+      Path relative = root.relativize(file);
+      StringBuilder name = new StringBuilder();
+      for (Path part : relative) {
+        if (name.length() > 0) {
+          name.append('/');
+        }
+        name.append(part);
+      }
+      return name.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (fileSystem != null) {
+        fileSystem.close();
+      }
+    }
+  }
+
+  /** A tar archive, read sequentially. */
+  private static final class TarSource extends CorpusSource {
+    private final Path archive;
+    private final boolean gzip;
+
+    TarSource(Path archive, boolean gzip) {
+      super(fileName(archive));
+      this.archive = archive;
+      this.gzip = gzip;
+    }
+
+    @Override
+    public void walk(Predicate<String> accept, EntryVisitor visitor) throws IOException {
+      InputStream in = new BufferedInputStream(Files.newInputStream(archive), 1 << 16);
+      if (gzip) {
+        in = new GZIPInputStream(in, 1 << 16);
+      }
+      try (TarReader tar = new TarReader(in)) {
+        for (TarReader.Entry entry = tar.next(); entry != null; entry = tar.next()) {
+          String relativeName = entry.name.startsWith("./") ? entry.name.substring(2) : entry.name;
+          if (accept.test(relativeName)) {
+            visitor.visit(new CorpusEntry(archive + "!/" + relativeName, relativeName, tar.read(), entry.modified));
+          }
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Streaming word and sentence statistics of a corpus: totals, means and p50/p90/p99 quantiles,
+ * for all files, for the reviews, and broken down per corpus and per review type.
+ * Only primitive counters and fixed-size histograms are kept, so the memory use does not grow
+ * with the number of files. Files can be added from several threads.
+ */
+public class CorpusStatistics {
+
+  /** The review type of files that are not reviews. */
+  public static final String ARTICLE = "article";
+
+  private final Group all = new Group();
+  private final Group reviews = new Group();
+  private final Map<String, Group> corpora = new TreeMap<>();
+  private final Map<String, Group> reviewTypes = new TreeMap<>();
+
+  /** The counts of a group of files. */
+  public static final class Group {
+    private int files = 0;
+    private final QuantileHistogram words = new QuantileHistogram();
+    private final QuantileHistogram sentences = new QuantileHistogram();
+
+    void add(int wordCount, int sentenceCount) {
+      files++;
+      words.add(wordCount);
+      sentences.add(sentenceCount);
+    }
+
+    public int getFiles() {
+      return files;
+    }
+
+    public QuantileHistogram getWords() {
+      return words;
+    }
+
+    public QuantileHistogram getSentences() {
+      return sentences;
+    }
+  }
+
+  /**
+   * Add the counts of one file.
+   *
+   * @param corpus     the corpus of the file
+   * @param reviewType the review type of the file, or {@link #ARTICLE}
+   * @param words      the number of words
+   * @param sentences  the number of sentences
+   */
+  public synchronized void add(String corpus, String reviewType, int words, int sentences) {
+    all.add(words, sentences);
+    if (!ARTICLE.equals(reviewType)) {
+      reviews.add(words, sentences);
+    }
+    corpora.computeIfAbsent(corpus, c -> new Group()).add(words, sentences);
+    reviewTypes.computeIfAbsent(reviewType, t -> new Group()).add(words, sentences);
+  }
+
+  public synchronized Group getAll() {
+    return all;
+  }
+
+  public synchronized Group getReviews() {
+    return reviews;
+  }
+
+  public synchronized Map<String, Group> getCorpora() {
+    return new TreeMap<>(corpora);
+  }
+
+  public synchronized Map<String, Group> getReviewTypes() {
+    return new TreeMap<>(reviewTypes);
+  }
+
+  /**
+   * Write the statistics as a JSON report.
+   *
+   * @param file the report file
+   * @throws IOException If the report cannot be written
+   */
+  public synchronized void writeJson(Path file) throws IOException {
+    try (JsonGenerator json = new JsonFactory().createGenerator(file.toFile(), JsonEncoding.UTF8)) {
+      json.useDefaultPrettyPrinter();
+      json.writeStartObject();
+      json.writeFieldName("all");
+      writeGroup(json, all);
+      json.writeFieldName("reviews");
+      writeGroup(json, reviews);
+      writeGroups(json, "corpora", corpora);
+      writeGroups(json, "reviewTypes", reviewTypes);
+      json.writeEndObject();
+    }
+  }
+
+  private static void writeGroups(JsonGenerator json, String name, Map<String, Group> groups) throws IOException {
+    json.writeObjectFieldStart(name);
+    for (Map.Entry<String, Group> group : groups.entrySet()) {
+      json.writeFieldName(group.getKey());
+      writeGroup(json, group.getValue());
+    }
+    json.writeEndObject();
+  }
+
+  private static void writeGroup(JsonGenerator json, Group group) throws IOException {
+    json.writeStartObject();
+    json.writeNumberField("files", group.files);
+    writeHistogram(json, "words", group.words);
+    writeHistogram(json, "sentences", group.sentences);
+    json.writeEndObject();
+  }
+
+  private static void writeHistogram(JsonGenerator json, String name, QuantileHistogram histogram) throws IOException {
+    json.writeObjectFieldStart(name);
+    json.writeNumberField("total", histogram.getTotal());
+    json.writeNumberField("mean", histogram.getMean());
+    json.writeNumberField("p50", histogram.quantile(0.5));
+    json.writeNumberField("p90", histogram.quantile(0.9));
+    json.writeNumberField("p99", histogram.quantile(0.99));
+    json.writeNumberField("max", histogram.getMax());
+    json.writeEndObject();
+  }
+
+  /**
+   * Count the words in the given characters: the maximal runs of non-whitespace characters.
+   *
+   * @param text   the text
+   * @param length the length of the text in the array
+   * @return the number of words
+   */
+  public static int countWords(char[] text, int length) {
+    int words = 0;
+    boolean inWord = false;
+    for (int i = 0; i < length; i++) {
+      boolean whitespace = isWhitespace(text[i]);
+      if (!whitespace && !inWord) {
+        words++;
+      }
+      inWord = !whitespace;
+    }
+    return words;
+  }
+
+  /**
+   * Estimate the number of sentences in the given characters: the runs of sentence-final
+   * punctuation followed by whitespace, plus a last sentence without final punctuation.
+   * Abbreviations are counted as sentence ends, so this is an approximation of the
+   * SRX segmentation that does not allocate.
+   *
+   * @param text   the text
+   * @param length the length of the text in the array
+   * @return the number of sentences
+   */
+  public static int countSentences(char[] text, int length) {
+    int sentences = 0;
+    boolean open = false;
+    for (int i = 0; i < length; i++) {
+      char c = text[i];
+      if ((c == '.' || c == '!' || c == '?') && (i + 1 == length || isWhitespace(text[i + 1]))) {
+        if (open) {
+          sentences++;
+        }
+        open = false;
+      } else if (!isWhitespace(c)) {
+        open = true;
+      }
+    }
+    return open ? sentences + 1 : sentences;
+  }
+
+  /** The characters matched by \\s in a regular expression. */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+}
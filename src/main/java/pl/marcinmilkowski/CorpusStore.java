@@ -0,0 +1,375 @@
+package pl.marcinmilkowski;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read-only binary corpus of segmented sentences, written by {@link CorpusStoreWriter}.
+ * It has three files next to each other:
+ * <ul>
+ *   <li>the data file, the UTF-8 bytes of all sentences without separators;</li>
+ *   <li>the offsets file, a header and then one big-endian long per sentence with its start
+ *   in the data file, followed by the end of the data;</li>
+ *   <li>the document table, a header and then one record per source file with its first
+ *   sentence, sentence count, review type and path.</li>
+ * </ul>
+ * The data and offsets are memory-mapped in chunks, so any sentence can be read without copying
+ * it or reading the ones before it, also in files over 2 GB. The store is thread-safe, and
+ * {@link #split(int)} cuts it into ranges of whole documents for parallel consumers.
+ */
+public final class CorpusStore implements Closeable {
+
+  static final int OFFSETS_MAGIC = 0x43534f46; // "CSOF"
+  static final int DOCUMENTS_MAGIC = 0x4353444f; // "CSDO"
+  static final int FORMAT_VERSION = 1;
+  static final int HEADER_SIZE = 8;
+
+  /** The size of the mapped chunks; a multiple of the offset width, so that no offset spans two chunks. */
+  private static final int CHUNK_SIZE = 1 << 30;
+
+  /** A source file in the store. */
+  public static final class Document {
+    private final String path;
+    private final String reviewType;
+    private final long firstSentence;
+    private final int sentenceCount;
+
+    Document(String path, String reviewType, long firstSentence, int sentenceCount) {
+      this.path = path;
+      this.reviewType = reviewType;
+      this.firstSentence = firstSentence;
+      this.sentenceCount = sentenceCount;
+    }
+
+    /** @return the source path, as in the side index of {@link CorpusWriter} */
+    public String getPath() {
+      return path;
+    }
+
+    /** @return the review type, see {@link TextCorpusMaker#getReviewType(String)} */
+    public String getReviewType() {
+      return reviewType;
+    }
+
+    /** @return whether the document is an eLife review */
+    public boolean isReview() {
+      return !CorpusStatistics.ARTICLE.equals(reviewType);
+    }
+
+    /** @return the number of the first sentence of the document in the store */
+    public long getFirstSentence() {
+      return firstSentence;
+    }
+
+    /** @return the number of sentences of the document */
+    public int getSentenceCount() {
+      return sentenceCount;
+    }
+
+    @Override
+    public String toString() {
+      return path;
+    }
+  }
+
+  /** A range of whole documents, and of their sentences, see {@link #split(int)}. */
+  public static final class Range {
+    private final int firstDocument;
+    private final int endDocument;
+    private final long firstSentence;
+    private final long endSentence;
+
+    Range(int firstDocument, int endDocument, long firstSentence, long endSentence) {
+      this.firstDocument = firstDocument;
+      this.endDocument = endDocument;
+      this.firstSentence = firstSentence;
+      this.endSentence = endSentence;
+    }
+
+    public int getFirstDocument() {
+      return firstDocument;
+    }
+
+    /** @return the end of the document range, exclusive */
+    public int getEndDocument() {
+      return endDocument;
+    }
+
+    public long getFirstSentence() {
+      return firstSentence;
+    }
+
+    /** @return the end of the sentence range, exclusive */
+    public long getEndSentence() {
+      return endSentence;
+    }
+
+    @Override
+    public String toString() {
+      return "documents " + firstDocument + "-" + endDocument + ", sentences " + firstSentence + "-" + endSentence;
+    }
+  }
+
+  private final int chunkSize;
+  private final ByteBuffer[] data;
+  private final ByteBuffer[] offsets;
+  private final long sentenceCount;
+  private final List<Document> documents;
+  private final long[] firstSentences;
+
+  private CorpusStore(Path base, int chunkSize) throws IOException {
+    this.chunkSize = chunkSize;
+    this.data = map(dataFile(base), chunkSize);
+    this.offsets = map(offsetsFile(base), chunkSize);
+    long offsetsSize = size(offsets);
+    if (offsetsSize < HEADER_SIZE + Long.BYTES || (offsetsSize - HEADER_SIZE) % Long.BYTES != 0
+        || offsets[0].getInt(0) != OFFSETS_MAGIC || offsets[0].getInt(4) != FORMAT_VERSION) {
+      throw new IOException("Not a corpus store offsets file: " + offsetsFile(base));
+    }
+    this.sentenceCount = (offsetsSize - HEADER_SIZE) / Long.BYTES - 1;
+    if (offset(sentenceCount) != size(data)) {
+      throw new IOException("The offsets do not match the data size in " + dataFile(base));
+    }
+    this.documents = Collections.unmodifiableList(readDocuments(documentsFile(base)));
+    this.firstSentences = new long[documents.size()];
+    long next = 0;
+    for (int i = 0; i < documents.size(); i++) {
+      Document document = documents.get(i);
+      if (document.firstSentence != next) {
+        throw new IOException("Document " + document + " does not start at sentence " + next);
+      }
+      firstSentences[i] = next;
+      next += document.sentenceCount;
+    }
+    if (next != sentenceCount) {
+      throw new IOException("The documents have " + next + " sentences, the offsets " + sentenceCount);
+    }
+  }
+
+  /**
+   * Open the store with the given base path.
+   *
+   * @param base the path of the store files without their extensions
+   * @return the store
+   * @throws IOException If the files cannot be mapped or are not a valid store
+   */
+  public static CorpusStore open(Path base) throws IOException {
+    return open(base, CHUNK_SIZE);
+  }
+
+  static CorpusStore open(Path base, int chunkSize) throws IOException {
+    if (chunkSize <= 0 || chunkSize % Long.BYTES != 0) {
+      throw new IllegalArgumentException("The chunk size must be a positive multiple of 8: " + chunkSize);
+    }
+    return new CorpusStore(base, chunkSize);
+  }
+
+  /** @return the data file of the store with the given base path */
+  public static Path dataFile(Path base) {
+    return base.resolveSibling(base.getFileName() + ".sent");
+  }
+
+  /** @return the offsets file of the store with the given base path */
+  public static Path offsetsFile(Path base) {
+    return base.resolveSibling(base.getFileName() + ".off");
+  }
+
+  /** @return the document table of the store with the given base path */
+  public static Path documentsFile(Path base) {
+    return base.resolveSibling(base.getFileName() + ".docs");
+  }
+
+  /** @return the number of sentences */
+  public long getSentenceCount() {
+    return sentenceCount;
+  }
+
+  /** @return the number of documents */
+  public int getDocumentCount() {
+    return documents.size();
+  }
+
+  /** @return the documents, in the order of their sentences */
+  public List<Document> getDocuments() {
+    return documents;
+  }
+
+  /**
+   * @param index the document number, from 0
+   * @return the document
+   */
+  public Document getDocument(int index) {
+    return documents.get(index);
+  }
+
+  /**
+   * @param sentence the sentence number, from 0
+   * @return the number of the document the sentence comes from
+   */
+  public int documentOf(long sentence) {
+    checkSentence(sentence);
+    int i = Arrays.binarySearch(firstSentences, sentence);
+    if (i < 0) {
+      return -i - 2;
+    }
+    // Skip the documents without sentences that start at the same place
+    while (i + 1 < firstSentences.length && firstSentences[i + 1] == sentence) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * The UTF-8 bytes of a sentence. The buffer is a read-only view of the mapped file, unless
+   * the sentence spans two chunks, in which case it is copied.
+   *
+   * @param sentence the sentence number, from 0
+   * @return the bytes, from position 0 to the limit
+   */
+  public ByteBuffer getSentenceBytes(long sentence) {
+    checkSentence(sentence);
+    long start = offset(sentence);
+    int length = (int) (offset(sentence + 1) - start);
+    int chunk = (int) (start / chunkSize);
+    int position = (int) (start % chunkSize);
+    if (length == 0 || position + length <= chunkSize) {
+      return length == 0 ? ByteBuffer.allocate(0) : data[chunk].slice(position, length).asReadOnlyBuffer();
+    }
+    byte[] bytes = new byte[length];
+    for (int copied = 0; copied < length; chunk++, position = 0) {
+      int n = Math.min(length - copied, chunkSize - position);
+      data[chunk].get(position, bytes, copied, n);
+      copied += n;
+    }
+    return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+  }
+
+  /**
+   * @param sentence the sentence number, from 0
+   * @return the sentence, without a line separator
+   */
+  public String getSentence(long sentence) {
+    return StandardCharsets.UTF_8.decode(getSentenceBytes(sentence)).toString();
+  }
+
+  /**
+   * @param document the document number, from 0
+   * @return the sentences of the document
+   */
+  public List<String> getSentences(int document) {
+    Document doc = documents.get(document);
+    List<String> sentences = new ArrayList<>(doc.sentenceCount);
+    for (long i = doc.firstSentence; i < doc.firstSentence + doc.sentenceCount; i++) {
+      sentences.add(getSentence(i));
+    }
+    return sentences;
+  }
+
+  /**
+   * Split the store into ranges of whole documents with about the same number of sentences.
+   *
+   * @param parts the number of ranges wanted
+   * @return at most that many non-empty ranges, in order, covering all documents
+   */
+  public List<Range> split(int parts) {
+    if (parts <= 0) {
+      throw new IllegalArgumentException("The number of parts must be positive: " + parts);
+    }
+    List<Range> ranges = new ArrayList<>();
+    int firstDocument = 0;
+    for (int part = 1; part <= parts && firstDocument < documents.size(); part++) {
+      int endDocument = documents.size();
+      if (part < parts) {
+        long target = sentenceCount * part / parts;
+        endDocument = firstDocument + 1;
+        while (endDocument < documents.size() && firstSentences[endDocument] < target) {
+          endDocument++;
+        }
+      }
+      long endSentence = endDocument < documents.size() ? firstSentences[endDocument] : sentenceCount;
+      ranges.add(new Range(firstDocument, endDocument, firstSentences[firstDocument], endSentence));
+      firstDocument = endDocument;
+    }
+    return ranges;
+  }
+
+  /** Drop the references to the mapped files; they are unmapped when the buffers are collected. */
+  @Override
+  public void close() {
+    Arrays.fill(data, null);
+    Arrays.fill(offsets, null);
+  }
+
+  private void checkSentence(long sentence) {
+    if (sentence < 0 || sentence >= sentenceCount) {
+      throw new IndexOutOfBoundsException("Sentence " + sentence + " of " + sentenceCount);
+    }
+  }
+
+  private long offset(long sentence) {
+    long position = HEADER_SIZE + sentence * Long.BYTES;
+    return offsets[(int) (position / chunkSize)].getLong((int) (position % chunkSize));
+  }
+
+  private static long size(ByteBuffer[] chunks) {
+    long size = 0;
+    for (ByteBuffer chunk : chunks) {
+      size += chunk.capacity();
+    }
+    return size;
+  }
+
+  private static ByteBuffer[] map(Path file, int chunkSize) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer[] chunks = new ByteBuffer[(int) ((size + chunkSize - 1) / chunkSize)];
+      for (int i = 0; i < chunks.length; i++) {
+        long position = (long) i * chunkSize;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(chunkSize, size - position));
+      }
+      return chunks;
+    }
+  }
+
+  private static List<Document> readDocuments(Path file) throws IOException {
+    ByteBuffer table;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Document table over 2 GB: " + file);
+      }
+      table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (table.remaining() < HEADER_SIZE || table.getInt() != DOCUMENTS_MAGIC || table.getInt() != FORMAT_VERSION) {
+      throw new IOException("Not a corpus store document table: " + file);
+    }
+    List<Document> documents = new ArrayList<>();
+    try {
+      while (table.hasRemaining()) {
+        long firstSentence = table.getLong();
+        int sentenceCount = table.getInt();
+        String reviewType = readString(table);
+        String path = readString(table);
+        documents.add(new Document(path, reviewType, firstSentence, sentenceCount));
+      }
+    } catch (RuntimeException e) {
+      throw new IOException("Truncated corpus store document table: " + file, e);
+    }
+    return documents;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    String s = StandardCharsets.UTF_8.decode(buffer.slice(buffer.position(), length)).toString();
+    buffer.position(buffer.position() + length);
+    return s;
+  }
+}
@@ -0,0 +1,212 @@
+package pl.marcinmilkowski;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Writes a {@link CorpusStore}: the sentences of each source file are appended to the data file,
+ * their offsets to the offsets file, and a record to the document table. Documents without
+ * sentences are left out, as in the side index of {@link CorpusWriter}. Instances are not
+ * thread-safe; a {@link CorpusWriter} calls its store in the output order, under its own lock.
+ */
+public class CorpusStoreWriter implements Closeable {
+
+  private final OutputStream data;
+  private final DataOutputStream offsets;
+  private final DataOutputStream documents;
+  private long dataSize = 0;
+  private long sentenceCount = 0;
+  private int documentCount = 0;
+
+  /**
+   * @param base      the path of the store files without their extensions, see {@link CorpusStore#open(Path)}
+   * @param flushSize the number of bytes buffered before they are written to the data file
+   * @throws IOException If the files cannot be created
+   */
+  public CorpusStoreWriter(Path base, int flushSize) throws IOException {
+    this.data = new BufferedOutputStream(Files.newOutputStream(CorpusStore.dataFile(base)), flushSize);
+    this.offsets = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(CorpusStore.offsetsFile(base))));
+    this.documents = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(CorpusStore.documentsFile(base))));
+    offsets.writeInt(CorpusStore.OFFSETS_MAGIC);
+    offsets.writeInt(CorpusStore.FORMAT_VERSION);
+    offsets.writeLong(0);
+    documents.writeInt(CorpusStore.DOCUMENTS_MAGIC);
+    documents.writeInt(CorpusStore.FORMAT_VERSION);
+  }
+
+  /**
+   * Add the sentences of a source file, with the review type derived from its file name.
+   *
+   * @param path      the source path, e.g. {@link CorpusEntry#getName()}
+   * @param sentences the sentences; a trailing line separator is dropped, so the sentences
+   *                  given to a {@link CorpusWriter} can be added as they are
+   * @throws IOException If the store cannot be written
+   */
+  public void add(String path, List<String> sentences) throws IOException {
+    add(path, TextCorpusMaker.getReviewType(fileName(path)), sentences);
+  }
+
+  /**
+   * Add the sentences of a source file.
+   *
+   * @param path       the source path
+   * @param reviewType the review type, see {@link TextCorpusMaker#getReviewType(String)}
+   * @param sentences  the sentences, see {@link #add(String, List)}
+   * @throws IOException If the store cannot be written
+   */
+  public void add(String path, String reviewType, List<String> sentences) throws IOException {
+    if (sentences.isEmpty()) {
+      return;
+    }
+    for (String sentence : sentences) {
+      addSentence(stripLineSeparator(sentence));
+    }
+    addDocument(path, reviewType, sentences.size());
+  }
+
+  /** Append a sentence to the data file; it belongs to the next document added. */
+  private void addSentence(String sentence) throws IOException {
+    byte[] bytes = sentence.getBytes(StandardCharsets.UTF_8);
+    data.write(bytes);
+    dataSize += bytes.length;
+    offsets.writeLong(dataSize);
+  }
+
+  /** Write the record of a document with the last count sentences appended. */
+  private void addDocument(String path, String reviewType, int count) throws IOException {
+    documents.writeLong(sentenceCount);
+    documents.writeInt(count);
+    writeString(documents, reviewType);
+    writeString(documents, path);
+    sentenceCount += count;
+    documentCount++;
+  }
+
+  /** @return the number of sentences written so far */
+  public long getSentences() {
+    return sentenceCount;
+  }
+
+  /** @return the number of documents written so far */
+  public int getDocuments() {
+    return documentCount;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      data.close();
+    } finally {
+      try {
+        offsets.close();
+      } finally {
+        documents.close();
+      }
+    }
+  }
+
+  /**
+   * Convert a text corpus with one sentence per line, as all corpus modes write it, into a store.
+   * The side index of a {@link CorpusWriter} gives the documents; a corpus without one, e.g. one
+   * written by other tools, becomes a single document named after the corpus file, without its
+   * blank lines.
+   *
+   * @param corpusFile the text corpus, gzipped if its name ends with ".gz"
+   * @param base       the path of the store files without their extensions
+   * @param flushSize  the number of bytes buffered before they are written to the data file
+   * @return the number of sentences converted
+   * @throws IOException If the corpus cannot be read, does not match its side index, or the store cannot be written
+   */
+  public static long convert(Path corpusFile, Path base, int flushSize) throws IOException {
+    InputStream in = new BufferedInputStream(Files.newInputStream(corpusFile), flushSize);
+    if (corpusFile.getFileName().toString().endsWith(".gz")) {
+      in = new GZIPInputStream(in, flushSize);
+    }
+    Path indexFile = CorpusWriter.indexFile(corpusFile);
+    if (!Files.exists(indexFile)) {
+      try (
+          BufferedReader text = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+          CorpusStoreWriter store = new CorpusStoreWriter(base, flushSize)
+      ) {
+        long count = 0;
+        String line;
+        while ((line = text.readLine()) != null) {
+          if (!line.isBlank()) {
+            store.addSentence(line);
+            count++;
+          }
+        }
+        if (count > Integer.MAX_VALUE) {
+          throw new IOException(corpusFile + " has too many sentences for one document; write a side index");
+        }
+        if (count > 0) {
+          String path = corpusFile.getFileName().toString();
+          store.addDocument(path, TextCorpusMaker.getReviewType(path), (int) count);
+        }
+        return store.getSentences();
+      }
+    }
+    try (
+        BufferedReader text = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        BufferedReader index = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8);
+        CorpusStoreWriter store = new CorpusStoreWriter(base, flushSize)
+    ) {
+      String line;
+      while ((line = index.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] fields = line.split("\t", 3);
+        if (fields.length < 3) {
+          throw new IOException("Malformed line in " + indexFile + ": " + line);
+        }
+        long firstSentence = Long.parseLong(fields[0]);
+        int count = Integer.parseInt(fields[1]);
+        if (firstSentence != store.getSentences()) {
+          throw new IOException(fields[2] + " starts at sentence " + firstSentence + ", expected " + store.getSentences());
+        }
+        for (int i = 0; i < count; i++) {
+          String sentence = text.readLine();
+          if (sentence == null) {
+            throw new IOException(corpusFile + " ends before the sentences of " + fields[2]);
+          }
+          store.addSentence(sentence);
+        }
+        if (count > 0) {
+          store.addDocument(fields[2], TextCorpusMaker.getReviewType(fileName(fields[2])), count);
+        }
+      }
+      if (text.readLine() != null) {
+        throw new IOException(corpusFile + " has more lines than sentences in its side index;"
+            + " some sentences span several lines");
+      }
+      return store.getSentences();
+    }
+  }
+
+  /** The file name of a source path, which may be an archive entry such as "corpus.zip!/2013/file.xml". */
+  static String fileName(String path) {
+    int i = Math.max(path.lastIndexOf('!'), Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')));
+    return path.substring(i + 1);
+  }
+
+  private static String stripLineSeparator(String sentence) {
+    if (sentence.endsWith("\r\n")) {
+      return sentence.substring(0, sentence.length() - 2);
+    }
+    if (sentence.endsWith("\n") || sentence.endsWith("\r")) {
+      return sentence.substring(0, sentence.length() - 1);
+    }
+    return sentence;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,182 @@
+package pl.marcinmilkowski;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The output stage of corpus extraction. All sentences go through one long-lived buffered
+ * channel, optionally gzip-compressed on the fly. Each source file is submitted with its
+ * sequence number in the input order; files that finish out of order are held back until
+ * all earlier files have been written, so the output is the same however the work was scheduled.
+ * <p>
+ * For every source file with at least one sentence, a line "first sentence, sentence count,
+ * source path" (tab-separated, sentences numbered from 0) is written to the side index,
+ * see {@link #indexFile(Path)}. The same sentences can also go to a binary {@link CorpusStore},
+ * see {@link #setStore(CorpusStoreWriter)}.
+ */
+public class CorpusWriter implements Closeable {
+
+  private final Writer out;
+  private final Writer index;
+  private final Map<Long, Entry> pending = new TreeMap<>();
+  private long nextSequence = 0;
+  private long sentences = 0;
+  private CorpusStoreWriter store;
+
+  /**
+   * @param corpusFile the output file, created or truncated
+   * @param flushSize  the number of bytes buffered before they are written to the file
+   * @param gzip       whether to gzip the output
+   * @throws IOException If the output files cannot be opened
+   */
+  public CorpusWriter(Path corpusFile, int flushSize, boolean gzip) throws IOException {
+    FileChannel channel = FileChannel.open(corpusFile,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel), flushSize);
+    if (gzip) {
+      stream = new GZIPOutputStream(stream, flushSize);
+    }
+    this.out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+    this.index = Files.newBufferedWriter(indexFile(corpusFile), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param corpusFile the corpus file
+   * @return the side index with the sentence range of each source file
+   */
+  public static Path indexFile(Path corpusFile) {
+    return corpusFile.resolveSibling(corpusFile.getFileName() + ".idx");
+  }
+
+  /**
+   * Also write the sentences to a binary store, in the same order; set it before submitting any
+   * sentences. The store is closed with this writer.
+   *
+   * @param store the store
+   */
+  public synchronized void setStore(CorpusStoreWriter store) {
+    this.store = store;
+  }
+
+  /**
+   * Submit the sentences of a source file. They are written as soon as all the files with
+   * lower sequence numbers have been written. Every sequence number must be submitted
+   * exactly once, use an empty list for files that produced nothing or failed.
+   *
+   * @param sequence  the position of the file in the input, from 0
+   * @param source    the source file
+   * @param sentences the sentences, each with its line separator
+   * @throws IOException If the output cannot be written
+   */
+  public synchronized void write(long sequence, String source, List<String> sentences) throws IOException {
+    write(sequence, source, sentences, null);
+  }
+
+  /**
+   * Submit the sentences of a source file, see {@link #write(long, String, List)}, and get told
+   * when they have left the reorder buffer, e.g. to bound the number of files held back.
+   *
+   * @param sequence  the position of the file in the input, from 0
+   * @param source    the source file
+   * @param sentences the sentences, each with its line separator
+   * @param written   run once the sentences are written, or failed to be written; may be null
+   * @throws IOException If the output cannot be written
+   */
+  public synchronized void write(long sequence, String source, List<String> sentences, Runnable written)
+      throws IOException {
+    if (sequence < nextSequence || pending.containsKey(sequence)) {
+      throw new IllegalArgumentException("Sequence number submitted twice: " + sequence);
+    }
+    pending.put(sequence, new Entry(source, sentences, written));
+    Entry entry;
+    while ((entry = pending.remove(nextSequence)) != null) {
+      emit(entry);
+      nextSequence++;
+    }
+  }
+
+  /**
+   * Skip a sequence number, for a file that produced nothing.
+   *
+   * @param sequence the position of the file in the input
+   * @throws IOException If the output cannot be written
+   */
+  public void skip(long sequence) throws IOException {
+    write(sequence, null, Collections.emptyList());
+  }
+
+  private void emit(Entry entry) throws IOException {
+    try {
+      emitSentences(entry);
+    } finally {
+      if (entry.written != null) {
+        entry.written.run();
+      }
+    }
+  }
+
+  private void emitSentences(Entry entry) throws IOException {
+    if (entry.sentences.isEmpty()) {
+      return;
+    }
+    for (String sentence : entry.sentences) {
+      out.write(sentence);
+    }
+    index.write(sentences + "\t" + entry.sentences.size() + "\t" + entry.source + System.lineSeparator());
+    sentences += entry.sentences.size();
+    if (store != null) {
+      store.add(entry.source, entry.sentences);
+    }
+  }
+
+  /** @return the number of sentences written so far */
+  public synchronized long getSentences() {
+    return sentences;
+  }
+
+  /**
+   * Flush and close the output. Fails if some sequence numbers were never submitted.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      if (!pending.isEmpty()) {
+        throw new IOException("Missing sequence number " + nextSequence + ", " + pending.size() + " files not written");
+      }
+    } finally {
+      try {
+        out.close();
+      } finally {
+        try {
+          index.close();
+        } finally {
+          if (store != null) {
+            store.close();
+          }
+        }
+      }
+    }
+  }
+
+  private static final class Entry {
+    final String source;
+    final List<String> sentences;
+    final Runnable written;
+
+    Entry(String source, List<String> sentences, Runnable written) {
+      this.source = source;
+      this.sentences = sentences;
+      this.written = written;
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package pl.marcinmilkowski;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Matches a stream of DOIs against the exact DOI terms of an index.
+ * The DOIs are collected in batches; each batch is sorted and resolved with
+ * {@link TermsEnum#seekExact(BytesRef)} on every segment, so no stored fields are loaded.
+ * Every DOI is written, in input order, either to the matched or to the missing output.
+ * <p>
+ * A matcher can also check each DOI against several indexes at once, e.g. one per publisher,
+ * with a pair of outputs per index; the indexes are then resolved in parallel if an executor is set.
+ */
+public class DoiMatcher {
+
+  /** The indexed field with the normalized DOI, see {@link #normalize(String)}. */
+  public static final String DOI_KEY_FIELD = "doi_key";
+
+  private static final String[] DOI_PREFIXES = {
+      "https://doi.org/", "http://doi.org/", "https://dx.doi.org/", "http://dx.doi.org/", "doi:"};
+
+  private final List<? extends IndexReader> readers;
+  private final String field;
+  private final List<? extends Appendable> matchedOuts;
+  private final List<? extends Appendable> missingOuts;
+  private Executor executor;
+
+  private final String[] batch;
+  private final BytesRef[] keys;
+  private final Integer[] order;
+  /** Whether each DOI of the batch is in each index. */
+  private final boolean[][] found;
+  private int size = 0;
+
+  private int records = 0;
+  private int matched = 0;
+  private final int[] matchedIn;
+
+  /**
+   * @param reader     the index to search
+   * @param field      the field with the indexed DOIs
+   * @param batchSize  the number of DOIs resolved together
+   * @param matchedOut where the DOIs found in the index are written, one per line
+   * @param missingOut where the DOIs not found in the index are written, one per line
+   */
+  public DoiMatcher(IndexReader reader, String field, int batchSize, Appendable matchedOut, Appendable missingOut) {
+    this(Collections.singletonList(reader), field, batchSize,
+        Collections.singletonList(matchedOut), Collections.singletonList(missingOut));
+  }
+
+  /**
+   * @param readers     the indexes to search
+   * @param field       the field with the indexed DOIs
+   * @param batchSize   the number of DOIs resolved together
+   * @param matchedOuts where the DOIs found in each index are written, one per line
+   * @param missingOuts where the DOIs not found in each index are written, one per line
+   */
+  public DoiMatcher(List<? extends IndexReader> readers, String field, int batchSize,
+                    List<? extends Appendable> matchedOuts, List<? extends Appendable> missingOuts) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    if (readers.isEmpty() || matchedOuts.size() != readers.size() || missingOuts.size() != readers.size()) {
+      throw new IllegalArgumentException("Expected a matched and a missing output for each of the indexes");
+    }
+    this.readers = readers;
+    this.field = field;
+    this.matchedOuts = matchedOuts;
+    this.missingOuts = missingOuts;
+    this.batch = new String[batchSize];
+    this.keys = new BytesRef[batchSize];
+    this.order = new Integer[batchSize];
+    this.found = new boolean[readers.size()][batchSize];
+    this.matchedIn = new int[readers.size()];
+  }
+
+  /**
+   * Resolve each batch against the indexes in parallel on the given executor.
+   *
+   * @param executor the executor, or null to resolve the indexes one after the other
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Normalize a DOI for exact matching: DOIs are case-insensitive, and they are often
+   * written as a URL or with a "doi:" prefix.
+   *
+   * @param doi the DOI as written in the metadata or in the CSV file
+   * @return the normalized DOI
+   */
+  public static String normalize(String doi) {
+    String key = doi.trim().toLowerCase(Locale.ROOT);
+    for (String prefix : DOI_PREFIXES) {
+      if (key.startsWith(prefix)) {
+        return key.substring(prefix.length()).trim();
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Add a DOI to the current batch, resolving the batch when it is full.
+   *
+   * @param doi the DOI to look up
+   * @throws IOException If the index cannot be read or the output cannot be written
+   */
+  public void add(String doi) throws IOException {
+    batch[size] = doi;
+    keys[size] = new BytesRef(normalize(doi));
+    order[size] = size;
+    size++;
+    if (size == batch.length) {
+      flush();
+    }
+  }
+
+  /**
+   * Resolve and write out the DOIs collected so far.
+   *
+   * @throws IOException If the index cannot be read or the output cannot be written
+   */
+  public void flush() throws IOException {
+    if (size == 0) {
+      return;
+    }
+    // Sorted keys let the terms enum move forward through the terms dictionary
+    Arrays.sort(order, 0, size, (a, b) -> keys[a].compareTo(keys[b]));
+    if (executor == null || readers.size() == 1) {
+      for (int index = 0; index < readers.size(); index++) {
+        resolve(index);
+      }
+    } else {
+      List<FutureTask<Void>> tasks = new ArrayList<>();
+      for (int index = 0; index < readers.size(); index++) {
+        int i = index;
+        FutureTask<Void> task = new FutureTask<>(() -> {
+          resolve(i);
+          return null;
+        });
+        executor.execute(task);
+        tasks.add(task);
+      }
+      for (FutureTask<Void> task : tasks) {
+        try {
+          task.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while resolving DOIs");
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IllegalStateException("Could not resolve DOIs", e.getCause());
+        }
+      }
+    }
+    for (int i = 0; i < size; i++) {
+      records++;
+      boolean any = false;
+      for (int index = 0; index < readers.size(); index++) {
+        if (found[index][i]) {
+          any = true;
+          matchedIn[index]++;
+          matchedOuts.get(index).append(batch[i]).append(System.lineSeparator());
+        } else {
+          missingOuts.get(index).append(batch[i]).append(System.lineSeparator());
+        }
+      }
+      if (any) {
+        matched++;
+      }
+      batch[i] = null;
+      keys[i] = null;
+    }
+    size = 0;
+  }
+
+  /** Look up the sorted batch in one index. */
+  private void resolve(int index) throws IOException {
+    boolean[] found = this.found[index];
+    Arrays.fill(found, 0, size, false);
+    for (LeafReaderContext context : readers.get(index).leaves()) {
+      LeafReader leaf = context.reader();
+      Terms terms = leaf.terms(field);
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = terms.iterator();
+      Bits liveDocs = leaf.getLiveDocs();
+      PostingsEnum postings = null;
+      for (int i = 0; i < size; i++) {
+        int j = order[i];
+        if (found[j] || keys[j].length == 0 || !termsEnum.seekExact(keys[j])) {
+          continue;
+        }
+        postings = termsEnum.postings(postings, PostingsEnum.NONE);
+        found[j] = hasLiveDoc(postings, liveDocs);
+      }
+    }
+  }
+
+  private static boolean hasLiveDoc(PostingsEnum postings, Bits liveDocs) throws IOException {
+    for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+      if (liveDocs == null || liveDocs.get(doc)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return the number of DOIs resolved so far */
+  public int getRecords() {
+    return records;
+  }
+
+  /** @return the number of resolved DOIs that were found in the index, or in any of the indexes */
+  public int getMatched() {
+    return matched;
+  }
+
+  /**
+   * @param index the position of the index in the list of readers
+   * @return the number of resolved DOIs that were found in that index
+   */
+  public int getMatched(int index) {
+    return matchedIn[index];
+  }
+}
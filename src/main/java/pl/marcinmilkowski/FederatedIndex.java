@@ -0,0 +1,174 @@
+package pl.marcinmilkowski;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Several indexes, e.g. one per publisher, searched as one. The indexes are combined in a
+ * {@link MultiReader}, and the searcher runs on an executor, so the segments of all indexes
+ * are searched concurrently. The index of each hit can be told from its document number.
+ */
+public class FederatedIndex implements Closeable {
+
+  private final List<String> names;
+  private final List<IndexReader> readers;
+  private final MultiReader reader;
+  private final IndexSearcher searcher;
+  private final int[] starts;
+  private final List<Closeable> resources;
+
+  /**
+   * @param indexes  the readers of the indexes by name, in the order of the results
+   * @param executor runs the searches of the index slices concurrently, or null to search in the calling thread
+   */
+  public FederatedIndex(Map<String, ? extends IndexReader> indexes, Executor executor) throws IOException {
+    this(indexes, executor, Collections.emptyList());
+  }
+
+  private FederatedIndex(Map<String, ? extends IndexReader> indexes, Executor executor, List<Closeable> resources)
+      throws IOException {
+    if (indexes.isEmpty()) {
+      throw new IllegalArgumentException("No indexes");
+    }
+    this.names = Collections.unmodifiableList(new ArrayList<>(indexes.keySet()));
+    this.readers = Collections.unmodifiableList(new ArrayList<>(indexes.values()));
+    // The sub-readers belong to the caller, or are closed with the resources
+    this.reader = new MultiReader(readers.toArray(new IndexReader[0]), false);
+    this.searcher = new IndexSearcher(reader, executor);
+    this.starts = new int[readers.size()];
+    for (int i = 1; i < readers.size(); i++) {
+      starts[i] = starts[i - 1] + readers.get(i - 1).maxDoc();
+    }
+    this.resources = resources;
+  }
+
+  /**
+   * Open the indexes in the given directories.
+   *
+   * @param indexDirs the index directories by name, see {@link #parse(String)}
+   * @param executor  runs the searches of the index slices concurrently, or null
+   * @return the federated index, which closes the indexes
+   * @throws IOException If an index cannot be opened
+   */
+  public static FederatedIndex open(Map<String, Path> indexDirs, Executor executor) throws IOException {
+    List<Closeable> resources = new ArrayList<>();
+    try {
+      Map<String, IndexReader> readers = new LinkedHashMap<>();
+      for (Map.Entry<String, Path> indexDir : indexDirs.entrySet()) {
+        Directory dir = FSDirectory.open(indexDir.getValue());
+        resources.add(dir);
+        DirectoryReader reader = DirectoryReader.open(dir);
+        resources.add(0, reader);
+        readers.put(indexDir.getKey(), reader);
+      }
+      return new FederatedIndex(readers, executor, resources);
+    } catch (IOException | RuntimeException e) {
+      for (Closeable resource : resources) {
+        try {
+          resource.close();
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Parse a list of index directories separated by ";", each one optionally named with "name=",
+   * e.g. "plos=C:/marcin/LuceneIndex-plos;C:/marcin/LuceneIndex-mdpi". An unnamed index is named
+   * after its directory, without a "LuceneIndex-" prefix.
+   *
+   * @param spec the list of index directories
+   * @return the index directories by name, in the order of the list
+   */
+  public static Map<String, Path> parse(String spec) {
+    Map<String, Path> indexDirs = new LinkedHashMap<>();
+    for (String index : spec.split(";")) {
+      index = index.trim();
+      if (index.isEmpty()) {
+        continue;
+      }
+      int equals = index.indexOf('=');
+      Path dir = Paths.get(equals < 0 ? index : index.substring(equals + 1).trim());
+      String name = equals < 0 ? dir.getFileName().toString().replaceFirst("^LuceneIndex-", "")
+          : index.substring(0, equals).trim();
+      if (indexDirs.put(name, dir) != null) {
+        throw new IllegalArgumentException("Two indexes named " + name);
+      }
+    }
+    return indexDirs;
+  }
+
+  /** @return the names of the indexes */
+  public List<String> getNames() {
+    return names;
+  }
+
+  /** @return the readers of the indexes, in the order of the names */
+  public List<IndexReader> getReaders() {
+    return readers;
+  }
+
+  /** @return the reader over all indexes */
+  public IndexReader getReader() {
+    return reader;
+  }
+
+  /** @return the concurrent searcher over all indexes */
+  public IndexSearcher getSearcher() {
+    return searcher;
+  }
+
+  /**
+   * @param doc a document number of the searcher over all indexes, e.g. of a hit
+   * @return the position of the index of the document in {@link #getNames()}
+   */
+  public int indexOf(int doc) {
+    return ReaderUtil.subIndex(doc, starts);
+  }
+
+  /**
+   * @param doc a document number of the searcher over all indexes, e.g. of a hit
+   * @return the name of the index of the document
+   */
+  public String getName(int doc) {
+    return names.get(indexOf(doc));
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+    IOException failure = null;
+    for (Closeable resource : resources) {
+      try {
+        resource.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,359 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetField;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.SortedSetSortField;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.io.IOException;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Lucene field types of the JSON values, so that numbers and dates can be searched by range
+ * and sorted. Numbers are indexed as points with sorted-numeric doc values, dates as epoch millis
+ * in the same way, and keywords as terms with sorted-set doc values; all of them are stored.
+ * The sorted (multi-valued) doc values allow the fields that come from arrays.
+ * Unmapped values are indexed as plain string terms. The mapping is read from a JSON schema,
+ * see {@link #fromSchema(JsonNode)}, or from a list like "year:long;score:double".
+ * <p>
+ * The values of the facet fields, see {@link #withFacets(String)}, are also indexed as sorted-set
+ * facets, so that they can be counted from the doc values without loading any stored fields.
+ * <p>
+ * Lucene requires a field to be indexed the same way in every document, so a value that does
+ * not fit the type of its field is left out and reported on stderr.
+ */
+public class FieldMapping {
+
+  /** The field types. */
+  public enum Type {
+    /** A string term with sorted-set doc values. */
+    KEYWORD,
+    /** A long point with sorted-numeric doc values. */
+    LONG,
+    /** A double point with sorted-numeric doc values. */
+    DOUBLE,
+    /** A date as epoch millis, indexed like {@link #LONG}. */
+    DATE
+  }
+
+  /** The file times added to every document. */
+  private static final Map<String, Type> FILE_FIELDS = Map.of("modified", Type.DATE, "created", Type.DATE,
+      "accessed", Type.DATE);
+
+  /** Only the file times are typed. */
+  public static final FieldMapping DEFAULT = new FieldMapping(Collections.emptyMap());
+
+  private final Map<String, Type> types;
+  private final Set<String> facets;
+  private final FacetsConfig facetsConfig = new FacetsConfig();
+
+  /**
+   * @param types the type of each dotted field name, see {@link JsonFlattener}
+   */
+  public FieldMapping(Map<String, Type> types) {
+    this(types, Collections.emptySet());
+  }
+
+  private FieldMapping(Map<String, Type> types, Set<String> facets) {
+    Map<String, Type> all = new HashMap<>(types);
+    all.putAll(FILE_FIELDS);
+    this.types = Collections.unmodifiableMap(all);
+    this.facets = Collections.unmodifiableSet(new LinkedHashSet<>(facets));
+    for (String facet : facets) {
+      // Array values give a document several values of a facet
+      facetsConfig.setMultiValued(facet, true);
+    }
+  }
+
+  /**
+   * Derive the mapping from the properties of a JSON schema: "integer" is {@link Type#LONG},
+   * "number" is {@link Type#DOUBLE}, "string" with the "date" or "date-time" format is
+   * {@link Type#DATE}, and other strings are {@link Type#KEYWORD}. Nested objects and array
+   * items get dotted names.
+   *
+   * @param schema the JSON schema
+   * @return the mapping
+   */
+  public static FieldMapping fromSchema(JsonNode schema) {
+    Map<String, Type> types = new HashMap<>();
+    collect(schema, "", types);
+    return new FieldMapping(types);
+  }
+
+  /**
+   * @param spec the field types, e.g. "year:long;score:double;published:date;journal.title:keyword"
+   * @return a mapping with these types on top of the types of this mapping
+   */
+  public FieldMapping with(String spec) {
+    Map<String, Type> all = new HashMap<>(types);
+    for (String entry : spec.split(";")) {
+      if (entry.isBlank()) {
+        continue;
+      }
+      int colon = entry.lastIndexOf(':');
+      if (colon < 0) {
+        throw new IllegalArgumentException("Expected field:type, got " + entry);
+      }
+      all.put(entry.substring(0, colon).trim(), Type.valueOf(entry.substring(colon + 1).trim().toUpperCase()));
+    }
+    return new FieldMapping(all, facets);
+  }
+
+  /**
+   * @param spec the facet fields, e.g. "journal;year;license"
+   * @return a mapping with these facet fields on top of the facet fields of this mapping
+   */
+  public FieldMapping withFacets(String spec) {
+    Set<String> all = new LinkedHashSet<>(facets);
+    for (String field : spec.split(";")) {
+      if (!field.isBlank()) {
+        all.add(field.trim());
+      }
+    }
+    return new FieldMapping(types, all);
+  }
+
+  /** @return the facet fields */
+  public Set<String> getFacets() {
+    return facets;
+  }
+
+  /** @return the facet configuration, for indexing and for counting */
+  public FacetsConfig getFacetsConfig() {
+    return facetsConfig;
+  }
+
+  /**
+   * Turn the facet fields of a document into the fields that are indexed, see {@link FacetsConfig#build(Document)}.
+   * Call it once all the values have been added.
+   *
+   * @param doc the document
+   * @return the document to be indexed
+   * @throws IOException If the facets cannot be built
+   */
+  public Document build(Document doc) throws IOException {
+    return facets.isEmpty() ? doc : facetsConfig.build(doc);
+  }
+
+  private static void collect(JsonNode schema, String prefix, Map<String, Type> types) {
+    Iterator<Map.Entry<String, JsonNode>> properties = schema.path("properties").fields();
+    while (properties.hasNext()) {
+      Map.Entry<String, JsonNode> property = properties.next();
+      String name = prefix.isEmpty() ? property.getKey() : prefix + "." + property.getKey();
+      collectValue(property.getValue(), name, types);
+    }
+  }
+
+  private static void collectValue(JsonNode schema, String name, Map<String, Type> types) {
+    String type = schema.path("type").asText(null);
+    if (schema.path("type").isArray()) {
+      // e.g. ["string", "null"]
+      for (JsonNode t : schema.path("type")) {
+        if (!t.asText().equals("null")) {
+          type = t.asText();
+          break;
+        }
+      }
+    }
+    if (type == null) {
+      return;
+    }
+    switch (type) {
+      case "object":
+        collect(schema, name, types);
+        break;
+      case "array":
+        collectValue(schema.path("items"), name, types);
+        break;
+      case "integer":
+        types.put(name, Type.LONG);
+        break;
+      case "number":
+        types.put(name, Type.DOUBLE);
+        break;
+      case "string":
+        String format = schema.path("format").asText("");
+        types.put(name, format.equals("date") || format.equals("date-time") ? Type.DATE : Type.KEYWORD);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * @param field the field name
+   * @return the type of the field, or null if it is not mapped
+   */
+  public Type getType(String field) {
+    return types.get(field);
+  }
+
+  /**
+   * Add a value to a document as its field type says.
+   *
+   * @param doc   the document
+   * @param field the field name
+   * @param value the value, as in the JSON file
+   */
+  public void addField(Document doc, String field, String value) {
+    if (facets.contains(field) && !value.isEmpty()) {
+      doc.add(new SortedSetDocValuesFacetField(field, value));
+    }
+    Type type = types.get(field);
+    if (type == null) {
+      doc.add(new StringField(field, value, Field.Store.YES));
+      return;
+    }
+    try {
+      switch (type) {
+        case KEYWORD:
+          doc.add(new StringField(field, value, Field.Store.YES));
+          doc.add(new SortedSetDocValuesField(field, new BytesRef(value)));
+          break;
+        case LONG:
+          addLong(doc, field, parseLong(value));
+          break;
+        case DOUBLE:
+          double d = Double.parseDouble(value);
+          doc.add(new DoublePoint(field, d));
+          doc.add(new SortedNumericDocValuesField(field, NumericUtils.doubleToSortableLong(d)));
+          doc.add(new StoredField(field, d));
+          break;
+        case DATE:
+          addLong(doc, field, parseDate(value));
+          break;
+      }
+    } catch (NumberFormatException | DateTimeParseException e) {
+      System.err.println("Left out " + field + "=\"" + value + "\", not a " + type.name().toLowerCase() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Add a long or a date value to a document.
+   *
+   * @param doc   the document
+   * @param field the field name
+   * @param value the value, as epoch millis for a date
+   */
+  public static void addLong(Document doc, String field, long value) {
+    doc.add(new LongPoint(field, value));
+    doc.add(new SortedNumericDocValuesField(field, value));
+    doc.add(new StoredField(field, value));
+  }
+
+  private static long parseLong(String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      // e.g. 2020.0 or 2e3
+      double d = Double.parseDouble(value);
+      if (d != Math.rint(d)) {
+        throw e;
+      }
+      return (long) d;
+    }
+  }
+
+  /**
+   * Parse a date in ISO 8601 form, with or without the time and the offset (UTC is assumed),
+   * or as a number of epoch millis.
+   *
+   * @param value the date
+   * @return the epoch millis
+   */
+  public static long parseDate(String value) {
+    value = value.trim();
+    if (!value.isEmpty() && value.chars().allMatch(Character::isDigit) && value.length() > 8) {
+      return Long.parseLong(value);
+    }
+    try {
+      return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      // try the forms without an offset
+    }
+    try {
+      return Instant.parse(value).toEpochMilli();
+    } catch (DateTimeParseException e) {
+      // try the forms without an offset
+    }
+    if (value.length() > 10) {
+      return LocalDateTime.parse(value).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+    return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+  }
+
+  /**
+   * Build a range query on a field, as its type says. An empty or null bound is open.
+   *
+   * @param field the field name
+   * @param min   the lower bound, inclusive
+   * @param max   the upper bound, inclusive
+   * @return the query
+   */
+  public Query rangeQuery(String field, String min, String max) {
+    boolean noMin = min == null || min.isEmpty();
+    boolean noMax = max == null || max.isEmpty();
+    Type type = types.getOrDefault(field, Type.KEYWORD);
+    switch (type) {
+      case LONG:
+        return LongPoint.newRangeQuery(field, noMin ? Long.MIN_VALUE : parseLong(min),
+            noMax ? Long.MAX_VALUE : parseLong(max));
+      case DATE:
+        return LongPoint.newRangeQuery(field, noMin ? Long.MIN_VALUE : parseDate(min),
+            noMax ? Long.MAX_VALUE : parseDate(max));
+      case DOUBLE:
+        return DoublePoint.newRangeQuery(field, noMin ? Double.NEGATIVE_INFINITY : Double.parseDouble(min),
+            noMax ? Double.POSITIVE_INFINITY : Double.parseDouble(max));
+      default:
+        return TermRangeQuery.newStringRange(field, noMin ? null : min, noMax ? null : max, true, true);
+    }
+  }
+
+  /**
+   * Build a sort on a field from its doc values, as its type says.
+   *
+   * @param field   the field name, which must be mapped
+   * @param reverse whether to sort in descending order
+   * @return the sort field
+   */
+  public SortField sortField(String field, boolean reverse) {
+    Type type = types.get(field);
+    if (type == null) {
+      throw new IllegalArgumentException("Cannot sort on the unmapped field " + field);
+    }
+    switch (type) {
+      case LONG:
+      case DATE:
+        return new SortedNumericSortField(field, SortField.Type.LONG, reverse);
+      case DOUBLE:
+        return new SortedNumericSortField(field, SortField.Type.DOUBLE, reverse);
+      default:
+        return new SortedSetSortField(field, reverse);
+    }
+  }
+}
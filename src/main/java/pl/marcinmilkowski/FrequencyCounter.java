@@ -0,0 +1,325 @@
+package pl.marcinmilkowski;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts token and n-gram frequencies of cleaned text, up to trigrams.
+ * <p>
+ * Every thread that adds text gets its own partial counts: a {@link TokenDictionary} that
+ * encodes the tokens as ids, and one {@link LongIntHashMap} per n-gram order, keyed by the
+ * ids packed into a long. When a partial count goes over its share of the memory budget,
+ * it is written to disk as a run sorted by n-gram and cleared. {@link #finish(Path, int)}
+ * writes the rest of the partial counts the same way and merges all the runs of each order
+ * into one frequency table, keeping the n-grams that occur at least a given number of times.
+ * <p>
+ * A token is a run of letters or digits, lowercased. N-grams do not cross sentence-final
+ * punctuation.
+ */
+public class FrequencyCounter {
+
+  /** The highest n-gram order, limited by the packing of the token ids into a long key. */
+  public static final int MAX_ORDER = 3;
+
+  private static final int ID_BITS = 21;
+  private static final int MAX_ID = (1 << ID_BITS) - 1;
+  private static final long ID_MASK = MAX_ID;
+
+  private final Path workDir;
+  private final int maxOrder;
+  private final long partialBudget;
+
+  private final ThreadLocal<Partial> partial = ThreadLocal.withInitial(this::newPartial);
+  private final List<Partial> partials = new ArrayList<>();
+  private final List<List<Path>> runs = new ArrayList<>();
+  private final AtomicInteger runCount = new AtomicInteger();
+
+  private long tokens = 0;
+  private final long[] types = new long[MAX_ORDER];
+
+  /**
+   * @param workDir      the directory for the sorted runs, which must exist
+   * @param maxOrder     the highest n-gram order to count, from 1 to {@link #MAX_ORDER}
+   * @param memoryBudget the approximate number of bytes for all partial counts together
+   * @param threads      the number of threads that add text, which share the budget
+   */
+  public FrequencyCounter(Path workDir, int maxOrder, long memoryBudget, int threads) {
+    if (maxOrder < 1 || maxOrder > MAX_ORDER) {
+      throw new IllegalArgumentException("The n-gram order must be between 1 and " + MAX_ORDER);
+    }
+    this.workDir = workDir;
+    this.maxOrder = maxOrder;
+    this.partialBudget = memoryBudget / Math.max(threads, 1);
+    for (int order = 0; order < maxOrder; order++) {
+      runs.add(new ArrayList<>());
+    }
+  }
+
+  /**
+   * Count the tokens and n-grams of a text, in the partial counts of the calling thread.
+   *
+   * @param text   the text
+   * @param length the length of the text in the array
+   * @throws IOException If the partial counts must be spilled and cannot be written
+   */
+  public void add(char[] text, int length) throws IOException {
+    partial.get().add(text, length);
+  }
+
+  /**
+   * Write the frequency table of each order to {@code <prefix>-<order>grams.tsv}, as lines
+   * with an n-gram, its words separated by spaces, a tab and its count, sorted by n-gram.
+   * Must be called once, after all threads are done adding text.
+   *
+   * @param outputPrefix the path prefix of the frequency tables
+   * @param minCount     the minimum count of the n-grams written
+   * @return the frequency tables, one per order
+   * @throws IOException If the runs cannot be read or the tables cannot be written
+   */
+  public List<Path> finish(Path outputPrefix, int minCount) throws IOException {
+    synchronized (partials) {
+      for (Partial p : partials) {
+        p.spill();
+        tokens += p.tokens;
+      }
+      partials.clear();
+    }
+    List<Path> tables = new ArrayList<>();
+    for (int order = 1; order <= maxOrder; order++) {
+      Path table = outputPrefix.resolveSibling(outputPrefix.getFileName() + "-" + order + "grams.tsv");
+      types[order - 1] = merge(runs.get(order - 1), table, minCount);
+      tables.add(table);
+    }
+    return tables;
+  }
+
+  /** @return the number of tokens counted, after {@link #finish(Path, int)} */
+  public long getTokens() {
+    return tokens;
+  }
+
+  /**
+   * @param order the n-gram order
+   * @return the number of distinct n-grams of the order, before the minimum count is applied,
+   *     after {@link #finish(Path, int)}
+   */
+  public long getTypes(int order) {
+    return types[order - 1];
+  }
+
+  private Partial newPartial() {
+    Partial p = new Partial();
+    synchronized (partials) {
+      partials.add(p);
+    }
+    return p;
+  }
+
+  /** Merge the sorted runs into one table, summing the counts of each n-gram. */
+  private long merge(List<Path> orderRuns, Path table, int minCount) throws IOException {
+    PriorityQueue<Run> queue = new PriorityQueue<>(Comparator.comparing((Run run) -> run.gram));
+    long distinct = 0;
+    try (BufferedWriter out = Files.newBufferedWriter(table, StandardCharsets.UTF_8)) {
+      for (Path path : orderRuns) {
+        Run run = new Run(Files.newBufferedReader(path, StandardCharsets.UTF_8));
+        if (run.next()) {
+          queue.add(run);
+        } else {
+          run.reader.close();
+        }
+      }
+      while (!queue.isEmpty()) {
+        Run run = queue.poll();
+        String gram = run.gram;
+        long count = 0;
+        while (true) {
+          count += run.count;
+          if (run.next()) {
+            queue.add(run);
+          } else {
+            run.reader.close();
+          }
+          if (queue.isEmpty() || !queue.peek().gram.equals(gram)) {
+            break;
+          }
+          run = queue.poll();
+        }
+        distinct++;
+        if (count >= minCount) {
+          out.write(gram);
+          out.write('\t');
+          out.write(Long.toString(count));
+          out.newLine();
+        }
+      }
+    } finally {
+      for (Run run : queue) {
+        run.reader.close();
+      }
+      for (Path path : orderRuns) {
+        Files.deleteIfExists(path);
+      }
+      orderRuns.clear();
+    }
+    return distinct;
+  }
+
+  /** A sorted run on disk, positioned at its current n-gram. */
+  private static final class Run {
+    final BufferedReader reader;
+    String gram;
+    long count;
+
+    Run(BufferedReader reader) {
+      this.reader = reader;
+    }
+
+    boolean next() throws IOException {
+      String line = reader.readLine();
+      if (line == null) {
+        return false;
+      }
+      int tab = line.lastIndexOf('\t');
+      gram = line.substring(0, tab);
+      count = Long.parseLong(line.substring(tab + 1));
+      return true;
+    }
+  }
+
+  /** The counts of one thread since its last spill. */
+  private final class Partial {
+    final TokenDictionary dictionary = new TokenDictionary();
+    final LongIntHashMap[] counts = new LongIntHashMap[maxOrder];
+    char[] token = new char[64];
+    int tokenLength = 0;
+    long history = 0;
+    int historyLength = 0;
+    long tokens = 0;
+
+    Partial() {
+      for (int order = 0; order < maxOrder; order++) {
+        counts[order] = new LongIntHashMap();
+      }
+    }
+
+    void add(char[] text, int length) throws IOException {
+      if (ramBytesUsed() > partialBudget) {
+        spill();
+      }
+      historyLength = 0;
+      for (int i = 0; i < length; i++) {
+        char c = text[i];
+        if (Character.isLetterOrDigit(c)) {
+          if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+          }
+          token[tokenLength++] = Character.toLowerCase(c);
+        } else {
+          endToken();
+          if (c == '.' || c == '!' || c == '?') {
+            historyLength = 0;
+          }
+        }
+      }
+      endToken();
+    }
+
+    private void endToken() throws IOException {
+      if (tokenLength == 0) {
+        return;
+      }
+      if (dictionary.size() == MAX_ID) {
+        // The ids would not fit in the keys; n-grams across this point are lost
+        spill();
+        historyLength = 0;
+      }
+      int id = dictionary.id(token, 0, tokenLength);
+      tokenLength = 0;
+      tokens++;
+      history = (history << ID_BITS) | id;
+      historyLength = Math.min(historyLength + 1, maxOrder);
+      for (int order = 1; order <= historyLength; order++) {
+        counts[order - 1].add(history & ((1L << (order * ID_BITS)) - 1), 1);
+      }
+    }
+
+    long ramBytesUsed() {
+      long bytes = dictionary.ramBytesUsed();
+      for (LongIntHashMap map : counts) {
+        bytes += map.ramBytesUsed();
+      }
+      return bytes;
+    }
+
+    /**
+     * Write each order as a run sorted by n-gram, and clear the counts. The tokens have only
+     * letters and digits, which sort after the space between them, so n-grams compared token by
+     * token, by the rank of each token in sorted order, are in the order of their strings. The
+     * keys are sorted as packed ranks, and each n-gram string is only built to be written.
+     */
+    void spill() throws IOException {
+      int[] sortedIds = dictionary.sortedIds();
+      int[] ranks = new int[sortedIds.length + 1];
+      for (int rank = 0; rank < sortedIds.length; rank++) {
+        ranks[sortedIds[rank]] = rank;
+      }
+      for (int order = 1; order <= maxOrder; order++) {
+        LongIntHashMap map = counts[order - 1];
+        if (map.isEmpty()) {
+          continue;
+        }
+        long[] keys = new long[map.size()];
+        int[] n = new int[1];
+        int gramOrder = order;
+        map.forEach((key, count) -> keys[n[0]++] = remap(key, gramOrder, ranks));
+        Arrays.sort(keys);
+        Path run = workDir.resolve("run-" + runCount.incrementAndGet() + "-" + order + ".tsv");
+        try (BufferedWriter out = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+          for (long rankKey : keys) {
+            long key = remap(rankKey, order, sortedIds);
+            out.write(gram(key, order));
+            out.write('\t');
+            out.write(Integer.toString(map.get(key)));
+            out.newLine();
+          }
+        }
+        synchronized (runs) {
+          runs.get(order - 1).add(run);
+        }
+        map.clear();
+      }
+      dictionary.clear();
+      historyLength = 0;
+    }
+
+    /** Replace each id or rank packed in the key with its value in the table. */
+    private long remap(long key, int order, int[] table) {
+      long remapped = 0;
+      for (int shift = (order - 1) * ID_BITS; shift >= 0; shift -= ID_BITS) {
+        remapped = (remapped << ID_BITS) | table[(int) ((key >>> shift) & ID_MASK)];
+      }
+      return remapped;
+    }
+
+    private String gram(long key, int order) {
+      StringBuilder gram = new StringBuilder();
+      for (int shift = (order - 1) * ID_BITS; shift >= 0; shift -= ID_BITS) {
+        if (gram.length() > 0) {
+          gram.append(' ');
+        }
+        gram.append(dictionary.token((int) ((key >>> shift) & ID_MASK)));
+      }
+      return gram.toString();
+    }
+  }
+}
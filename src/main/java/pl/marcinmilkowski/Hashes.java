@@ -0,0 +1,27 @@
+package pl.marcinmilkowski;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Content hashes that name cache entries, such as the files known to be valid and the compiled
+ * SRX rules.
+ */
+final class Hashes {
+
+  private Hashes() {
+  }
+
+  /**
+   * @param bytes the contents
+   * @return the SHA-256 hash of the contents, in lowercase hex
+   */
+  static String sha256(byte[] bytes) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package pl.marcinmilkowski;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits an index build into shards and merges them. A file goes to the shard given by the hash
+ * of its name below the root of the corpus source, so every process that walks the same input,
+ * on any machine, puts it in the same shard. Each shard is a complete index of its own, built
+ * by its own writer, in the directory next to the final index, e.g. "LuceneIndex-plos-shard-3".
+ * The shards are kept after the merge, so that they can be updated incrementally and merged again.
+ */
+public final class IndexShards {
+
+  private IndexShards() {
+  }
+
+  /**
+   * @param relativeName the name of the file below the root of the source, see {@link CorpusEntry#getRelativeName()}
+   * @param shards       the number of shards
+   * @return the shard of the file, from 0 to shards - 1
+   */
+  public static int shardOf(String relativeName, int shards) {
+    // String.hashCode is specified, so it is the same in every JVM
+    return Math.floorMod(relativeName.hashCode(), shards);
+  }
+
+  /**
+   * Parse a shard specification such as "3/8".
+   *
+   * @param spec the shard number and the number of shards, separated by "/"
+   * @return the shard and the number of shards
+   */
+  public static int[] parse(String spec) {
+    String[] parts = spec.trim().split("/");
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("Expected shard/shards, e.g. 3/8: " + spec);
+    }
+    int shard = Integer.parseInt(parts[0].trim());
+    int shards = Integer.parseInt(parts[1].trim());
+    if (shards < 1 || shard < 0 || shard >= shards) {
+      throw new IllegalArgumentException("No shard " + shard + " of " + shards);
+    }
+    return new int[]{shard, shards};
+  }
+
+  /**
+   * @param indexDir the directory of the final index
+   * @param shard    the shard number
+   * @return the directory of the shard, next to the final index
+   */
+  public static Path shardDir(Path indexDir, int shard) {
+    return indexDir.resolveSibling(indexDir.getFileName() + "-shard-" + shard);
+  }
+
+  /**
+   * @param file  a file written by a build, such as its metrics
+   * @param shard the shard number
+   * @return the file of the process that builds the shard, e.g. "indexer-metrics-shard-3.json"
+   */
+  public static Path shardFile(Path file, int shard) {
+    String name = file.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    String suffix = "-shard-" + shard;
+    return file.resolveSibling(dot > 0 ? name.substring(0, dot) + suffix + name.substring(dot) : name + suffix);
+  }
+
+  /**
+   * Replace the final index with the union of the shards. The segments of the shards are copied
+   * as they are, without analyzing the documents again, and then optionally merged down.
+   *
+   * @param indexDir    the directory of the final index
+   * @param shards      the number of shards, all of which must have been built
+   * @param config      the configuration of the writer of the final index; its open mode is set to create
+   * @param maxSegments the number of segments to merge down to, or 0 to keep the segments of the shards
+   * @throws IOException If a shard cannot be read or the index cannot be written
+   */
+  public static void merge(Path indexDir, int shards, IndexWriterConfig config, int maxSegments) throws IOException {
+    List<Directory> shardDirs = new ArrayList<>();
+    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    try (Directory dir = FSDirectory.open(indexDir); IndexWriter writer = new IndexWriter(dir, config)) {
+      for (int shard = 0; shard < shards; shard++) {
+        shardDirs.add(FSDirectory.open(shardDir(indexDir, shard)));
+      }
+      merge(writer, shardDirs, maxSegments);
+    } finally {
+      for (Directory shardDir : shardDirs) {
+        shardDir.close();
+      }
+    }
+  }
+
+  /**
+   * Add the shards to the writer, optionally merge it down, and commit it.
+   *
+   * @param writer      the writer of the final index
+   * @param shardDirs   the shards
+   * @param maxSegments the number of segments to merge down to, or 0 to keep the segments of the shards
+   * @throws IOException If a shard cannot be read or the index cannot be written
+   */
+  public static void merge(IndexWriter writer, List<Directory> shardDirs, int maxSegments) throws IOException {
+    writer.addIndexes(shardDirs.toArray(new Directory[0]));
+    if (maxSegments > 0) {
+      writer.forceMerge(maxSegments);
+    }
+    writer.commit();
+  }
+}
@@ -0,0 +1,448 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * A staged indexing pipeline: one thread walks the {@link CorpusSource}, a directory tree or an
+ * archive, and puts the JSON files on a bounded queue, a pool of workers reads, parses and
+ * validates them and builds the Lucene documents, and the workers add the documents concurrently to
+ * the shared (thread-safe) writer. The documents are built straight from the parser over the file
+ * bytes, unless the file has to be validated, see {@link SchemaValidator}; invalid files are
+ * handled according to the {@link InvalidFilePolicy}. Files that cannot be indexed are reported on
+ * stderr and counted, the other files go on. The time spent in each stage is recorded in the
+ * {@link Metrics}. The full text of each article is streamed into the index from its companion XML
+ * or text file, except for tar archives, whose entries cannot be looked up by name.
+ * <p>
+ * A pipeline can build one shard of the index only, see {@link #setShard(int, int)} and
+ * {@link IndexShards}, or all the shards at once with one writer per shard, so that the input is
+ * walked and read only once.
+ * <p>
+ * In incremental mode (see {@link #setKnownFiles(Map)}) only new or modified files are parsed,
+ * their documents are replaced using the "path" field as the unique key, and the documents
+ * of files that are gone are deleted.
+ */
+public class IndexingPipeline {
+
+  /** What to do with files that do not match the schema. */
+  public enum InvalidFilePolicy {
+    /** Index them anyway. */
+    INDEX,
+    /** Leave them out of the index. */
+    SKIP,
+    /** Leave them out of the index and copy them to the quarantine directory. */
+    QUARANTINE
+  }
+
+  /** Marks the end of the input for a worker. */
+  private static final Task POISON = new Task(null);
+
+  private final List<IndexWriter> writers;
+  private final ObjectMapper mapper;
+  private final SchemaValidator validator;
+  private final int threads;
+  private final int queueDepth;
+
+  private final AtomicInteger indexed = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicInteger invalid = new AtomicInteger();
+  private int unchanged = 0;
+  private int deleted = 0;
+
+  /** Paths and modification times of the documents already in the index, null for a full build. */
+  private Map<String, Long> knownFiles;
+
+  private Metrics metrics = new Metrics();
+  private FieldMapping fieldMapping = FieldMapping.DEFAULT;
+  private InvalidFilePolicy invalidFilePolicy = InvalidFilePolicy.INDEX;
+  private Path quarantineDir;
+  private int shard = 0;
+  private int shards = 1;
+
+  /**
+   * @param writer     the shared index writer
+   * @param mapper     the JSON mapper used by all workers
+   * @param validator  the schema validator, or null to skip validation
+   * @param threads    the number of parse/validate/index workers
+   * @param queueDepth the maximum number of files waiting for a worker
+   */
+  public IndexingPipeline(IndexWriter writer, ObjectMapper mapper, SchemaValidator validator, int threads, int queueDepth) {
+    this(List.of(writer), mapper, validator, threads, queueDepth);
+  }
+
+  /**
+   * Build all the shards of an index in one walk: each file goes to the writer of its shard,
+   * see {@link IndexShards#shardOf(String, int)}.
+   *
+   * @param shardWriters the writer of each shard, in the order of the shards
+   * @param mapper       the JSON mapper used by all workers
+   * @param validator    the schema validator, or null to skip validation
+   * @param threads      the number of parse/validate/index workers
+   * @param queueDepth   the maximum number of files waiting for a worker
+   */
+  public IndexingPipeline(List<IndexWriter> shardWriters, ObjectMapper mapper, SchemaValidator validator, int threads,
+                          int queueDepth) {
+    if (threads < 1 || queueDepth < 1) {
+      throw new IllegalArgumentException("threads and queueDepth must be positive");
+    }
+    if (shardWriters.isEmpty()) {
+      throw new IllegalArgumentException("No index writer");
+    }
+    this.writers = List.copyOf(shardWriters);
+    this.mapper = mapper;
+    this.validator = validator;
+    this.threads = threads;
+    this.queueDepth = queueDepth;
+  }
+
+  /**
+   * Switch to incremental mode. Files whose modification time equals the one stored in the index
+   * are skipped, and after the run the documents of the known files that were not seen are deleted.
+   *
+   * @param knownFiles the paths and modification times in the index, see {@link #readModifiedTimes(IndexReader)}
+   */
+  public void setKnownFiles(Map<String, Long> knownFiles) {
+    this.knownFiles = new HashMap<>(knownFiles);
+  }
+
+  /**
+   * Set the types of the indexed fields; by default only the file times are typed.
+   *
+   * @param fieldMapping the field types
+   */
+  public void setFieldMapping(FieldMapping fieldMapping) {
+    this.fieldMapping = fieldMapping;
+  }
+
+  /**
+   * Index only the files of one shard, see {@link IndexShards#shardOf(String, int)}.
+   *
+   * @param shard  the shard, from 0 to shards - 1
+   * @param shards the number of shards
+   */
+  public void setShard(int shard, int shards) {
+    if (writers.size() > 1) {
+      throw new IllegalStateException("The pipeline writes all " + writers.size() + " shards");
+    }
+    if (shards < 1 || shard < 0 || shard >= shards) {
+      throw new IllegalArgumentException("No shard " + shard + " of " + shards);
+    }
+    this.shard = shard;
+    this.shards = shards;
+  }
+
+  /**
+   * Record the stages in the given metrics, e.g. to share them with the commit.
+   *
+   * @param metrics the metrics
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /** @return the metrics of the stages */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Set what happens to files that do not match the schema; by default they are indexed.
+   *
+   * @param policy        the policy
+   * @param quarantineDir where invalid files are copied, keeping their path below the root of the source,
+   *                      for {@link InvalidFilePolicy#QUARANTINE}
+   */
+  public void setInvalidFilePolicy(InvalidFilePolicy policy, Path quarantineDir) {
+    if (policy == InvalidFilePolicy.QUARANTINE && quarantineDir == null) {
+      throw new IllegalArgumentException("No quarantine directory");
+    }
+    this.invalidFilePolicy = policy;
+    this.quarantineDir = quarantineDir;
+  }
+
+  /**
+   * Read the stored "path" and "modified" fields of all live documents.
+   * <p>
+   * Indexes built before the file times were typed, see {@link FieldMapping#addLong}, have them as
+   * string terms. Lucene does not allow a field to change its type, so such an index cannot be
+   * updated and has to be rebuilt.
+   *
+   * @param reader the index reader
+   * @return the modification time for each indexed path
+   * @throws IOException If the stored fields cannot be read, or the index has to be rebuilt
+   */
+  public static Map<String, Long> readModifiedTimes(IndexReader reader) throws IOException {
+    FieldInfo modifiedInfo = FieldInfos.getMergedFieldInfos(reader).fieldInfo("modified");
+    if (modifiedInfo != null && modifiedInfo.getPointDimensionCount() == 0) {
+      throw new IOException("The index stores the file times as strings, so it cannot be updated;"
+          + " rebuild it without indexer.incremental");
+    }
+    Map<String, Long> modifiedTimes = new HashMap<>();
+    for (LeafReaderContext context : reader.leaves()) {
+      LeafReader leaf = context.reader();
+      Bits liveDocs = leaf.getLiveDocs();
+      StoredFields storedFields = leaf.storedFields();
+      for (int i = 0; i < leaf.maxDoc(); i++) {
+        if (liveDocs != null && !liveDocs.get(i)) {
+          continue;
+        }
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor("path", "modified");
+        storedFields.document(i, visitor);
+        Document doc = visitor.getDocument();
+        String path = doc.get("path");
+        IndexableField modified = doc.getField("modified");
+        if (path != null && modified != null && modified.numericValue() != null) {
+          modifiedTimes.put(path, modified.numericValue().longValue());
+        }
+      }
+    }
+    return modifiedTimes;
+  }
+
+  /**
+   * Index all JSON files under the given directory, or in the given archive, and wait until every worker is done.
+   *
+   * @param startingDir The starting directory, or a zip or tar archive, see {@link CorpusSource#open(Path)}
+   * @throws IOException If the directory cannot be walked
+   * @throws InterruptedException If the calling thread is interrupted while waiting
+   */
+  public void run(Path startingDir) throws IOException, InterruptedException {
+    try (CorpusSource source = CorpusSource.open(startingDir)) {
+      run(source);
+    }
+  }
+
+  /**
+   * Index all JSON files of the source and wait until every worker is done.
+   *
+   * @param source The input files
+   * @throws IOException If the source cannot be read
+   * @throws InterruptedException If the calling thread is interrupted while waiting
+   */
+  public void run(CorpusSource source) throws IOException, InterruptedException {
+    metrics.walkStarted();
+    BlockingQueue<Task> queue = new ArrayBlockingQueue<>(queueDepth);
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      futures.add(workers.submit(() -> work(queue)));
+    }
+    Predicate<String> accept = name -> name.endsWith(".json")
+        && (shards == 1 || IndexShards.shardOf(name, shards) == shard);
+    try {
+      source.walk(accept, new CorpusSource.EntryVisitor() {
+        @Override
+        public void visit(CorpusEntry entry) throws IOException {
+          if (knownFiles != null) {
+            Long modified = knownFiles.remove(entry.getName());
+            if (modified != null && modified == entry.getAttributes().lastModifiedTime().toMillis()) {
+              unchanged++;
+              return;
+            }
+          }
+          metrics.discovered();
+          try {
+            queue.put(new Task(entry));
+          } catch (InterruptedException e) {
+            throw new WalkInterruptedException(e);
+          }
+        }
+
+        @Override
+        public void visitFailed(String name, IOException e) {
+          report(name, e);
+        }
+      });
+      metrics.walkDone();
+    } catch (WalkInterruptedException e) {
+      workers.shutdownNow();
+      throw (InterruptedException) e.getCause();
+    } catch (IOException | RuntimeException e) {
+      workers.shutdownNow();
+      throw e;
+    }
+    for (int i = 0; i < threads; i++) {
+      queue.put(POISON);
+    }
+    workers.shutdown();
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throw new IOException("Indexing worker died", e.getCause());
+      }
+    }
+    if (knownFiles != null) {
+      deleteMissing();
+    }
+  }
+
+  private void deleteMissing() throws IOException {
+    Term[] terms = new Term[knownFiles.size()];
+    int i = 0;
+    for (String path : knownFiles.keySet()) {
+      terms[i++] = new Term("path", path);
+    }
+    // The paths are unique, so each one is deleted from the shard that has it
+    for (IndexWriter writer : writers) {
+      writer.deleteDocuments(terms);
+    }
+    deleted = terms.length;
+    knownFiles.clear();
+  }
+
+  private Void work(BlockingQueue<Task> queue) throws InterruptedException {
+    while (true) {
+      Task task = queue.take();
+      if (task == POISON) {
+        return null;
+      }
+      try {
+        if (index(task.entry)) {
+          indexed.incrementAndGet();
+        }
+      } catch (IOException | RuntimeException e) {
+        report(task.entry.getName(), e);
+      }
+    }
+  }
+
+  /** @return false if the file was left out because it is invalid */
+  private boolean index(CorpusEntry entry) throws IOException {
+    String file = entry.getName();
+    BasicFileAttributes attrs = entry.getAttributes();
+    Metrics.Timer timer = metrics.start(Metrics.Stage.READ, file);
+    byte[] bytes = entry.readAllBytes();
+    timer.stop(bytes.length);
+    Document doc;
+    String hash = validator != null ? SchemaValidator.hash(bytes) : null;
+    if (validator != null && !validator.isKnownValid(hash)) {
+      // The validator needs the tree, so the document is built from it
+      timer = metrics.start(Metrics.Stage.VALIDATE, file);
+      JsonNode json = mapper.readTree(bytes);
+      boolean valid = validator.validate(file, hash, json);
+      timer.stop(bytes.length);
+      if (!valid) {
+        invalid.incrementAndGet();
+        if (invalidFilePolicy != InvalidFilePolicy.INDEX) {
+          leaveOut(entry, bytes);
+          metrics.fileDone(bytes.length);
+          return false;
+        }
+      }
+      timer = metrics.start(Metrics.Stage.PARSE, file);
+      doc = JSONIndexer.createDocument(file.toString(), attrs, json, fieldMapping);
+    } else {
+      timer = metrics.start(Metrics.Stage.PARSE, file);
+      try (JsonParser parser = mapper.getFactory().createParser(bytes)) {
+        doc = JSONIndexer.createDocument(file.toString(), attrs, parser, fieldMapping);
+      }
+    }
+    timer.stop(bytes.length);
+    timer = metrics.start(Metrics.Stage.INDEX, file);
+    try (Reader contents = entry.getFile() != null ? JSONIndexer.openCompanionText(entry.getFile()) : null) {
+      if (contents != null) {
+        doc.add(new TextField(JSONIndexer.CONTENTS_FIELD, contents));
+      }
+      if (knownFiles != null) {
+        writerOf(entry).updateDocument(new Term("path", file), doc);
+      } else {
+        writerOf(entry).addDocument(doc);
+      }
+    }
+    timer.stop(0);
+    metrics.fileDone(bytes.length);
+    return true;
+  }
+
+  private void leaveOut(CorpusEntry entry, byte[] bytes) throws IOException {
+    if (knownFiles != null) {
+      // An older, valid version may be in the index
+      writerOf(entry).deleteDocuments(new Term("path", entry.getName()));
+    }
+    if (invalidFilePolicy == InvalidFilePolicy.QUARANTINE) {
+      Path target = quarantineDir.resolve(entry.getRelativeName());
+      Files.createDirectories(target.getParent());
+      Files.write(target, bytes);
+      Files.setLastModifiedTime(target, entry.getAttributes().lastModifiedTime());
+    }
+  }
+
+  /** @return the writer of the shard of the entry */
+  private IndexWriter writerOf(CorpusEntry entry) {
+    return writers.size() == 1 ? writers.get(0) : writers.get(IndexShards.shardOf(entry.getRelativeName(), writers.size()));
+  }
+
+  private void report(String file, Exception e) {
+    failed.incrementAndGet();
+    metrics.fileFailed();
+    System.err.println("Could not index " + file + ": " + e);
+  }
+
+  /** @return the number of documents added so far */
+  public int getIndexed() {
+    return indexed.get();
+  }
+
+  /** @return the number of files that could not be indexed */
+  public int getFailed() {
+    return failed.get();
+  }
+
+  /** @return the number of files that do not match the schema */
+  public int getInvalid() {
+    return invalid.get();
+  }
+
+  /** @return the number of files skipped in incremental mode because they did not change */
+  public int getUnchanged() {
+    return unchanged;
+  }
+
+  /** @return the number of documents deleted in incremental mode because their files are gone */
+  public int getDeleted() {
+    return deleted;
+  }
+
+  private static final class WalkInterruptedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    WalkInterruptedException(InterruptedException cause) {
+      super(cause);
+    }
+  }
+
+  private static final class Task {
+    final CorpusEntry entry;
+
+    Task(CorpusEntry entry) {
+      this.entry = entry;
+    }
+  }
+}
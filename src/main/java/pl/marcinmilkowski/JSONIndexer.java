@@ -1,85 +1,291 @@
 package pl.marcinmilkowski;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.fge.jsonschema.core.exceptions.ProcessingException;
 import com.github.fge.jsonschema.main.JsonSchema;
 import com.github.fge.jsonschema.main.JsonSchemaFactory;
 
 public class JSONIndexer {
   private static final String INDEX_DIR = "C:/marcin/LuceneIndex-plos";
-  private static final String JSON_DIR = "C:/marcin/plos_review/reviewed_articles";
-  //private static final String FIELD_NAME = "contents";
+  //A directory, or a zip or tar.gz archive of the files, see CorpusSource
+  private static final String JSON_DIR = System.getProperty("indexer.input", "C:/marcin/plos_review/reviewed_articles");
+  private static final String SCHEMA_FILE = "C:/marcin/review_schema.json";
+  /** The tokenized full text of the article, from the XML or text file next to the metadata file. */
+  public static final String CONTENTS_FIELD = "contents";
 
-  public static void main(String[] args) throws IOException, ProcessingException {
-    Directory dir = FSDirectory.open(Paths.get(INDEX_DIR));
-    IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
-    IndexWriter writer = new IndexWriter(dir, config);
+  //Pipeline settings, can be overridden with -Dindexer.threads=... etc.
+  private static final int THREADS = Integer.getInteger("indexer.threads", Runtime.getRuntime().availableProcessors());
+  private static final int QUEUE_DEPTH = Integer.getInteger("indexer.queueDepth", 1024);
+  private static final double RAM_BUFFER_MB = Double.parseDouble(System.getProperty("indexer.ramBufferMB",
+      Double.toString(IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB)));
+  //Re-index only new and modified files, and delete the documents of removed files
+  private static final boolean INCREMENTAL = Boolean.getBoolean("indexer.incremental");
+
+  //Validation settings: the cache of valid files, the JSON lines report of the errors,
+  //and what to do with invalid files: index, skip or quarantine
+  static final Path VALIDATION_CACHE_DIR = Paths.get(System.getProperty("indexer.validationCache",
+      Paths.get(System.getProperty("java.io.tmpdir"), "corpora-utils-validation").toString()));
+  private static final Path VALIDATION_REPORT = Paths.get(System.getProperty("indexer.validationReport",
+      Paths.get(INDEX_DIR).resolveSibling("validation-report.jsonl").toString()));
+  private static final IndexingPipeline.InvalidFilePolicy INVALID_FILES = IndexingPipeline.InvalidFilePolicy.valueOf(
+      System.getProperty("indexer.invalid", "index").toUpperCase());
+  //Extra field types on top of the ones derived from the schema, e.g. "year:long;published:date"
+  private static final String FIELD_TYPES = System.getProperty("indexer.fieldTypes", "");
+  //Metadata fields also indexed as facets, to be counted by JSONSearcher without loading documents, e.g. "journal;year"
+  private static final String FACETS = System.getProperty("indexer.facets", "");
+  private static final Path QUARANTINE_DIR = Paths.get(System.getProperty("indexer.quarantineDir",
+      Paths.get(JSON_DIR).resolveSibling("quarantine").toString()));
+
+  //Run metrics: a progress line every few seconds (0 for none), and the JSON summary of the stages
+  private static final int PROGRESS_SECONDS = Integer.getInteger("indexer.progressSeconds", 30);
+  private static final Path METRICS_FILE = Paths.get(System.getProperty("indexer.metricsFile",
+      Paths.get(INDEX_DIR).resolveSibling("indexer-metrics.json").toString()));
+
+  //Sharded build, see IndexShards: indexer.shards=N builds N shards in this process, in one walk over the input,
+  //and merges them; indexer.shard=i/N builds only shard i, e.g. in one of N processes, with its own validation
+  //report, metrics file and validation cache file, named with a "-shard-i" suffix; indexer.mergeShards=N only
+  //merges N shards.
+  //The merged index is force-merged down to indexer.forceMerge segments, if set.
+  private static final int SHARDS = Integer.getInteger("indexer.shards", 1);
+  private static final String SHARD = System.getProperty("indexer.shard");
+  private static final int MERGE_SHARDS = Integer.getInteger("indexer.mergeShards", 0);
+  private static final int FORCE_MERGE = Integer.getInteger("indexer.forceMerge", 0);
+
+  /** One flattener per thread, so that its cache of dotted field names is reused across documents. */
+  private static final ThreadLocal<JsonFlattener> FLATTENER = ThreadLocal.withInitial(JsonFlattener::new);
+
+  public static void main(String[] args) throws IOException, ProcessingException, InterruptedException {
+    Path indexDir = Paths.get(INDEX_DIR);
+    Metrics metrics = new Metrics();
+    if (MERGE_SHARDS > 0) {
+      merge(indexDir, MERGE_SHARDS, metrics);
+      metrics.writeJson(METRICS_FILE);
+      return;
+    }
 
     Path startingDir = Paths.get(JSON_DIR);
     ObjectMapper mapper = new ObjectMapper();
     JsonSchemaFactory schemaFactory = JsonSchemaFactory.byDefault();
     
     // Read the byte[] from the file and convert it to a JsonNode
-    JsonNode node = mapper.readTree(Files.readAllBytes(Paths.get("C:/marcin/review_schema.json")));
+    byte[] schemaSource = Files.readAllBytes(Paths.get(SCHEMA_FILE));
+    JsonNode node = mapper.readTree(schemaSource);
     // Get the JsonSchema from the JsonNode
     JsonSchema schema = schemaFactory.getJsonSchema(node);
     /* JsonSchema schema = schemaFactory.getJsonSchema(new String(Files.readAllBytes(Paths.get("C:/marcin/review_schema.json"))), StandardCharsets.UTF_8); */
 
-    Files.walkFileTree(startingDir, new SimpleFileVisitor<Path>() {
-      @Override
-      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException{
-        if (file.toString().endsWith(".json")) {
-          JsonNode json = mapper.readTree(new String(Files.readAllBytes(file)));
-
-          try {
-            // Validate the JSON node against the schema
-            schema.validate(json);
-          } catch (ProcessingException e) {
-            // Handle the exception
-            e.printStackTrace();
-          }
-          Document doc = new Document();
-          doc.add(new StringField("filename", file.toString(), Field.Store.YES));
-          doc.add(new StringField("path", file.toString(), Field.Store.YES));
-          doc.add(new StringField("modified", Long.toString(attrs.lastModifiedTime().toMillis()), Field.Store.YES));
-          doc.add(new StringField("created", Long.toString(attrs.creationTime().toMillis()), Field.Store.YES));
-          doc.add(new StringField("accessed", Long.toString(attrs.lastAccessTime().toMillis()), Field.Store.YES));
-          doc.add(new StringField("type", "json", Field.Store.YES));
-
-          if (json.isObject()) {
-            ObjectNode object = (ObjectNode) json;
-            object.fields().forEachRemaining(entry -> {
-              String key = entry.getKey();
-              JsonNode value = entry.getValue();
-              if (value.isTextual()) {
-                doc.add(new StringField(key, value.asText(), Field.Store.YES));
-              } else if (value.isNumber()) {
-                doc.add(new StringField(key, value.asText(), Field.Store.YES));
-              } else if (value.isBoolean()) {
-                doc.add(new StringField(key, Boolean.toString(value.asBoolean()), Field.Store.YES));
-              }
-            });
+    FieldMapping fieldMapping = FieldMapping.fromSchema(node).with(FIELD_TYPES).withFacets(FACETS);
+    int[] shard = SHARD != null ? IndexShards.parse(SHARD) : null;
+    // Processes building one shard each write their own report, metrics and validation cache
+    Path report = shard != null ? IndexShards.shardFile(VALIDATION_REPORT, shard[0]) : VALIDATION_REPORT;
+    Path metricsFile = shard != null ? IndexShards.shardFile(METRICS_FILE, shard[0]) : METRICS_FILE;
+    String cacheSuffix = shard != null ? "-shard-" + shard[0] : "";
+
+    try (SchemaValidator validator = new SchemaValidator(schema, schemaSource, VALIDATION_CACHE_DIR, cacheSuffix,
+        report)) {
+      metrics.startProgress(System.out, PROGRESS_SECONDS);
+      try {
+        if (shard != null) {
+          build(List.of(IndexShards.shardDir(indexDir, shard[0])), startingDir, shard[0], shard[1], mapper, validator,
+              fieldMapping, metrics);
+        } else if (SHARDS > 1) {
+          // One walk over the input feeds a writer per shard, with a share of the memory each
+          List<Path> shardDirs = new ArrayList<>();
+          for (int i = 0; i < SHARDS; i++) {
+            shardDirs.add(IndexShards.shardDir(indexDir, i));
           }
+          build(shardDirs, startingDir, 0, SHARDS, mapper, validator, fieldMapping, metrics);
+          merge(indexDir, SHARDS, metrics);
+        } else {
+          build(List.of(indexDir), startingDir, 0, 1, mapper, validator, fieldMapping, metrics);
+        }
+      } finally {
+        metrics.stopProgress();
+      }
+      System.out.println("Validated: " + validator.getValidated() + ", known valid: " + validator.getCacheHits()
+          + " (invalid files: " + INVALID_FILES.name().toLowerCase() + ")");
+    }
+    System.out.println(metrics.progressLine());
+    metrics.writeJson(metricsFile);
+  }
 
-          writer.addDocument(doc);
+  /**
+   * Build one index, one shard of it, or all the shards in one walk over the input, and commit them.
+   *
+   * @param indexDirs the index directory, or the directory of each shard to build them all
+   * @param shard     the shard built alone, with one index directory
+   * @param shards    the number of shards
+   * @return the pipeline, with the counts of the run
+   */
+  private static IndexingPipeline build(List<Path> indexDirs, Path startingDir, int shard, int shards,
+                                        ObjectMapper mapper, SchemaValidator validator, FieldMapping fieldMapping,
+                                        Metrics metrics)
+      throws IOException, InterruptedException {
+    List<Directory> dirs = new ArrayList<>();
+    List<IndexWriter> writers = new ArrayList<>();
+    try {
+      for (Path indexDir : indexDirs) {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setRAMBufferSizeMB(RAM_BUFFER_MB / indexDirs.size());
+        config.setOpenMode(INCREMENTAL ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE);
+        dirs.add(FSDirectory.open(indexDir));
+        writers.add(new IndexWriter(dirs.get(dirs.size() - 1), config));
+      }
+      IndexingPipeline pipeline = new IndexingPipeline(writers, mapper, validator, THREADS, QUEUE_DEPTH);
+      pipeline.setInvalidFilePolicy(INVALID_FILES, QUARANTINE_DIR);
+      pipeline.setFieldMapping(fieldMapping);
+      if (writers.size() == 1) {
+        pipeline.setShard(shard, shards);
+      }
+      pipeline.setMetrics(metrics);
+      if (INCREMENTAL) {
+        Map<String, Long> knownFiles = new HashMap<>();
+        for (IndexWriter writer : writers) {
+          try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            knownFiles.putAll(IndexingPipeline.readModifiedTimes(reader));
+          }
         }
-        return FileVisitResult.CONTINUE;
+        pipeline.setKnownFiles(knownFiles);
       }
-    });
+      pipeline.run(startingDir);
+      String name = writers.size() > 1 ? shards + " shards" : shards > 1 ? "Shard " + shard + "/" + shards : "Index";
+      System.out.println(name + ": indexed " + pipeline.getIndexed() + " files, failed: " + pipeline.getFailed()
+          + ", invalid: " + pipeline.getInvalid());
+      if (INCREMENTAL) {
+        System.out.println(name + ": unchanged " + pipeline.getUnchanged() + ", deleted: " + pipeline.getDeleted());
+      }
+      for (int i = 0; i < writers.size(); i++) {
+        Metrics.Timer timer = metrics.start(Metrics.Stage.COMMIT, indexDirs.get(i));
+        writers.get(i).commit();
+        timer.stop(0);
+      }
+      return pipeline;
+    } finally {
+      try {
+        IOUtils.close(writers);
+      } finally {
+        IOUtils.close(dirs);
+      }
+    }
+  }
+
+  /** Merge the shards into the final index, see {@link IndexShards#merge(Path, int, IndexWriterConfig, int)}. */
+  private static void merge(Path indexDir, int shards, Metrics metrics) throws IOException {
+    IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+    config.setRAMBufferSizeMB(RAM_BUFFER_MB);
+    Metrics.Timer timer = metrics.start(Metrics.Stage.MERGE, indexDir);
+    IndexShards.merge(indexDir, shards, config, FORCE_MERGE);
+    timer.stop(0);
+    System.out.println("Merged " + shards + " shards into " + indexDir
+        + (FORCE_MERGE > 0 ? " (" + FORCE_MERGE + " segments at most)" : ""));
+  }
+
+  /**
+   * Find the full-text file of a JSON metadata file: the XML or the text file with the same name.
+   *
+   * @param jsonFile the JSON metadata file
+   * @return the full-text file, or null if there is none
+   */
+  static Path findCompanion(Path jsonFile) {
+    String name = jsonFile.getFileName().toString();
+    String baseName = name.substring(0, name.length() - ".json".length());
+    for (String extension : new String[]{".xml", ".txt"}) {
+      Path companion = jsonFile.resolveSibling(baseName + extension);
+      if (Files.isRegularFile(companion)) {
+        return companion;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Open the cleaned full text of a JSON metadata file, if there is one.
+   * XML is stripped of tags, comments and entities while it is read.
+   *
+   * @param jsonFile the JSON metadata file
+   * @return a reader over the full text, or null if there is no full-text file
+   * @throws IOException If the full-text file cannot be opened
+   */
+  static Reader openCompanionText(Path jsonFile) throws IOException {
+    Path companion = findCompanion(jsonFile);
+    if (companion == null) {
+      return null;
+    }
+    Reader reader = Files.newBufferedReader(companion, StandardCharsets.UTF_8);
+    return companion.toString().endsWith(".xml") ? new XmlTextReader(reader) : reader;
+  }
+
+  /**
+   * Build the Lucene document for a JSON metadata file that has already been parsed into a tree.
+   *
+   * @param name    the name of the file, see {@link CorpusEntry#getName()}
+   * @param attrs   the file attributes
+   * @param json    the parsed contents of the file
+   * @param mapping the field types
+   * @return the document to be indexed
+   * @throws IOException If the JSON cannot be read back from the tree
+   * @see #createDocument(String, BasicFileAttributes, JsonParser, FieldMapping)
+   */
+  static Document createDocument(String name, BasicFileAttributes attrs, JsonNode json, FieldMapping mapping)
+      throws IOException {
+    try (JsonParser parser = json.traverse()) {
+      return createDocument(name, attrs, parser, mapping);
+    }
+  }
+
+  /**
+   * Build the Lucene document for a JSON metadata file straight from the parser, without a tree.
+   * All scalar values of the JSON object are indexed with the field types of the mapping, nested
+   * ones under dotted names (see {@link JsonFlattener}); the top-level DOI is also indexed in
+   * normalized form for exact lookups, and the file times as dates.
+   *
+   * @param name    the name of the file, see {@link CorpusEntry#getName()}
+   * @param attrs   the file attributes
+   * @param parser  the parser over the contents of the file, positioned before the object
+   * @param mapping the field types
+   * @return the document to be indexed
+   * @throws IOException If the JSON is malformed
+   */
+  static Document createDocument(String name, BasicFileAttributes attrs, JsonParser parser, FieldMapping mapping)
+      throws IOException {
+    Document doc = new Document();
+    doc.add(new StringField("filename", name, Field.Store.YES));
+    doc.add(new StringField("path", name, Field.Store.YES));
+    FieldMapping.addLong(doc, "modified", attrs.lastModifiedTime().toMillis());
+    FieldMapping.addLong(doc, "created", attrs.creationTime().toMillis());
+    FieldMapping.addLong(doc, "accessed", attrs.lastAccessTime().toMillis());
+    doc.add(new StringField("type", "json", Field.Store.YES));
 
-    writer.close();
+    FLATTENER.get().flatten(parser, (key, value) -> {
+      String text = value.getText();
+      mapping.addField(doc, key, text);
+      if (key.equals("doi") && value.currentToken() == JsonToken.VALUE_STRING) {
+        doc.add(new StringField(DoiMatcher.DOI_KEY_FIELD, DoiMatcher.normalize(text), Field.Store.NO));
+      }
+    });
+    return mapping.build(doc);
   }
 }
@@ -1,57 +1,313 @@
 package pl.marcinmilkowski;
 
 import org.apache.commons.csv.CSVFormat;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.csv.CSVRecord;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.*;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.Facets;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.FacetsCollectorManager;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.facet.sortedset.ConcurrentSortedSetDocValuesFacetCounts;
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class JSONSearcher {
   private static final String INDEX_DIR = "C:/marcin/LuceneIndex-mdpi";
   private static final String CSV_FILE = "C:/marcin/mdpi_papers.csv";
-  private static final String FIELD_NAME = "doi";
+  private static final String MATCHED_FILE = "C:/marcin/mdpi_papers-matched.txt";
+  private static final String MISSING_FILE = "C:/marcin/mdpi_papers-missing.txt";
+  private static final String FIELD_NAME = DoiMatcher.DOI_KEY_FIELD;
   private static final String CSV_FIELD_NAME = "DOI";
+  //Number of DOIs looked up together
+  private static final int BATCH_SIZE = Integer.getInteger("searcher.batchSize", 4096);
+
+  //Federated search: several indexes searched together, e.g. "plos=C:/marcin/LuceneIndex-plos;C:/marcin/LuceneIndex-mdpi",
+  //see FederatedIndex. The DOIs are then matched against each index, with matched and missing files per index.
+  private static final String INDEXES = System.getProperty("searcher.indexes", INDEX_DIR);
+  //Threads searching the segments of the indexes concurrently
+  private static final int THREADS = Integer.getInteger("searcher.threads", Runtime.getRuntime().availableProcessors());
+
+  //Query mode: a range on a typed field and/or a sort, e.g. -Dsearcher.rangeField=year -Dsearcher.min=2015
+  //-Dsearcher.sort=-modified (descending); the field types come from the schema, see FieldMapping
+  private static final String SCHEMA_FILE = "C:/marcin/review_schema.json";
+  private static final String FIELD_TYPES = System.getProperty("searcher.fieldTypes", "");
+  private static final String RANGE_FIELD = System.getProperty("searcher.rangeField");
+  private static final String RANGE_MIN = System.getProperty("searcher.min");
+  private static final String RANGE_MAX = System.getProperty("searcher.max");
+  private static final String SORT = System.getProperty("searcher.sort");
+  private static final int TOP = Integer.getInteger("searcher.top", 20);
+
+  //Aggregation mode: count the documents per value of the facet fields indexed with -Dindexer.facets, e.g.
+  //-Dsearcher.facets=journal;year, counting the segments in parallel. The counts can be restricted to the
+  //documents in the range above and/or matching a query on the metadata terms, e.g. -Dsearcher.filter=review_type:r
+  private static final String FACETS = System.getProperty("searcher.facets");
+  private static final String FILTER = System.getProperty("searcher.filter");
+
+  //Service mode: if a port is set, serve lookups over HTTP on localhost until stopped, see SearchService
+  private static final Integer PORT = Integer.getInteger("searcher.port");
+  private static final int CACHE_SIZE = Integer.getInteger("searcher.cacheSize", 10000);
+  private static final long REFRESH_MILLIS = Long.getLong("searcher.refreshMillis", 1000);
 
   public static void main(String[] args) {
+    if (PORT != null) {
+      try {
+        Directory dir = FSDirectory.open(Paths.get(INDEX_DIR));
+        SearchService service = new SearchService(dir, new StandardAnalyzer(), readFieldMapping().with(FIELD_TYPES),
+            PORT, CACHE_SIZE, REFRESH_MILLIS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            service.close();
+            dir.close();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }));
+        System.out.println("Serving " + INDEX_DIR + " on http://localhost:" + service.getPort() + "/");
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
     try {
-      Directory dir = FSDirectory.open(Paths.get(INDEX_DIR));
-      IndexReader reader = DirectoryReader.open(dir);
-      IndexSearcher searcher = new IndexSearcher(reader);
-
-      BufferedReader csvReader = new BufferedReader(new FileReader(CSV_FILE));
-      Iterable<CSVRecord> records = CSVFormat.EXCEL.withFirstRecordAsHeader().parse(csvReader);
-      int count = 0;
-      int recordsCount = 0;
-      Set<String> uniqueFound = new HashSet<>();
+      search(executor);
+    } finally {
+      executor.shutdown();
+    }
+  }
 
-      for (CSVRecord record : records) {
-        String doi = record.get(CSV_FIELD_NAME);
-        recordsCount++;
-        Query query = new MatchAllDocsQuery();
-        TopDocs docs = searcher.search(query, 100);
-        for (ScoreDoc scoreDoc : docs.scoreDocs) {
-          String indexedDoi = reader.document(scoreDoc.doc).get(FIELD_NAME);
-          if (indexedDoi!= null && indexedDoi.equals(doi) && !uniqueFound.contains(doi)) {
-            count++;
-            uniqueFound.add(doi);
+  private static void search(ExecutorService executor) {
+    if (FACETS != null) {
+      try (FederatedIndex indexes = FederatedIndex.open(FederatedIndex.parse(INDEXES), executor)) {
+        FieldMapping mapping = readFieldMapping().with(FIELD_TYPES).withFacets(FACETS);
+        Query filter = filter(mapping, RANGE_FIELD, RANGE_MIN, RANGE_MAX, FILTER);
+        long start = System.nanoTime();
+        List<FacetResult> results = aggregate(indexes.getSearcher(), mapping.getFacetsConfig(), filter,
+            new ArrayList<>(mapping.getFacets()), TOP, executor);
+        for (int i = 0; i < results.size(); i++) {
+          FacetResult result = results.get(i);
+          if (result == null) {
+            System.out.println(new ArrayList<>(mapping.getFacets()).get(i) + ": not indexed as a facet");
+            continue;
+          }
+          System.out.println(result.dim + ": " + result.value + " documents, " + result.childCount + " values");
+          for (LabelAndValue labelAndValue : result.labelValues) {
+            System.out.println(result.dim + "\t" + labelAndValue.label + "\t" + labelAndValue.value);
           }
         }
+        System.out.println("Counted in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+      } catch (Exception e) {
+        e.printStackTrace();
       }
-      csvReader.close();
-
-      System.out.println("Number of matching DOIs: " + count + " out of " + recordsCount);
+      return;
+    }
+    if (RANGE_FIELD != null || SORT != null) {
+      try (FederatedIndex indexes = FederatedIndex.open(FederatedIndex.parse(INDEXES), executor)) {
+        FieldMapping mapping = readFieldMapping().with(FIELD_TYPES);
+        IndexSearcher searcher = indexes.getSearcher();
+        TopDocs hits = search(searcher, mapping, RANGE_FIELD, RANGE_MIN, RANGE_MAX, SORT, TOP);
+        StoredFields storedFields = searcher.storedFields();
+        for (ScoreDoc hit : hits.scoreDocs) {
+          Document doc = storedFields.document(hit.doc);
+          StringBuilder line = new StringBuilder();
+          if (indexes.getNames().size() > 1) {
+            line.append(indexes.getName(hit.doc)).append('\t');
+          }
+          line.append(doc.get("path"));
+          for (String field : new String[]{RANGE_FIELD, SORT == null ? null : SORT.replaceFirst("^-", "")}) {
+            if (field != null) {
+              line.append('\t').append(field).append('=').append(String.join(",", doc.getValues(field)));
+            }
+          }
+          System.out.println(line);
+        }
+        System.out.println("Number of matching documents: " + hits.totalHits);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+    List<BufferedWriter> outputs = new ArrayList<>();
+    try (
+        FederatedIndex indexes = FederatedIndex.open(FederatedIndex.parse(INDEXES), executor);
+        BufferedReader csvReader = new BufferedReader(new FileReader(CSV_FILE))
+    ) {
+      List<String> names = indexes.getNames();
+      List<BufferedWriter> matched = new ArrayList<>();
+      List<BufferedWriter> missing = new ArrayList<>();
+      for (String name : names) {
+        // One index keeps the plain file names
+        matched.add(Files.newBufferedWriter(outputFile(MATCHED_FILE, names.size() > 1 ? name : null), StandardCharsets.UTF_8));
+        outputs.add(matched.get(matched.size() - 1));
+        missing.add(Files.newBufferedWriter(outputFile(MISSING_FILE, names.size() > 1 ? name : null), StandardCharsets.UTF_8));
+        outputs.add(missing.get(missing.size() - 1));
+      }
+      Iterable<CSVRecord> records = CSVFormat.EXCEL.withFirstRecordAsHeader().parse(csvReader);
+      DoiMatcher matcher = new DoiMatcher(indexes.getReaders(), FIELD_NAME, BATCH_SIZE, matched, missing);
+      matcher.setExecutor(executor);
+      for (CSVRecord record : records) {
+        matcher.add(record.get(CSV_FIELD_NAME));
+      }
+      matcher.flush();
 
-      reader.close();
+      if (names.size() > 1) {
+        for (int i = 0; i < names.size(); i++) {
+          System.out.println(names.get(i) + ": " + matcher.getMatched(i) + " matching, "
+              + (matcher.getRecords() - matcher.getMatched(i)) + " missing");
+        }
+      }
+      System.out.println("Number of matching DOIs: " + matcher.getMatched() + " out of " + matcher.getRecords());
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      for (BufferedWriter output : outputs) {
+        try {
+          output.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /** The output file, with the name of the index before the extension if there are several indexes. */
+  private static Path outputFile(String file, String indexName) {
+    if (indexName == null) {
+      return Paths.get(file);
+    }
+    int dot = file.lastIndexOf('.');
+    return Paths.get(dot > file.lastIndexOf('/') ? file.substring(0, dot) + "-" + indexName + file.substring(dot)
+        : file + "-" + indexName);
+  }
+
+  /** @return the field types derived from the schema, or only the file times if there is no schema */
+  private static FieldMapping readFieldMapping() throws IOException {
+    Path schemaFile = Paths.get(SCHEMA_FILE);
+    if (!Files.isRegularFile(schemaFile)) {
+      return FieldMapping.DEFAULT;
     }
+    return FieldMapping.fromSchema(new ObjectMapper().readTree(schemaFile.toFile()));
   }
+
+  /**
+   * Run a range query on a typed field, sorted on the doc values of a typed field.
+   *
+   * @param searcher   the searcher
+   * @param mapping    the field types
+   * @param rangeField the field of the range, or null to match all documents
+   * @param min        the lower bound, inclusive, or null
+   * @param max        the upper bound, inclusive, or null
+   * @param sort       the sort field, with a leading "-" for descending order, or null for the index order
+   * @param top        the number of hits
+   * @return the top hits
+   * @throws IOException If the index cannot be read
+   */
+  static TopDocs search(IndexSearcher searcher, FieldMapping mapping, String rangeField, String min, String max,
+                        String sort, int top) throws IOException {
+    Query query = rangeField != null ? mapping.rangeQuery(rangeField, min, max) : new MatchAllDocsQuery();
+    if (sort == null) {
+      return searcher.search(query, top, Sort.INDEXORDER);
+    }
+    boolean reverse = sort.startsWith("-");
+    return searcher.search(query, top, new Sort(mapping.sortField(reverse ? sort.substring(1) : sort, reverse)));
+  }
+  
+  /**
+   * Build the filter of the aggregation mode.
+   *
+   * @param mapping    the field types
+   * @param rangeField the field of the range, or null for no range
+   * @param min        the lower bound, inclusive, or null
+   * @param max        the upper bound, inclusive, or null
+   * @param query      a query in the classic syntax on the untokenized metadata fields, or null
+   * @return the filter, or null to count all documents
+   * @throws ParseException If the query is malformed
+   */
+  static Query filter(FieldMapping mapping, String rangeField, String min, String max, String query)
+      throws ParseException {
+    List<Query> clauses = new ArrayList<>();
+    if (rangeField != null) {
+      clauses.add(mapping.rangeQuery(rangeField, min, max));
+    }
+    if (query != null && !query.isBlank()) {
+      // The metadata values are indexed as whole strings
+      clauses.add(new QueryParser("path", new KeywordAnalyzer()).parse(query));
+    }
+    if (clauses.isEmpty()) {
+      return null;
+    }
+    BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    for (Query clause : clauses) {
+      builder.add(clause, BooleanClause.Occur.FILTER);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Count the documents per value of facet fields from their sorted-set doc values, counting the
+   * segments in parallel. No stored fields are loaded.
+   *
+   * @param searcher the searcher over the index, or the indexes
+   * @param config   the facet configuration, see {@link FieldMapping#getFacetsConfig()}
+   * @param filter   the documents to count, or null for all documents
+   * @param dims     the facet fields
+   * @param top      the number of values with the highest counts returned for each field
+   * @param executor the executor counting the segments
+   * @return the counts of each field, in the order of the fields, or null for a field without any value
+   * @throws IOException If the index cannot be read
+   * @throws IllegalArgumentException If the index has no facets at all
+   */
+  static List<FacetResult> aggregate(IndexSearcher searcher, FacetsConfig config, Query filter, List<String> dims,
+                                     int top, ExecutorService executor) throws IOException {
+    SortedSetDocValuesReaderState state = new DefaultSortedSetDocValuesReaderState(searcher.getIndexReader(), config);
+    Facets facets;
+    try {
+      if (filter == null) {
+        facets = new ConcurrentSortedSetDocValuesFacetCounts(state, executor);
+      } else {
+        FacetsCollector collector = searcher.search(filter, new FacetsCollectorManager());
+        facets = new ConcurrentSortedSetDocValuesFacetCounts(state, collector, executor);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while counting the facets");
+    }
+    List<FacetResult> results = new ArrayList<>();
+    for (String dim : dims) {
+      results.add(state.getOrdRange(dim) == null ? null : facets.getTopChildren(top, dim));
+    }
+    return results;
   }
+}
@@ -0,0 +1,111 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Flattens a JSON object into named scalar values while it is parsed, without building a tree.
+ * Nested fields get dotted names, e.g. "authors.name" for the names in an array of author
+ * objects; the elements of an array all get the name of the array, so a field may have many
+ * values. Null values are skipped, and a document that is not an object has no values.
+ * <p>
+ * The dotted names are cached, so that parsing many documents with the same structure does not
+ * build the same names again. Instances are not thread-safe.
+ */
+public class JsonFlattener {
+
+  /** Receives the scalar values of a document. */
+  public interface ValueHandler {
+    /**
+     * @param name   the dotted name of the value
+     * @param parser the parser, positioned at the scalar value
+     * @throws IOException If the value cannot be read
+     */
+    void onValue(String name, JsonParser parser) throws IOException;
+  }
+
+  /** The number of cached names above which new names are no longer cached. */
+  private static final int MAX_CACHED_NAMES = 4096;
+
+  private final Map<String, Map<String, String>> names = new HashMap<>();
+  private int cachedNames = 0;
+
+  private String[] containerNames = new String[16];
+  private boolean[] containerArrays = new boolean[16];
+
+  /**
+   * Parse the next JSON document and report its scalar values.
+   *
+   * @param parser  the parser, positioned before the document
+   * @param handler receives the values
+   * @throws IOException If the JSON is malformed or cannot be read
+   */
+  public void flatten(JsonParser parser, ValueHandler handler) throws IOException {
+    JsonToken token = parser.nextToken();
+    if (token != JsonToken.START_OBJECT) {
+      if (token != null) {
+        parser.skipChildren();
+      }
+      return;
+    }
+    int depth = 0;
+    containerNames[0] = "";
+    containerArrays[0] = false;
+    String fieldName = null;
+    while (depth >= 0) {
+      token = parser.nextToken();
+      if (token == null) {
+        throw new IOException("Unexpected end of JSON input");
+      }
+      switch (token) {
+        case FIELD_NAME:
+          fieldName = parser.getCurrentName();
+          break;
+        case START_OBJECT:
+        case START_ARRAY:
+          String name = name(depth, fieldName);
+          if (++depth == containerNames.length) {
+            containerNames = Arrays.copyOf(containerNames, depth * 2);
+            containerArrays = Arrays.copyOf(containerArrays, depth * 2);
+          }
+          containerNames[depth] = name;
+          containerArrays[depth] = token == JsonToken.START_ARRAY;
+          break;
+        case END_OBJECT:
+        case END_ARRAY:
+          depth--;
+          break;
+        case VALUE_NULL:
+          break;
+        default:
+          handler.onValue(name(depth, fieldName), parser);
+      }
+    }
+  }
+
+  /** @return the name of a value in the container at the given depth */
+  private String name(int depth, String fieldName) {
+    String prefix = containerNames[depth];
+    if (containerArrays[depth]) {
+      return prefix;
+    }
+    if (prefix.isEmpty()) {
+      return fieldName;
+    }
+    Map<String, String> children = names.get(prefix);
+    String name = children != null ? children.get(fieldName) : null;
+    if (name == null) {
+      name = prefix + "." + fieldName;
+      if (cachedNames < MAX_CACHED_NAMES) {
+        names.computeIfAbsent(prefix, p -> new HashMap<>()).put(fieldName, name);
+        cachedNames++;
+      }
+    }
+    return name;
+  }
+}
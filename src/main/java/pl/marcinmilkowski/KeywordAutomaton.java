@@ -0,0 +1,271 @@
+package pl.marcinmilkowski;
+
+import java.util.*;
+
+/**
+ * An Aho-Corasick automaton that finds many keywords in one pass over a text.
+ * Each keyword is given as one or more terms (e.g. "understanding" and "understandings"),
+ * and a term only matches at word boundaries, like {@code \bterm\b} in a regular expression.
+ * Matching is case-insensitive if requested.
+ * <p>
+ * Transitions on ASCII characters are precomputed into a dense table, the others are kept
+ * in a primitive hash table, so a scan does not allocate. Instances are immutable and can be
+ * shared between threads.
+ */
+public class KeywordAutomaton {
+
+  /** Receives the matches found by {@link #find(CharSequence, int, int, MatchHandler)}. */
+  public interface MatchHandler {
+    /**
+     * @param start   the start of the matching term in the text
+     * @param end     the end of the matching term in the text, exclusive
+     * @param keyword the index of the keyword in {@link #getKeywords()}
+     * @return false to stop the scan
+     */
+    boolean onMatch(int start, int end, int keyword);
+  }
+
+  private static final int ASCII = 128;
+
+  private final List<String> keywords;
+  private final boolean ignoreCase;
+  private final int[] termKeyword;
+  private final int[] termLength;
+
+  /** The full transition table for ASCII characters, ASCII entries per state. */
+  private final int[] asciiNext;
+  /** The trie transitions for other characters, keyed by state and character. */
+  private final long[] otherKeys;
+  private final int[] otherValues;
+  private final int[] fail;
+  /** The first term ending in each state, or -1. */
+  private final int[] output;
+  /** The next term ending in the same state as each term, for keywords that share a term, or -1. */
+  private final int[] nextTerm;
+  /** The next state on the failure chain that has an output, or -1. */
+  private final int[] outputLink;
+
+  /**
+   * @param keywordTerms the terms of each keyword, in the order of the keywords
+   * @param ignoreCase   whether to match case-insensitively
+   */
+  public KeywordAutomaton(Map<String, List<String>> keywordTerms, boolean ignoreCase) {
+    this.keywords = Collections.unmodifiableList(new ArrayList<>(keywordTerms.keySet()));
+    this.ignoreCase = ignoreCase;
+
+    // Build the trie
+    List<Map<Character, Integer>> trie = new ArrayList<>();
+    trie.add(new HashMap<>());
+    List<Integer> terms = new ArrayList<>();
+    List<Integer> lengths = new ArrayList<>();
+    List<Integer> ends = new ArrayList<>();
+    int keyword = 0;
+    for (List<String> termList : keywordTerms.values()) {
+      for (String term : termList) {
+        if (term.isEmpty()) {
+          throw new IllegalArgumentException("Empty term for keyword " + keywords.get(keyword));
+        }
+        int state = 0;
+        for (int i = 0; i < term.length(); i++) {
+          char c = normalize(term.charAt(i));
+          Integer next = trie.get(state).get(c);
+          if (next == null) {
+            next = trie.size();
+            trie.add(new HashMap<>());
+            trie.get(state).put(c, next);
+          }
+          state = next;
+        }
+        terms.add(keyword);
+        lengths.add(term.length());
+        ends.add(state);
+      }
+      keyword++;
+    }
+    int states = trie.size();
+    termKeyword = terms.stream().mapToInt(Integer::intValue).toArray();
+    termLength = lengths.stream().mapToInt(Integer::intValue).toArray();
+    output = new int[states];
+    Arrays.fill(output, -1);
+    nextTerm = new int[termKeyword.length];
+    Arrays.fill(nextTerm, -1);
+    for (int term = ends.size() - 1; term >= 0; term--) {
+      int state = ends.get(term);
+      // A term listed twice for the same keyword is reported once
+      boolean duplicate = false;
+      for (int t = output[state]; t >= 0; t = nextTerm[t]) {
+        duplicate |= termKeyword[t] == termKeyword[term];
+      }
+      if (!duplicate) {
+        nextTerm[term] = output[state];
+        output[state] = term;
+      }
+    }
+
+    // Failure links and the ASCII table, in breadth-first order
+    fail = new int[states];
+    outputLink = new int[states];
+    Arrays.fill(outputLink, -1);
+    asciiNext = new int[states * ASCII];
+    int otherCount = 0;
+    Deque<Integer> queue = new ArrayDeque<>();
+    queue.add(0);
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      for (Map.Entry<Character, Integer> edge : trie.get(state).entrySet()) {
+        char c = edge.getKey();
+        int child = edge.getValue();
+        if (state != 0) {
+          int f = fail[state];
+          while (f != 0 && !trie.get(f).containsKey(c)) {
+            f = fail[f];
+          }
+          Integer target = trie.get(f).get(c);
+          fail[child] = target != null ? target : 0;
+        }
+        outputLink[child] = output[fail[child]] >= 0 ? fail[child] : outputLink[fail[child]];
+        if (c >= ASCII) {
+          otherCount++;
+        }
+        queue.add(child);
+      }
+      for (int c = 0; c < ASCII; c++) {
+        Integer child = trie.get(state).get((char) c);
+        if (child != null) {
+          asciiNext[state * ASCII + c] = child;
+        } else {
+          asciiNext[state * ASCII + c] = state == 0 ? 0 : asciiNext[fail[state] * ASCII + c];
+        }
+      }
+    }
+
+    int capacity = Integer.highestOneBit(Math.max(otherCount, 1) * 2) * 2;
+    otherKeys = new long[capacity];
+    otherValues = new int[capacity];
+    Arrays.fill(otherKeys, -1);
+    for (int state = 0; state < states; state++) {
+      for (Map.Entry<Character, Integer> edge : trie.get(state).entrySet()) {
+        if (edge.getKey() >= ASCII) {
+          long key = key(state, edge.getKey());
+          int slot = slot(key);
+          while (otherKeys[slot] != -1) {
+            slot = (slot + 1) & (capacity - 1);
+          }
+          otherKeys[slot] = key;
+          otherValues[slot] = edge.getValue();
+        }
+      }
+    }
+  }
+
+  /**
+   * Parse a keyword specification: keywords separated by ";", each one either a single term,
+   * or a name followed by ":" and its terms separated by "|", e.g.
+   * "understanding:understanding|understandings;explanation:explanation|explanations".
+   *
+   * @param spec       the specification
+   * @param ignoreCase whether to match case-insensitively
+   * @return the automaton
+   */
+  public static KeywordAutomaton parse(String spec, boolean ignoreCase) {
+    Map<String, List<String>> keywordTerms = new LinkedHashMap<>();
+    for (String keyword : spec.split(";")) {
+      keyword = keyword.trim();
+      if (keyword.isEmpty()) {
+        continue;
+      }
+      int colon = keyword.indexOf(':');
+      String name = colon < 0 ? keyword : keyword.substring(0, colon).trim();
+      List<String> terms = new ArrayList<>();
+      for (String term : (colon < 0 ? keyword : keyword.substring(colon + 1)).split("\\|")) {
+        if (!term.trim().isEmpty()) {
+          terms.add(term.trim());
+        }
+      }
+      keywordTerms.computeIfAbsent(name, k -> new ArrayList<>()).addAll(terms);
+    }
+    return new KeywordAutomaton(keywordTerms, ignoreCase);
+  }
+
+  /** @return the keyword names, in the order of their indexes */
+  public List<String> getKeywords() {
+    return keywords;
+  }
+
+  /**
+   * Report every whole-word occurrence of a term in the given range of the text,
+   * in the order of their end positions.
+   *
+   * @param text    the text
+   * @param from    the start of the range
+   * @param to      the end of the range, exclusive
+   * @param handler receives the matches
+   */
+  public void find(CharSequence text, int from, int to, MatchHandler handler) {
+    int state = 0;
+    for (int i = from; i < to; i++) {
+      char c = normalize(text.charAt(i));
+      if (c < ASCII) {
+        state = asciiNext[state * ASCII + c];
+      } else {
+        int next = other(state, c);
+        while (next < 0 && state != 0) {
+          state = fail[state];
+          next = other(state, c);
+        }
+        state = Math.max(next, 0);
+      }
+      for (int s = output[state] >= 0 ? state : outputLink[state]; s >= 0; s = outputLink[s]) {
+        int start = i + 1 - termLength[output[s]];
+        if ((start == from || !isWordChar(text.charAt(start - 1)))
+            && (i + 1 == to || !isWordChar(text.charAt(i + 1)))) {
+          for (int term = output[s]; term >= 0; term = nextTerm[term]) {
+            if (!handler.onMatch(start, i + 1, termKeyword[term])) {
+              return;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @param text the text
+   * @return whether any keyword occurs in the text
+   */
+  public boolean matches(CharSequence text) {
+    boolean[] found = new boolean[1];
+    find(text, 0, text.length(), (start, end, keyword) -> {
+      found[0] = true;
+      return false;
+    });
+    return found[0];
+  }
+
+  private int other(int state, char c) {
+    long key = key(state, c);
+    for (int slot = slot(key); otherKeys[slot] != -1; slot = (slot + 1) & (otherKeys.length - 1)) {
+      if (otherKeys[slot] == key) {
+        return otherValues[slot];
+      }
+    }
+    return -1;
+  }
+
+  private static long key(int state, char c) {
+    return ((long) state << 16) | c;
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 40) & (otherKeys.length - 1);
+  }
+
+  private char normalize(char c) {
+    return ignoreCase ? Character.toLowerCase(c) : c;
+  }
+
+  private static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+}
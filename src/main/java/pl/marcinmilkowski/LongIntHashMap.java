@@ -0,0 +1,118 @@
+package pl.marcinmilkowski;
+
+/**
+ * An open-addressing hash map from long keys to int counts, without boxing.
+ * The key 0 is reserved to mark empty slots. Instances are not thread-safe.
+ */
+public class LongIntHashMap {
+
+  /** Receives the entries of the map. */
+  public interface EntryConsumer {
+    void accept(long key, int value);
+  }
+
+  private static final int MIN_CAPACITY = 16;
+
+  private final int initialCapacity;
+  private long[] keys;
+  private int[] values;
+  private int size = 0;
+
+  public LongIntHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * @param expected the expected number of keys
+   */
+  public LongIntHashMap(int expected) {
+    initialCapacity = Integer.highestOneBit(Math.max(expected, MIN_CAPACITY / 2) * 2 - 1) * 2;
+    keys = new long[initialCapacity];
+    values = new int[initialCapacity];
+  }
+
+  /**
+   * Add to the value of a key, starting from 0 for a new key.
+   *
+   * @param key   the key, not 0
+   * @param delta the value to add
+   */
+  public void add(long key, int delta) {
+    if (key == 0) {
+      throw new IllegalArgumentException("The key 0 is reserved");
+    }
+    int slot = find(keys, key);
+    if (keys[slot] == 0) {
+      keys[slot] = key;
+      if (++size * 4 > keys.length * 3) {
+        rehash(keys.length * 2);
+        slot = find(keys, key);
+      }
+    }
+    values[slot] += delta;
+  }
+
+  /**
+   * @param key the key
+   * @return the value of the key, or 0 if it is not in the map
+   */
+  public int get(long key) {
+    int slot = find(keys, key);
+    return keys[slot] == 0 ? 0 : values[slot];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Remove all entries and release the memory they took. */
+  public void clear() {
+    keys = new long[initialCapacity];
+    values = new int[initialCapacity];
+    size = 0;
+  }
+
+  /**
+   * @param consumer receives every entry, in no particular order
+   */
+  public void forEach(EntryConsumer consumer) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != 0) {
+        consumer.accept(keys[i], values[i]);
+      }
+    }
+  }
+
+  /** @return the approximate number of bytes held by the map */
+  public long ramBytesUsed() {
+    return keys.length * (long) Long.BYTES + values.length * (long) Integer.BYTES;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[capacity];
+    values = new int[capacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int slot = find(keys, oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /** @return the slot of the key, or the empty slot where it would go */
+  private static int find(long[] keys, long key) {
+    int mask = keys.length - 1;
+    int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+}
@@ -0,0 +1,311 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the stages of a long corpus or indexing run, cheap enough
+ * to keep on: each stage has striped counters and a histogram with one bucket per power of two
+ * of nanoseconds, so recording a stage neither locks nor allocates beyond its timer.
+ * Each timed stage is also a JDK Flight Recorder event, which costs nothing unless a recording
+ * enables it, e.g. with {@code -XX:StartFlightRecording}.
+ * <p>
+ * A progress line with the rate and, once the input has been walked, the ETA can be printed
+ * periodically, and the totals can be written as JSON at the end. Safe for many threads.
+ */
+public class Metrics {
+
+  /** The stages of the runs. */
+  public enum Stage {
+    /** Reading a file into memory. */
+    READ,
+    /** Hashing, parsing and validating a JSON file against the schema. */
+    VALIDATE,
+    /** Building the Lucene document from the JSON tokens. */
+    PARSE,
+    /** Adding a document to the index, with the analysis of its full text. */
+    INDEX,
+    /** Committing the index, which flushes the buffered documents. */
+    COMMIT,
+    /** Merging the index shards into the final index. */
+    MERGE,
+    /** Reading and cleaning an XML file. */
+    CLEAN,
+    /** Segmenting and filtering the sentences of a text. */
+    SEGMENT,
+    /** Counting the tokens and n-grams of a text. */
+    COUNT,
+    /** Writing the sentences of a file to the corpus. */
+    WRITE
+  }
+
+  /** A JFR event for one stage of one file. */
+  @Name("pl.marcinmilkowski.Stage")
+  @Label("Corpus Stage")
+  @Category("Corpora Utils")
+  @Description("One processing stage of one file")
+  static class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("File")
+    String file;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  /** Times one stage; get it from {@link #start(Stage, Object)} and call {@link #stop(long)} once. */
+  public final class Timer {
+    private final Stage stage;
+    private final Object file;
+    private final long start;
+    private final StageEvent event;
+
+    private Timer(Stage stage, Object file) {
+      this.stage = stage;
+      this.file = file;
+      this.event = new StageEvent();
+      event.begin();
+      this.start = System.nanoTime();
+    }
+
+    /**
+     * @param bytes the number of bytes processed by the stage, or 0
+     */
+    public void stop(long bytes) {
+      long nanos = System.nanoTime() - start;
+      stages[stage.ordinal()].record(nanos, bytes);
+      event.end();
+      if (event.shouldCommit()) {
+        event.stage = stage.name();
+        event.file = String.valueOf(file);
+        event.bytes = bytes;
+        event.commit();
+      }
+    }
+  }
+
+  private static final class StageMetrics {
+    final LongAdder count = new LongAdder();
+    final LongAdder nanos = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    /** Bucket i counts the latencies from 2^i to 2^(i+1) - 1 ns. */
+    final AtomicLongArray histogram = new AtomicLongArray(Long.SIZE);
+
+    void record(long nanos, long bytes) {
+      count.increment();
+      this.nanos.add(nanos);
+      this.bytes.add(bytes);
+      histogram.incrementAndGet(Long.SIZE - 1 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+    }
+
+    /** @return the upper bound of the bucket of the quantile, in ns */
+    long quantile(double q) {
+      long total = 0;
+      for (int i = 0; i < Long.SIZE; i++) {
+        total += histogram.get(i);
+      }
+      long rank = Math.max(1, (long) Math.ceil(q * total));
+      long seen = 0;
+      for (int i = 0; i < Long.SIZE; i++) {
+        seen += histogram.get(i);
+        if (seen >= rank) {
+          return i == Long.SIZE - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+        }
+      }
+      return 0;
+    }
+  }
+
+  private final StageMetrics[] stages = new StageMetrics[Stage.values().length];
+  private final LongAdder discovered = new LongAdder();
+  private final LongAdder files = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder sentences = new LongAdder();
+  private final long startNanos = System.nanoTime();
+  private final AtomicInteger walks = new AtomicInteger();
+  private volatile boolean walkDone = false;
+  private ScheduledExecutorService progress;
+
+  public Metrics() {
+    for (int i = 0; i < stages.length; i++) {
+      stages[i] = new StageMetrics();
+    }
+  }
+
+  /**
+   * Start timing a stage.
+   *
+   * @param stage the stage
+   * @param file  the file, for the JFR event
+   * @return the timer to stop at the end of the stage
+   */
+  public Timer start(Stage stage, Object file) {
+    return new Timer(stage, file);
+  }
+
+  /** Count a file found by the walk. */
+  public void discovered() {
+    discovered.increment();
+  }
+
+  /** A walk starts, for runs with several walks at once; see {@link #walkDone()}. */
+  public void walkStarted() {
+    walks.incrementAndGet();
+  }
+
+  /**
+   * A walk is over. Once all walks started are over, the number of files is known
+   * and the ETA can be estimated.
+   */
+  public void walkDone() {
+    if (walks.decrementAndGet() <= 0) {
+      walkDone = true;
+    }
+  }
+
+  /**
+   * Count a file that went through all its stages.
+   *
+   * @param bytes the size of the file
+   */
+  public void fileDone(long bytes) {
+    files.increment();
+    this.bytes.add(bytes);
+  }
+
+  /** Count a file that could not be processed. */
+  public void fileFailed() {
+    failed.increment();
+  }
+
+  /**
+   * @param count the number of sentences written
+   */
+  public void addSentences(long count) {
+    sentences.add(count);
+  }
+
+  /** @return the number of files done */
+  public long getFiles() {
+    return files.sum();
+  }
+
+  /**
+   * @param stage the stage
+   * @return the number of times the stage was recorded
+   */
+  public long getCount(Stage stage) {
+    return stages[stage.ordinal()].count.sum();
+  }
+
+  /**
+   * Print a progress line periodically on a daemon thread, until {@link #stopProgress()}.
+   *
+   * @param out           where to print
+   * @param periodSeconds the time between two lines; 0 or less prints nothing
+   */
+  public synchronized void startProgress(PrintStream out, int periodSeconds) {
+    if (periodSeconds <= 0 || progress != null) {
+      return;
+    }
+    progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "progress");
+      thread.setDaemon(true);
+      return thread;
+    });
+    progress.scheduleAtFixedRate(() -> out.println(progressLine()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Stop printing the progress line. */
+  public synchronized void stopProgress() {
+    if (progress != null) {
+      progress.shutdownNow();
+      progress = null;
+    }
+  }
+
+  /** @return the files and bytes done, their rates, and the ETA once the number of files is known */
+  public String progressLine() {
+    double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 1e-3);
+    long done = files.sum() + failed.sum();
+    double rate = done / seconds;
+    StringBuilder line = new StringBuilder();
+    line.append('[').append(duration((long) seconds)).append("] ")
+        .append(done).append(walkDone ? "/" + discovered.sum() : "").append(" files")
+        .append(String.format(" (%.1f MB), %.1f files/s, %.2f MB/s", bytes.sum() / 1e6, rate, bytes.sum() / 1e6 / seconds));
+    if (failed.sum() > 0) {
+      line.append(", ").append(failed.sum()).append(" failed");
+    }
+    if (sentences.sum() > 0) {
+      line.append(", ").append(sentences.sum()).append(" sentences");
+    }
+    if (walkDone && rate > 0) {
+      line.append(", ETA ").append(duration((long) ((discovered.sum() - done) / rate)));
+    } else if (!walkDone) {
+      line.append(", ").append(discovered.sum()).append(" found so far");
+    }
+    return line.toString();
+  }
+
+  private static String duration(long seconds) {
+    return String.format("%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+  }
+
+  /**
+   * Write the totals and the stage latencies as JSON.
+   *
+   * @param file the summary file
+   * @throws IOException If the file cannot be written
+   */
+  public void writeJson(Path file) throws IOException {
+    try (JsonGenerator json = new JsonFactory().createGenerator(file.toFile(), JsonEncoding.UTF8)) {
+      json.useDefaultPrettyPrinter();
+      json.writeStartObject();
+      json.writeNumberField("elapsedMillis", (System.nanoTime() - startNanos) / 1_000_000);
+      json.writeNumberField("files", files.sum());
+      json.writeNumberField("failed", failed.sum());
+      json.writeNumberField("bytes", bytes.sum());
+      json.writeNumberField("sentences", sentences.sum());
+      json.writeObjectFieldStart("stages");
+      for (Stage stage : Stage.values()) {
+        StageMetrics metrics = stages[stage.ordinal()];
+        long count = metrics.count.sum();
+        if (count == 0) {
+          continue;
+        }
+        json.writeObjectFieldStart(stage.name().toLowerCase());
+        json.writeNumberField("count", count);
+        json.writeNumberField("bytes", metrics.bytes.sum());
+        json.writeNumberField("totalMillis", metrics.nanos.sum() / 1_000_000);
+        json.writeNumberField("meanMicros", metrics.nanos.sum() / 1000 / count);
+        json.writeNumberField("p50Micros", metrics.quantile(0.5) / 1000);
+        json.writeNumberField("p90Micros", metrics.quantile(0.9) / 1000);
+        json.writeNumberField("p99Micros", metrics.quantile(0.99) / 1000);
+        json.writeEndObject();
+      }
+      json.writeEndObject();
+      json.writeEndObject();
+    }
+  }
+}
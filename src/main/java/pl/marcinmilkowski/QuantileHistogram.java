@@ -0,0 +1,111 @@
+package pl.marcinmilkowski;
+
+/**
+ * A fixed-size histogram of non-negative int values for streaming quantiles.
+ * Values below 1024 are counted exactly; larger values go to 64 buckets per power of two,
+ * so quantiles above 1024 are within about 1.6% of the exact value.
+ * The memory use does not depend on the number of values.
+ */
+public class QuantileHistogram {
+
+  private static final int LINEAR = 1024;
+  private static final int LINEAR_BITS = 10;
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final long[] counts = new long[LINEAR + (Integer.SIZE - 1 - LINEAR_BITS) * SUB_BUCKETS];
+  private long count = 0;
+  private long total = 0;
+  private int min = Integer.MAX_VALUE;
+  private int max = 0;
+
+  /**
+   * @param value the value to add; negative values are counted as 0
+   */
+  public void add(int value) {
+    value = Math.max(value, 0);
+    counts[index(value)]++;
+    count++;
+    total += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Add all the values of another histogram.
+   *
+   * @param other the other histogram
+   */
+  public void add(QuantileHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    total += other.total;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * The value at position floor(q * n) of the n sorted values, counting from 0, so the median of
+   * an even number of values is the upper one, as the sorted list printed it before.
+   *
+   * @param q the quantile, between 0 and 1, e.g. 0.5 for the median
+   * @return the value at the quantile, or 0 if there are no values
+   */
+  public int quantile(double q) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.min(count, (long) Math.floor(q * count) + 1);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        int value = i < LINEAR ? i : lowerBound(i) + bucketWidth(i) / 2;
+        return Math.max(min, Math.min(max, value));
+      }
+    }
+    return max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  public double getMean() {
+    return count == 0 ? 0.0 : (double) total / count;
+  }
+
+  public int getMin() {
+    return count == 0 ? 0 : min;
+  }
+
+  public int getMax() {
+    return max;
+  }
+
+  private static int index(int value) {
+    if (value < LINEAR) {
+      return value;
+    }
+    int exponent = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(value);
+    int subBucket = (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+  }
+
+  private static int lowerBound(int index) {
+    int exponent = LINEAR_BITS + (index - LINEAR) / SUB_BUCKETS;
+    int subBucket = (index - LINEAR) % SUB_BUCKETS;
+    return (1 << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+  }
+
+  private static int bucketWidth(int index) {
+    int exponent = LINEAR_BITS + (index - LINEAR) / SUB_BUCKETS;
+    return 1 << (exponent - SUB_BUCKET_BITS);
+  }
+}
@@ -0,0 +1,179 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.core.report.LogLevel;
+import com.github.fge.jsonschema.core.report.ProcessingMessage;
+import com.github.fge.jsonschema.core.report.ProcessingReport;
+import com.github.fge.jsonschema.main.JsonSchema;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Validates JSON files against a schema, remembering the files that were valid.
+ * <p>
+ * The SHA-256 hashes of the contents of valid files are kept in a cache file named after the
+ * hash of the schema, so a file that has not changed is not validated again until the schema
+ * changes. The errors of invalid files are written as JSON lines with the file, the JSON pointer
+ * of the invalid value and the message, or to stderr if there is no report file.
+ * Validation can run on many threads at once.
+ */
+public class SchemaValidator implements Closeable {
+
+  private final JsonSchema schema;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Set<String> validHashes = ConcurrentHashMap.newKeySet();
+  private final BufferedWriter cache;
+  private final BufferedWriter report;
+
+  private final AtomicInteger cacheHits = new AtomicInteger();
+  private final AtomicInteger validated = new AtomicInteger();
+
+  /**
+   * @param schema       the schema
+   * @param schemaSource the source of the schema, which identifies its cache file
+   * @param cacheDir     the directory of the cache files, created if needed, or null for no cache
+   * @param reportFile   the JSON lines report, or null to report the errors on stderr
+   * @throws IOException If the cache cannot be read or the report cannot be created
+   */
+  public SchemaValidator(JsonSchema schema, byte[] schemaSource, Path cacheDir, Path reportFile) throws IOException {
+    this(schema, schemaSource, cacheDir, "", reportFile);
+  }
+
+  /**
+   * A validator that appends to a cache file of its own, so that several processes can validate at
+   * once, e.g. one per shard. The hashes in the cache files of all of them are read, so the files
+   * of one process are known valid in the next run of any other.
+   *
+   * @param schema       the schema
+   * @param schemaSource the source of the schema, which identifies its cache files
+   * @param cacheDir     the directory of the cache files, created if needed, or null for no cache
+   * @param cacheSuffix  the suffix of the cache file written, e.g. "-shard-3", or "" for the shared one
+   * @param reportFile   the JSON lines report, or null to report the errors on stderr
+   * @throws IOException If the cache cannot be read or the report cannot be created
+   */
+  public SchemaValidator(JsonSchema schema, byte[] schemaSource, Path cacheDir, String cacheSuffix, Path reportFile)
+      throws IOException {
+    this.schema = schema;
+    if (cacheDir != null) {
+      Files.createDirectories(cacheDir);
+      String prefix = "valid-" + hash(schemaSource);
+      try (DirectoryStream<Path> cacheFiles = Files.newDirectoryStream(cacheDir, prefix + "*.txt")) {
+        for (Path cacheFile : cacheFiles) {
+          validHashes.addAll(Files.readAllLines(cacheFile, StandardCharsets.US_ASCII));
+        }
+      }
+      Path cacheFile = cacheDir.resolve(prefix + cacheSuffix + ".txt");
+      cache = Files.newBufferedWriter(cacheFile, StandardCharsets.US_ASCII,
+          StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } else {
+      cache = null;
+    }
+    report = reportFile != null ? Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * @param content the contents of a file
+   * @return the SHA-256 hash of the contents, in hex
+   */
+  public static String hash(byte[] content) {
+    return Hashes.sha256(content);
+  }
+
+  /**
+   * @param hash the hash of the contents of a file, see {@link #hash(byte[])}
+   * @return whether the contents were found valid before, so they need not be validated
+   */
+  public boolean isKnownValid(String hash) {
+    if (validHashes.contains(hash)) {
+      cacheHits.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Validate a JSON file, reporting all its errors.
+   *
+   * @param file the name of the file, for the report
+   * @param hash the hash of the contents of the file, see {@link #hash(byte[])}
+   * @param json the parsed contents of the file
+   * @return whether the file is valid
+   * @throws IOException If the cache or the report cannot be written
+   */
+  public boolean validate(String file, String hash, JsonNode json) throws IOException {
+    validated.incrementAndGet();
+    try {
+      ProcessingReport result = schema.validate(json, true);
+      if (result.isSuccess()) {
+        if (validHashes.add(hash) && cache != null) {
+          synchronized (cache) {
+            cache.write(hash);
+            cache.newLine();
+          }
+        }
+        return true;
+      }
+      for (ProcessingMessage message : result) {
+        if (message.getLogLevel().compareTo(LogLevel.ERROR) >= 0) {
+          String pointer = message.asJson().path("instance").path("pointer").asText("");
+          report(file, pointer, message.getMessage());
+        }
+      }
+    } catch (ProcessingException e) {
+      report(file, "", e.getMessage());
+    }
+    return false;
+  }
+
+  private void report(String file, String pointer, String message) throws IOException {
+    if (report == null) {
+      System.err.println("Validation failed for " + file + " at \"" + pointer + "\": " + message);
+      return;
+    }
+    ObjectNode line = mapper.createObjectNode();
+    line.put("file", file);
+    line.put("pointer", pointer);
+    line.put("message", message);
+    String json = mapper.writeValueAsString(line);
+    synchronized (report) {
+      report.write(json);
+      report.newLine();
+    }
+  }
+
+  /** @return the number of files that were not validated because they were known to be valid */
+  public int getCacheHits() {
+    return cacheHits.get();
+  }
+
+  /** @return the number of files validated */
+  public int getValidated() {
+    return validated.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (cache != null) {
+        cache.close();
+      }
+    } finally {
+      if (report != null) {
+        report.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,313 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A resident search service over an index, on a local HTTP endpoint of the JDK server.
+ * <ul>
+ *   <li>{@code GET /doi?doi=...} looks up a DOI, see {@link DoiMatcher#normalize(String)}.</li>
+ *   <li>{@code GET /search?q=...&n=10&sort=-year} runs a query in the Lucene query syntax on the
+ *   full text, sorted by relevance or by a typed field, see {@link FieldMapping}.</li>
+ *   <li>{@code POST /match?column=DOI} matches the DOIs of the CSV file in the request body.</li>
+ * </ul>
+ * The searcher is shared through a {@link SearcherManager}, which is refreshed periodically,
+ * so the commits of a running {@link JSONIndexer} become visible without a restart.
+ * The responses of the GET requests are kept in a bounded LRU cache, cleared on every refresh.
+ * Requests are handled concurrently, on virtual threads if the JVM has them.
+ */
+public class SearchService implements Closeable {
+
+  private static final int DEFAULT_HITS = 10;
+  private static final int MAX_HITS = 1000;
+
+  private final SearcherManager searcherManager;
+  private final Analyzer analyzer;
+  private final FieldMapping mapping;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Map<String, byte[]> cache;
+  /** Counts the refreshes, so that a response from an older searcher is not cached. */
+  private long generation = 0;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ScheduledExecutorService refresher;
+
+  /**
+   * Start the service.
+   *
+   * @param dir           the index
+   * @param analyzer      the analyzer of the full text, for the query parser
+   * @param mapping       the field types, for sorting
+   * @param port          the local port, or 0 for any free port
+   * @param cacheSize     the maximum number of cached responses
+   * @param refreshMillis how often to look for new commits
+   * @throws IOException If the index cannot be opened or the port cannot be bound
+   */
+  public SearchService(Directory dir, Analyzer analyzer, FieldMapping mapping, int port, int cacheSize,
+                       long refreshMillis) throws IOException {
+    this.searcherManager = new SearcherManager(dir, null);
+    this.analyzer = analyzer;
+    this.mapping = mapping;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+        return size() > cacheSize;
+      }
+    };
+    searcherManager.addListener(new ReferenceManager.RefreshListener() {
+      @Override
+      public void beforeRefresh() {
+      }
+
+      @Override
+      public void afterRefresh(boolean didRefresh) {
+        if (didRefresh) {
+          synchronized (cache) {
+            cache.clear();
+            generation++;
+          }
+        }
+      }
+    });
+    this.refresher = Executors.newSingleThreadScheduledExecutor();
+    refresher.scheduleWithFixedDelay(() -> {
+      try {
+        searcherManager.maybeRefresh();
+      } catch (IOException e) {
+        System.err.println("Could not refresh the searcher: " + e);
+      }
+    }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+
+    this.executor = newRequestExecutor();
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/doi", exchange -> handle(exchange, "GET", this::lookUpDoi));
+    server.createContext("/search", exchange -> handle(exchange, "GET", this::search));
+    server.createContext("/match", exchange -> handle(exchange, "POST", this::match));
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /** @return a virtual thread per request on JVMs that have them (Java 21+), otherwise a cached pool */
+  private static ExecutorService newRequestExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /** @return the port the service listens on */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Make the latest commit visible now, instead of at the next periodic refresh.
+   *
+   * @throws IOException If the index cannot be read
+   */
+  public void refresh() throws IOException {
+    searcherManager.maybeRefreshBlocking();
+  }
+
+  private interface Endpoint {
+    /** @return the JSON response */
+    ObjectNode respond(IndexSearcher searcher, Map<String, String> params, InputStream body)
+        throws IOException, ParseException;
+  }
+
+  private void handle(HttpExchange exchange, String method, Endpoint endpoint) throws IOException {
+    try {
+      if (!exchange.getRequestMethod().equals(method)) {
+        send(exchange, 405, error("Use " + method));
+        return;
+      }
+      String query = exchange.getRequestURI().getRawQuery();
+      String key = exchange.getRequestURI().getPath() + "?" + query;
+      byte[] response = null;
+      long cachedGeneration;
+      synchronized (cache) {
+        cachedGeneration = generation;
+        if (method.equals("GET")) {
+          response = cache.get(key);
+        }
+      }
+      if (response == null) {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+          response = mapper.writeValueAsBytes(endpoint.respond(searcher, parseQuery(query), exchange.getRequestBody()));
+        } finally {
+          searcherManager.release(searcher);
+        }
+        if (method.equals("GET")) {
+          synchronized (cache) {
+            if (generation == cachedGeneration) {
+              cache.put(key, response);
+            }
+          }
+        }
+      }
+      send(exchange, 200, response);
+    } catch (ParseException | IllegalArgumentException e) {
+      send(exchange, 400, error(e.getMessage()));
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Request " + exchange.getRequestURI() + " failed: " + e);
+      // The response code is -1 until the headers are sent; after that the error can only be logged
+      if (exchange.getResponseCode() == -1) {
+        send(exchange, 500, error(e.toString()));
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private ObjectNode lookUpDoi(IndexSearcher searcher, Map<String, String> params, InputStream body)
+      throws IOException {
+    String doi = required(params, "doi");
+    TopDocs hits = searcher.search(new TermQuery(new Term(DoiMatcher.DOI_KEY_FIELD, DoiMatcher.normalize(doi))),
+        DEFAULT_HITS);
+    ObjectNode response = mapper.createObjectNode();
+    response.put("doi", doi);
+    response.put("found", hits.totalHits.value > 0);
+    response.set("hits", hits(searcher, hits));
+    return response;
+  }
+
+  private ObjectNode search(IndexSearcher searcher, Map<String, String> params, InputStream body)
+      throws IOException, ParseException {
+    // Query parsers are not thread-safe
+    Query query = new QueryParser(JSONIndexer.CONTENTS_FIELD, analyzer).parse(required(params, "q"));
+    int n = Math.min(Integer.parseInt(params.getOrDefault("n", Integer.toString(DEFAULT_HITS))), MAX_HITS);
+    String sort = params.get("sort");
+    TopDocs hits;
+    if (sort == null) {
+      hits = searcher.search(query, n);
+    } else {
+      boolean reverse = sort.startsWith("-");
+      hits = searcher.search(query, n, new Sort(mapping.sortField(reverse ? sort.substring(1) : sort, reverse)));
+    }
+    ObjectNode response = mapper.createObjectNode();
+    response.put("query", query.toString());
+    response.put("total", hits.totalHits.value);
+    response.set("hits", hits(searcher, hits));
+    return response;
+  }
+
+  private ObjectNode match(IndexSearcher searcher, Map<String, String> params, InputStream body) throws IOException {
+    String column = params.getOrDefault("column", "DOI");
+    StringBuilder matched = new StringBuilder();
+    StringBuilder missing = new StringBuilder();
+    DoiMatcher matcher = new DoiMatcher(searcher.getIndexReader(), DoiMatcher.DOI_KEY_FIELD, 4096, matched, missing);
+    Reader csv = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+    for (CSVRecord record : CSVFormat.EXCEL.builder().setHeader().setSkipHeaderRecord(true).build().parse(csv)) {
+      matcher.add(record.get(column));
+    }
+    matcher.flush();
+    ObjectNode response = mapper.createObjectNode();
+    response.put("records", matcher.getRecords());
+    response.put("matched", matcher.getMatched());
+    response.set("missing", lines(missing));
+    return response;
+  }
+
+  private ArrayNode hits(IndexSearcher searcher, TopDocs hits) throws IOException {
+    ArrayNode array = mapper.createArrayNode();
+    StoredFields storedFields = searcher.storedFields();
+    for (ScoreDoc hit : hits.scoreDocs) {
+      Document doc = storedFields.document(hit.doc);
+      ObjectNode node = array.addObject();
+      node.put("path", doc.get("path"));
+      node.put("doi", doc.get("doi"));
+      if (!Float.isNaN(hit.score)) {
+        node.put("score", hit.score);
+      }
+    }
+    return array;
+  }
+
+  private ArrayNode lines(CharSequence text) {
+    ArrayNode array = mapper.createArrayNode();
+    for (String line : text.toString().split(System.lineSeparator())) {
+      if (!line.isEmpty()) {
+        array.add(line);
+      }
+    }
+    return array;
+  }
+
+  private static String required(Map<String, String> params, String name) {
+    String value = params.get(name);
+    if (value == null || value.isBlank()) {
+      throw new IllegalArgumentException("Missing parameter " + name);
+    }
+    return value;
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> params = new HashMap<>();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        int eq = pair.indexOf('=');
+        String name = eq < 0 ? pair : pair.substring(0, eq);
+        String value = eq < 0 ? "" : pair.substring(eq + 1);
+        params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+      }
+    }
+    return params;
+  }
+
+  private byte[] error(String message) throws IOException {
+    ObjectNode error = mapper.createObjectNode();
+    error.put("error", message);
+    return mapper.writeValueAsBytes(error);
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] response) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, response.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(response);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.stop(0);
+    refresher.shutdownNow();
+    executor.shutdown();
+    searcherManager.close();
+  }
+}
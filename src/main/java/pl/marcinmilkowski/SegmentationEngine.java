@@ -0,0 +1,364 @@
+package pl.marcinmilkowski;
+
+import net.loomchild.segment.TextIterator;
+import net.loomchild.segment.srx.SrxDocument;
+import net.loomchild.segment.srx.SrxTextIterator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Segments and filters many texts in parallel on a fork-join pool. All workers share the
+ * same {@link SrxDocument}, which is read-only once parsed and caches its compiled rules
+ * in a concurrent map; each task creates its own SRX text iterator.
+ * <p>
+ * The parallelism is the throughput setting: keep it below the number of cores to leave room
+ * for other jobs on the same host. At most four files per worker are in flight at a time,
+ * from their submission until their sentences are written, including the files the writer
+ * holds back behind a slow earlier file, so a fast directory walk does not fill the memory.
+ * Files whose work fails and the time spent writing are recorded in the {@link Metrics}.
+ */
+public class SegmentationEngine implements AutoCloseable {
+
+  /** Characters of context on each side of a keyword hit that are segmented at first. */
+  private static final int WINDOW = 2000;
+
+  /**
+   * A sentence boundary is trusted only if it is at least this far from the edge of the
+   * segmented window, so that the SRX rules saw the same context as in the whole text.
+   */
+  private static final int CONTEXT = 200;
+
+  /** A line break with the white space around it. */
+  private static final Pattern LINE_BREAK = Pattern.compile("\\s*\\R\\s*");
+
+  private final SrxDocument srxDocument;
+  private final String languageCode;
+  private final ForkJoinPool pool;
+  private final int maxInFlight;
+  private final Semaphore inFlight;
+  private volatile IOException failure;
+  private Metrics metrics = new Metrics();
+
+  /**
+   * @param srxDocument  the segmentation rules, shared by all workers
+   * @param languageCode the language code for the rules, e.g. "EN_one"
+   * @param parallelism  the number of worker threads
+   */
+  public SegmentationEngine(SrxDocument srxDocument, String languageCode, int parallelism) {
+    this.srxDocument = srxDocument;
+    this.languageCode = languageCode;
+    this.pool = new ForkJoinPool(parallelism);
+    this.maxInFlight = parallelism * 4;
+    this.inFlight = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * Record the failed files and the writes in the given metrics; set it before submitting any work.
+   *
+   * @param metrics the metrics
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Split the text into sentences.
+   *
+   * @param text the text
+   * @return the sentences
+   */
+  public List<String> sentenceTokenize(String text) {
+    return tokenize(text, srxDocument, languageCode);
+  }
+
+  /**
+   * The corpus line of a sentence: each line break in it, with the white space around it, becomes
+   * one space, and the white space around the sentence is removed. All corpus modes write their
+   * sentences this way, so a corpus always has one sentence per line.
+   *
+   * @param sentence the sentence, as segmented
+   * @return the line, without a line separator; empty if the sentence is blank
+   */
+  public static String toLine(String sentence) {
+    if (sentence.indexOf('\n') < 0 && sentence.indexOf('\r') < 0) {
+      return sentence.strip();
+    }
+    return LINE_BREAK.matcher(sentence).replaceAll(" ").strip();
+  }
+
+  static List<String> tokenize(String text, SrxDocument srxDocument, String code) {
+    List<String> segments = new ArrayList<>();
+    TextIterator textIterator = new SrxTextIterator(srxDocument, code, text);
+    while (textIterator.hasNext()) {
+      segments.add(textIterator.next());
+    }
+    return segments;
+  }
+
+  /**
+   * Return the sentences of the text that match the filter, each with a line separator,
+   * like {@link TextCorpusMaker#getFilteredText(String, Pattern)}.
+   *
+   * @param text   the text
+   * @param filter the regular expression a sentence has to match
+   * @return the matching sentences
+   */
+  public List<String> getFilteredText(String text, Pattern filter) {
+    List<String> filteredSentences = new ArrayList<>();
+    for (String sentence : sentenceTokenize(text)) {
+      String line = toLine(sentence);
+      if (!line.isEmpty() && filter.matcher(line).matches()) {
+        filteredSentences.add(line + System.lineSeparator());
+      }
+    }
+    return filteredSentences;
+  }
+
+  /**
+   * Return the sentences that contain any of the keywords, grouped by keyword.
+   * The text is first scanned with the keyword automaton, and only the windows around
+   * the hits are segmented, so texts without hits are never segmented. A window is widened
+   * until the sentence boundaries around each hit are far enough from its edges to be
+   * the same as in the whole text.
+   *
+   * @param text     the text
+   * @param keywords the keyword automaton
+   * @return for each keyword with hits, the sentences containing it, each as a line, see {@link #toLine(String)}
+   */
+  public Map<String, List<String>> getKeywordSentences(String text, KeywordAutomaton keywords) {
+    Map<String, List<String>> result = new LinkedHashMap<>();
+    int[][] hits = {new int[16]};
+    int[] hitCount = {0};
+    keywords.find(text, 0, text.length(), (start, end, keyword) -> {
+      if (hitCount[0] == hits[0].length) {
+        hits[0] = Arrays.copyOf(hits[0], hits[0].length * 2);
+      }
+      hits[0][hitCount[0]++] = start;
+      return true;
+    });
+    if (hitCount[0] == 0) {
+      return result;
+    }
+    int[] starts = Arrays.copyOf(hits[0], hitCount[0]);
+    Arrays.sort(starts);
+    int length = text.length();
+    int emittedEnd = 0;
+    boolean[] found = new boolean[keywords.getKeywords().size()];
+    int i = 0;
+    while (i < starts.length) {
+      int window = WINDOW;
+      while (true) {
+        int windowStart = Math.max(0, starts[i] - window);
+        int windowEnd = Math.min(length, starts[i] + window);
+        int j = i;
+        while (j + 1 < starts.length && starts[j + 1] < windowEnd) {
+          j++;
+          windowEnd = Math.min(length, starts[j] + window);
+        }
+        List<String> segments = tokenize(text.substring(windowStart, windowEnd), srxDocument, languageCode);
+        if (!emitWindow(segments, windowStart, windowEnd, length, starts, i, j, emittedEnd, keywords, found, result)) {
+          window *= 4;
+          continue;
+        }
+        int end = windowStart;
+        for (String segment : segments) {
+          end += segment.length();
+          if (end > starts[j]) {
+            break;
+          }
+        }
+        emittedEnd = end;
+        i = j + 1;
+        break;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Add the sentences of the window that contain hits i to j to the result.
+   *
+   * @return false, without adding anything, if a boundary of such a sentence is too close to the window edge
+   */
+  private boolean emitWindow(List<String> segments, int windowStart, int windowEnd, int length, int[] starts,
+                             int i, int j, int emittedEnd, KeywordAutomaton keywords, boolean[] found,
+                             Map<String, List<String>> result) {
+    List<String> sentences = new ArrayList<>();
+    int start = windowStart;
+    int hit = i;
+    for (String segment : segments) {
+      int end = start + segment.length();
+      if (hit <= j && starts[hit] < end) {
+        boolean trusted = (windowStart == 0 || start - windowStart >= CONTEXT)
+            && (windowEnd == length || windowEnd - end >= CONTEXT);
+        if (!trusted) {
+          return false;
+        }
+        if (start >= emittedEnd) {
+          sentences.add(segment);
+        }
+        while (hit <= j && starts[hit] < end) {
+          hit++;
+        }
+      }
+      start = end;
+    }
+    for (String sentence : sentences) {
+      Arrays.fill(found, false);
+      keywords.find(sentence, 0, sentence.length(), (s, e, keyword) -> {
+        found[keyword] = true;
+        return true;
+      });
+      String line = toLine(sentence) + System.lineSeparator();
+      for (int k = 0; k < found.length; k++) {
+        if (found[k]) {
+          result.computeIfAbsent(keywords.getKeywords().get(k), key -> new ArrayList<>()).add(line);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Run the work for one source file on the pool and hand its sentences to the writer,
+   * which puts them back in input order. A file whose work fails is reported and skipped.
+   * Blocks while too many files are waiting for a worker.
+   *
+   * @param sequence the position of the file in the input
+   * @param source   the source file
+   * @param work     reads, cleans, segments and filters the file
+   * @param out      the ordered output stage
+   * @throws InterruptedException If interrupted while waiting for a free slot
+   */
+  public void submit(long sequence, String source, Callable<List<String>> work, CorpusWriter out)
+      throws InterruptedException {
+    execute(source, work, new ArrayList<>(), (sentences, written) -> out.write(sequence, source, sentences, written));
+  }
+
+  /**
+   * Run the work for one source file on the pool and hand the sentences of each keyword to
+   * the writer of that keyword, see {@link #getKeywordSentences(String, KeywordAutomaton)}.
+   * Every writer gets the sequence number, with no sentences if the file had no hits for it.
+   *
+   * @param sequence the position of the file in the input
+   * @param source   the source file
+   * @param work     reads, cleans and segments the file and groups its sentences by keyword
+   * @param outs     the ordered output stage of each keyword
+   * @throws InterruptedException If interrupted while waiting for a free slot
+   */
+  public void submitKeywords(long sequence, String source, Callable<Map<String, List<String>>> work,
+                             Map<String, CorpusWriter> outs) throws InterruptedException {
+    execute(source, work, new LinkedHashMap<>(), (sentences, written) -> {
+      // The file is done once every keyword writer has written it
+      AtomicInteger remaining = new AtomicInteger(outs.size());
+      Runnable writtenOnce = () -> {
+        if (remaining.decrementAndGet() == 0) {
+          written.run();
+        }
+      };
+      if (outs.isEmpty()) {
+        written.run();
+      }
+      for (Map.Entry<String, CorpusWriter> out : outs.entrySet()) {
+        out.getValue().write(sequence, source, sentences.getOrDefault(out.getKey(), new ArrayList<>()), writtenOnce);
+      }
+    });
+  }
+
+  private <T> void execute(String source, Callable<T> work, T empty, ResultWriter<T> writer)
+      throws InterruptedException {
+    inFlight.acquire();
+    // The slot is freed when the writer has written the file, not when it has taken it
+    AtomicBoolean released = new AtomicBoolean();
+    Runnable release = () -> {
+      if (released.compareAndSet(false, true)) {
+        inFlight.release();
+      }
+    };
+    pool.execute(() -> {
+      try {
+        T result;
+        try {
+          result = work.call();
+        } catch (Exception e) {
+          System.err.println("Could not process " + source + ": " + e);
+          metrics.fileFailed();
+          result = empty;
+        }
+        Metrics.Timer timer = metrics.start(Metrics.Stage.WRITE, source);
+        writer.write(result, release);
+        timer.stop(0);
+      } catch (IOException e) {
+        fail(e);
+      } catch (RuntimeException e) {
+        fail(new IOException("Could not write " + source, e));
+      }
+    });
+  }
+
+  /**
+   * Record a write failure. The files behind the failed one will never leave the writer, so
+   * their slots are given back at once, and {@link #awaitCompletion()} reports the failure.
+   */
+  private void fail(IOException e) {
+    failure = e;
+    inFlight.release(maxInFlight);
+  }
+
+  private interface ResultWriter<T> {
+    /**
+     * @param result  the result of the work
+     * @param written to be run once the result is written
+     */
+    void write(T result, Runnable written) throws IOException;
+  }
+
+  /**
+   * Wait until all submitted work is written.
+   *
+   * @throws IOException If the output could not be written
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public void awaitCompletion() throws IOException, InterruptedException {
+    inFlight.acquire(maxInFlight);
+    inFlight.release(maxInFlight);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Wait for the submitted work and stop the workers. If interrupted, the interrupt flag is
+   * restored and the close fails with an {@link InterruptedIOException}.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      try {
+        awaitCompletion();
+      } finally {
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      pool.shutdownNow();
+      InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting for the segmentation");
+      interrupted.initCause(e);
+      throw interrupted;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package pl.marcinmilkowski;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.queryparser.surround.query.BasicQueryFactory;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A Lucene index with one document per sentence, so that a keyword corpus is a query instead of
+ * a new pass over all the XML files. Each sentence keeps its source path, its ordinal in the file,
+ * its character offsets in the cleaned text, the review type and corpus of the file, and its text.
+ * <p>
+ * The index is sorted by path and ordinal, and an export merges the hits of the segments in that
+ * order, so the sentences of a file come out together and in text order, in the format of
+ * {@link CorpusWriter}. The sentences are read one by one from the stored fields, so exports of any
+ * size stream in constant memory.
+ */
+public class SentenceIndex {
+
+  /** The source file of the sentence, see {@link CorpusEntry#getName()}. */
+  public static final String PATH_FIELD = "path";
+  /** The position of the sentence in its file, from 0. */
+  public static final String ORDINAL_FIELD = "ordinal";
+  /** The offset of the first character of the sentence in the cleaned text of the file. */
+  public static final String START_FIELD = "start";
+  /** The offset after the last character of the sentence in the cleaned text of the file. */
+  public static final String END_FIELD = "end";
+  /** The review type of the file, see {@link TextCorpusMaker#getReviewType(String)}. */
+  public static final String REVIEW_TYPE_FIELD = "review_type";
+  /** The corpus of the file, see {@link TextCorpusMaker#getCorpusName(CorpusSource, CorpusEntry)}. */
+  public static final String CORPUS_FIELD = "corpus";
+  /** The tokenized and stored text of the sentence. */
+  public static final String TEXT_FIELD = "text";
+
+  /** The order of the index and of the exports. */
+  public static final Sort SORT = new Sort(
+      new SortField(PATH_FIELD, SortField.Type.STRING), new SortField(ORDINAL_FIELD, SortField.Type.LONG));
+
+  private SentenceIndex() {
+  }
+
+  /**
+   * @return the analyzer of the sentence index: the text is analyzed as usual, the other fields are kept as they are
+   */
+  public static Analyzer analyzer() {
+    Analyzer keyword = new KeywordAnalyzer();
+    return new PerFieldAnalyzerWrapper(new StandardAnalyzer(),
+        Map.of(PATH_FIELD, keyword, REVIEW_TYPE_FIELD, keyword, CORPUS_FIELD, keyword));
+  }
+
+  /**
+   * @param analyzer the analyzer, see {@link #analyzer()}
+   * @return the writer configuration with the index sort
+   */
+  public static IndexWriterConfig config(Analyzer analyzer) {
+    IndexWriterConfig config = new IndexWriterConfig(analyzer);
+    config.setIndexSort(SORT);
+    return config;
+  }
+
+  /**
+   * Index the sentences of one file, replacing the sentences indexed for it before.
+   *
+   * @param writer     the writer, configured with {@link #config(Analyzer)}
+   * @param path       the source file
+   * @param corpus     the corpus of the file
+   * @param reviewType the review type of the file
+   * @param sentences  all sentences of the cleaned text, in order, see {@link SegmentationEngine#sentenceTokenize(String)}
+   * @throws IOException If the index cannot be written
+   */
+  public static void addSentences(IndexWriter writer, String path, String corpus, String reviewType,
+                                  List<String> sentences) throws IOException {
+    List<Document> docs = new ArrayList<>(sentences.size());
+    BytesRef pathBytes = new BytesRef(path);
+    int start = 0;
+    for (int ordinal = 0; ordinal < sentences.size(); ordinal++) {
+      String sentence = sentences.get(ordinal);
+      int end = start + sentence.length();
+      Document doc = new Document();
+      doc.add(new StringField(PATH_FIELD, path, Field.Store.YES));
+      doc.add(new SortedDocValuesField(PATH_FIELD, pathBytes));
+      doc.add(new StoredField(ORDINAL_FIELD, ordinal));
+      doc.add(new NumericDocValuesField(ORDINAL_FIELD, ordinal));
+      doc.add(new StoredField(START_FIELD, start));
+      doc.add(new StoredField(END_FIELD, end));
+      doc.add(new StringField(REVIEW_TYPE_FIELD, reviewType, Field.Store.YES));
+      doc.add(new StringField(CORPUS_FIELD, corpus, Field.Store.YES));
+      doc.add(new TextField(TEXT_FIELD, sentence, Field.Store.YES));
+      docs.add(doc);
+      start = end;
+    }
+    writer.updateDocuments(new Term(PATH_FIELD, path), docs);
+  }
+
+  /**
+   * Parse a query on the sentences. The classic syntax covers terms, phrases, proximity,
+   * wildcards and regular expressions, e.g. {@code understanding* AND review_type:r} or
+   * {@code /understandings?/}; the surround syntax builds span queries, e.g. {@code 3w(understanding, mind)}.
+   *
+   * @param query    the query
+   * @param surround whether the query is in the surround syntax instead of the classic one
+   * @param analyzer the analyzer of the index, see {@link #analyzer()}
+   * @return the Lucene query, on the text field by default
+   * @throws ParseException If the classic query is malformed
+   * @throws org.apache.lucene.queryparser.surround.parser.ParseException If the surround query is malformed
+   */
+  public static Query parse(String query, boolean surround, Analyzer analyzer)
+      throws ParseException, org.apache.lucene.queryparser.surround.parser.ParseException {
+    if (surround) {
+      return org.apache.lucene.queryparser.surround.parser.QueryParser.parse(query)
+          .makeLuceneQueryField(TEXT_FIELD, new BasicQueryFactory(1024));
+    }
+    QueryParser parser = new QueryParser(TEXT_FIELD, analyzer);
+    parser.setAllowLeadingWildcard(true);
+    return parser.parse(query);
+  }
+
+  /**
+   * Write the sentences matching the query, grouped by file in path order, each file in text order.
+   * Each sentence is written on one line, see {@link SegmentationEngine#toLine(String)}.
+   *
+   * @param reader the sentence index
+   * @param query  the query
+   * @param out    the corpus output; every file with a match gets the next sequence number
+   * @return the number of sentences written
+   * @throws IOException If the index cannot be read or the output cannot be written
+   */
+  public static long export(IndexReader reader, Query query, CorpusWriter out) throws IOException {
+    IndexSearcher searcher = new IndexSearcher(reader);
+    Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.COMPLETE_NO_SCORES, 1f);
+    PriorityQueue<Cursor> cursors = new PriorityQueue<>(
+        Comparator.<Cursor, BytesRef>comparing(cursor -> cursor.path).thenComparingLong(cursor -> cursor.ordinal));
+    for (LeafReaderContext context : reader.leaves()) {
+      Scorer scorer = weight.scorer(context);
+      if (scorer != null) {
+        Cursor cursor = new Cursor(context, scorer.iterator());
+        if (cursor.next()) {
+          cursors.add(cursor);
+        }
+      }
+    }
+    long sequence = 0;
+    long written = 0;
+    BytesRef currentPath = null;
+    List<String> sentences = new ArrayList<>();
+    while (!cursors.isEmpty()) {
+      Cursor cursor = cursors.poll();
+      if (currentPath != null && !currentPath.equals(cursor.path) && !sentences.isEmpty()) {
+        out.write(sequence++, currentPath.utf8ToString(), sentences);
+        sentences = new ArrayList<>();
+      }
+      currentPath = cursor.path;
+      String line = SegmentationEngine.toLine(cursor.text());
+      if (!line.isEmpty()) {
+        sentences.add(line + System.lineSeparator());
+        written++;
+      }
+      if (cursor.next()) {
+        cursors.add(cursor);
+      }
+    }
+    if (!sentences.isEmpty()) {
+      out.write(sequence, currentPath.utf8ToString(), sentences);
+    }
+    return written;
+  }
+
+  /** The matching live documents of one segment, with the sort keys of the current one. */
+  private static final class Cursor {
+    private final DocIdSetIterator matches;
+    private final Bits liveDocs;
+    private final SortedDocValues paths;
+    private final NumericDocValues ordinals;
+    private final StoredFields storedFields;
+    private int doc = -1;
+    BytesRef path;
+    long ordinal;
+
+    Cursor(LeafReaderContext context, DocIdSetIterator matches) throws IOException {
+      this.matches = matches;
+      this.liveDocs = context.reader().getLiveDocs();
+      this.paths = DocValues.getSorted(context.reader(), PATH_FIELD);
+      this.ordinals = DocValues.getNumeric(context.reader(), ORDINAL_FIELD);
+      this.storedFields = context.reader().storedFields();
+    }
+
+    /** @return false if there are no more matches in the segment */
+    boolean next() throws IOException {
+      do {
+        doc = matches.nextDoc();
+        if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+          return false;
+        }
+      } while (liveDocs != null && !liveDocs.get(doc));
+      if (!paths.advanceExact(doc) || !ordinals.advanceExact(doc)) {
+        throw new IOException("Not a sentence index: no path or ordinal for document " + doc);
+      }
+      // The cursor outlives the current value of the doc values
+      path = BytesRef.deepCopyOf(paths.lookupOrd(paths.ordValue()));
+      ordinal = ordinals.longValue();
+      return true;
+    }
+
+    String text() throws IOException {
+      return storedFields.document(doc).get(TEXT_FIELD);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package pl.marcinmilkowski;
+
+import net.loomchild.segment.srx.LanguageMap;
+import net.loomchild.segment.srx.LanguageRule;
+import net.loomchild.segment.srx.Rule;
+import net.loomchild.segment.srx.SrxDocument;
+import net.loomchild.segment.srx.SrxParser;
+import net.loomchild.segment.srx.io.Srx2SaxParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads SRX segmentation rules from the classpath, keeping only the rules for one language code,
+ * and caches them in a compact binary form keyed by the SHA-256 hash of the SRX file.
+ * The full SRX file is parsed and validated only when there is no valid cache entry for it;
+ * otherwise the rules are read straight from the cache, without any XML parsing.
+ */
+public class SrxRuleCache {
+
+  private static final int MAGIC = 0x53525843; // "SRXC"
+  private static final int FORMAT_VERSION = 1;
+
+  private final Path cacheDir;
+
+  /**
+   * @param cacheDir the directory with the cached rules, created if needed
+   */
+  public SrxRuleCache(Path cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  /**
+   * Load the rules for a language code from an SRX file on the classpath.
+   *
+   * @param resource     the classpath resource, e.g. "/segment.srx"
+   * @param languageCode the language code, e.g. "EN_one"
+   * @return the SRX document with the rules for the language code only
+   * @throws IOException If the resource cannot be read
+   */
+  public SrxDocument load(String resource, String languageCode) throws IOException {
+    byte[] srx;
+    try (InputStream in = SrxRuleCache.class.getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new FileNotFoundException("SRX rules not found on the classpath: " + resource);
+      }
+      srx = in.readAllBytes();
+    }
+    Path cacheFile = cacheDir.resolve(Hashes.sha256(srx) + "-" + languageCode.replaceAll("[^A-Za-z0-9_-]", "_") + ".bin");
+    if (Files.isRegularFile(cacheFile)) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+        SrxDocument document = read(in);
+        if (document != null) {
+          return document;
+        }
+      } catch (IOException e) {
+        System.err.println("Ignoring unreadable SRX cache " + cacheFile + ": " + e);
+      }
+    }
+    SrxDocument document = select(parse(srx), languageCode);
+    try {
+      Files.createDirectories(cacheDir);
+      Path tempFile = Files.createTempFile(cacheDir, "srx", ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        write(document, out);
+      }
+      Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Could not write SRX cache " + cacheFile + ": " + e);
+    }
+    return document;
+  }
+
+  /** Parse and validate the full SRX file. */
+  static SrxDocument parse(byte[] srx) {
+    Map<String, Object> parserParameters = new HashMap<>();
+    parserParameters.put(Srx2SaxParser.VALIDATE_PARAMETER, true);
+    SrxParser srxParser = new Srx2SaxParser(parserParameters);
+    return srxParser.parse(new InputStreamReader(new ByteArrayInputStream(srx), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Keep only the language maps used for the language code, so that the iterator
+   * gets the same rules as from the full document.
+   */
+  static SrxDocument select(SrxDocument document, String languageCode) {
+    SrxDocument selected = new SrxDocument(document.getCascade());
+    for (LanguageMap languageMap : document.getLanguageMapList()) {
+      if (languageMap.matches(languageCode)) {
+        selected.addLanguageMap(languageMap.getLanguagePattern().pattern(), languageMap.getLanguageRule());
+        if (!document.getCascade()) {
+          break;
+        }
+      }
+    }
+    return selected;
+  }
+
+  static void write(SrxDocument document, DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeBoolean(document.getCascade());
+    List<LanguageMap> languageMaps = document.getLanguageMapList();
+    out.writeInt(languageMaps.size());
+    for (LanguageMap languageMap : languageMaps) {
+      writeString(out, languageMap.getLanguagePattern().pattern());
+      LanguageRule languageRule = languageMap.getLanguageRule();
+      writeString(out, languageRule.getName());
+      out.writeInt(languageRule.getRuleList().size());
+      for (Rule rule : languageRule.getRuleList()) {
+        out.writeBoolean(rule.isBreak());
+        writeString(out, rule.getBeforePattern());
+        writeString(out, rule.getAfterPattern());
+      }
+    }
+  }
+
+  /** @return the document, or null if the cache was written in another format */
+  static SrxDocument read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+      return null;
+    }
+    SrxDocument document = new SrxDocument(in.readBoolean());
+    int languageMaps = in.readInt();
+    for (int i = 0; i < languageMaps; i++) {
+      String pattern = readString(in);
+      String name = readString(in);
+      int rules = in.readInt();
+      List<Rule> ruleList = new ArrayList<>(rules);
+      for (int j = 0; j < rules; j++) {
+        boolean breaking = in.readBoolean();
+        ruleList.add(new Rule(breaking, readString(in), readString(in)));
+      }
+      document.addLanguageMap(pattern, new LanguageRule(name, ruleList));
+    }
+    return document;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,255 @@
+package pl.marcinmilkowski;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the regular files of a tar stream one after the other, without extracting them.
+ * Understands the POSIX ustar format with its name prefix, GNU long names ('L' entries),
+ * and the path, size and mtime records of pax extended headers ('x' entries), which cover
+ * the archives made by GNU tar, bsdtar and the usual libraries. Directories, links and other
+ * special entries are skipped.
+ */
+class TarReader implements Closeable {
+
+  private static final int BLOCK = 512;
+
+  /** A regular file in the archive; its contents follow it in the stream. */
+  static final class Entry {
+    final String name;
+    final long size;
+    final long modified;
+
+    Entry(String name, long size, long modified) {
+      this.name = name;
+      this.size = size;
+      this.modified = modified;
+    }
+  }
+
+  private final InputStream in;
+  private final byte[] header = new byte[BLOCK];
+  /** The unread bytes of the current entry, with its padding. */
+  private long remaining = 0;
+  private long contentRemaining = 0;
+
+  /**
+   * @param in the uncompressed tar stream, best buffered
+   */
+  TarReader(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Move to the next regular file, skipping what is left of the current one.
+   *
+   * @return the entry, or null at the end of the archive
+   * @throws IOException If the stream cannot be read or is not a tar archive
+   */
+  Entry next() throws IOException {
+    skipFully(remaining);
+    remaining = 0;
+    contentRemaining = 0;
+    String longName = null;
+    String paxPath = null;
+    long paxSize = -1;
+    long paxModified = Long.MIN_VALUE;
+    while (true) {
+      if (!readBlock()) {
+        return null;
+      }
+      if (isZero(header)) {
+        // The end-of-archive marker
+        return null;
+      }
+      checkSum();
+      long size = number(124, 12);
+      byte type = header[156];
+      if (type == 'L') {
+        longName = cString(readContent(size), 0, (int) size);
+        continue;
+      }
+      if (type == 'x') {
+        byte[] records = readContent(size);
+        for (int pos = 0; pos < records.length; ) {
+          int space = indexOf(records, (byte) ' ', pos);
+          if (space < 0) {
+            break;
+          }
+          int length = Integer.parseInt(new String(records, pos, space - pos, StandardCharsets.US_ASCII));
+          if (length <= 0 || pos + length > records.length) {
+            throw new IOException("Malformed pax header");
+          }
+          String record = new String(records, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+          int equals = record.indexOf('=');
+          if (equals > 0) {
+            String key = record.substring(0, equals);
+            String value = record.substring(equals + 1);
+            if (key.equals("path")) {
+              paxPath = value;
+            } else if (key.equals("size")) {
+              paxSize = Long.parseLong(value);
+            } else if (key.equals("mtime")) {
+              paxModified = (long) (Double.parseDouble(value) * 1000);
+            }
+          }
+          pos += length;
+        }
+        continue;
+      }
+      if (paxSize >= 0) {
+        size = paxSize;
+      }
+      contentRemaining = size;
+      remaining = padded(size);
+      if (type == '0' || type == 0 || type == '7') {
+        String name = paxPath != null ? paxPath : longName != null ? longName : headerName();
+        long modified = paxModified != Long.MIN_VALUE ? paxModified : number(136, 12) * 1000;
+        return new Entry(name, size, modified);
+      }
+      // Directories, links, devices, global pax headers: skip them with their overrides
+      skipFully(remaining);
+      remaining = 0;
+      contentRemaining = 0;
+      longName = null;
+      paxPath = null;
+      paxSize = -1;
+      paxModified = Long.MIN_VALUE;
+    }
+  }
+
+  /**
+   * Read the contents of the current entry.
+   *
+   * @return the contents
+   * @throws IOException If the stream cannot be read or the entry is too large for an array
+   */
+  byte[] read() throws IOException {
+    byte[] contents = readContent(contentRemaining);
+    remaining = 0;
+    contentRemaining = 0;
+    return contents;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private byte[] readContent(long size) throws IOException {
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IOException("Tar entry too large: " + size + " bytes");
+    }
+    byte[] contents = new byte[(int) size];
+    readFully(contents, contents.length);
+    skipFully(padded(size) - size);
+    return contents;
+  }
+
+  private String headerName() {
+    String name = cString(header, 0, 100);
+    if (cString(header, 257, 6).startsWith("ustar")) {
+      String prefix = cString(header, 345, 155);
+      if (!prefix.isEmpty()) {
+        return prefix + "/" + name;
+      }
+    }
+    return name;
+  }
+
+  private void checkSum() throws IOException {
+    long sum = 0;
+    for (int i = 0; i < BLOCK; i++) {
+      sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+    }
+    if (sum != number(148, 8)) {
+      throw new IOException("Not a tar archive, or a corrupt header");
+    }
+  }
+
+  /** A numeric header field: octal digits, or big-endian base-256 if the high bit of the first byte is set. */
+  private long number(int offset, int length) throws IOException {
+    if ((header[offset] & 0x80) != 0) {
+      long value = header[offset] & 0x7f;
+      for (int i = offset + 1; i < offset + length; i++) {
+        value = (value << 8) | (header[i] & 0xff);
+      }
+      return value;
+    }
+    long value = 0;
+    boolean digits = false;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = header[i];
+      if (b >= '0' && b <= '7') {
+        value = value * 8 + (b - '0');
+        digits = true;
+      } else if (b == 0 || b == ' ') {
+        if (digits) {
+          break;
+        }
+      } else {
+        throw new IOException("Not a tar archive, or a corrupt header");
+      }
+    }
+    return value;
+  }
+
+  private static String cString(byte[] bytes, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && bytes[end] != 0) {
+      end++;
+    }
+    return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  private static int indexOf(byte[] bytes, byte b, int from) {
+    for (int i = from; i < bytes.length; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isZero(byte[] block) {
+    for (byte b : block) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long padded(long size) {
+    return (size + BLOCK - 1) / BLOCK * BLOCK;
+  }
+
+  /** @return false at the end of the stream, which some writers leave without the zero blocks */
+  private boolean readBlock() throws IOException {
+    int n = in.readNBytes(header, 0, BLOCK);
+    if (n == 0) {
+      return false;
+    }
+    if (n < BLOCK) {
+      throw new EOFException("Truncated tar header");
+    }
+    return true;
+  }
+
+  private void readFully(byte[] bytes, int length) throws IOException {
+    if (in.readNBytes(bytes, 0, length) < length) {
+      throw new EOFException("Truncated tar entry");
+    }
+  }
+
+  private void skipFully(long n) throws IOException {
+    try {
+      in.skipNBytes(n);
+    } catch (EOFException e) {
+      throw new EOFException("Truncated tar entry");
+    }
+  }
+}
@@ -2,21 +2,17 @@ package pl.marcinmilkowski;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.fge.jsonschema.core.exceptions.ProcessingException;
 import com.github.fge.jsonschema.main.JsonSchema;
 import com.github.fge.jsonschema.main.JsonSchemaFactory;
 import net.loomchild.segment.srx.SrxDocument;
-import net.loomchild.segment.TextIterator;
-import net.loomchild.segment.srx.SrxParser;
-import net.loomchild.segment.srx.SrxTextIterator;
-import net.loomchild.segment.srx.io.Srx2SaxParser;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.jetbrains.annotations.NotNull;
@@ -24,199 +20,532 @@ import org.jetbrains.annotations.NotNull;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class TextCorpusMaker {
   private static final String INDEX_DIR = "C:/marcin/LuceneIndex-plos";
-  private static final String JSON_DIR = "C:/marcin/elife/";
+  //A directory, or a zip or tar.gz archive of the files, see CorpusSource
+  private static final String JSON_DIR = System.getProperty("corpus.input", "C:/marcin/elife/");
 
   /** code for English segmentation, single end-of-line break **/
   private static final String EN_ONE = "EN_one";
 
-  private static final String SEGMENT_SRX = "C:\\Users\\marcin\\IdeaProjects\\MetadataIndexer\\src\\main\\resources\\segment.srx";
+  /** The SRX rules, loaded from the classpath. */
+  private static final String SEGMENT_SRX = "/segment.srx";
 
-  private static final Pattern ELIFE_REVIEW = Pattern.compile("eLife\\.\\d+\\.[ra](sa)?\\d+\\.xml");
-  private static final Pattern XML_TAG_PATTERN = Pattern.compile("<[^>]*>");
-  private static final Pattern XML_COMMENT_PATTERN = Pattern.compile("(?s)<!--.*?-->");
+  /** Where the parsed SRX rules are cached, see {@link SrxRuleCache}. */
+  private static final Path SRX_CACHE_DIR = Paths.get(System.getProperty("srx.cacheDir",
+      Paths.get(System.getProperty("java.io.tmpdir"), "corpora-utils-srx").toString()));
 
-  private static final Pattern XML_AMP_ENTITY = Pattern.compile("&amp;");
+  private static final Pattern ELIFE_REVIEW = Pattern.compile("eLife\\.\\d+\\.([ra])(sa)?\\d+\\.xml");
+  private static final Pattern XML_NUMERICAL_ENTITY = Pattern.compile("&#(?:(\\d+)|[xX]([0-9a-fA-F]+));");
 
-  private static final Pattern XML_LT_ENTITY = Pattern.compile("&lt;");
+  /** One cleaner per thread, so that its buffers are reused across documents. */
+  private static final ThreadLocal<XmlTextCleaner> CLEANER = ThreadLocal.withInitial(XmlTextCleaner::new);
 
-  private static final Pattern XML_APOS_ENTITY = Pattern.compile("&apos;");
-
-  private static final Pattern XML_GT_ENTITY = Pattern.compile("&gt;");
-
-  private static final Pattern XML_QUOT_ENTITY = Pattern.compile("&quot;");
-
-  private static final Pattern XML_NUMERICAL_ENTITY = Pattern.compile("&#(\\d+);");
-
-  private static final SrxDocument srxDocument = createSrxDocument();
+  /** Loads the SRX rules on first use only, so that runs without segmentation do not pay for it. */
+  private static final class SrxHolder {
+    static final SrxDocument srxDocument = createSrxDocument();
+  }
 
   //Adapt the file path to your needs.
   public static final Path CORPUS_FILE = Paths.get("c:/marcin/elife-understanding.txt");
 
+  //Output settings: bytes buffered before writing, and on-the-fly gzip compression
+  private static final int FLUSH_SIZE = Integer.getInteger("corpus.flushSize", 1 << 20);
+  private static final boolean GZIP = Boolean.getBoolean("corpus.gzip");
+  //Binary store output: with corpus.store, every corpus is also written as a CorpusStore next to its text file,
+  //e.g. elife-understanding.sent, .off and .docs. corpus.convertStore converts an existing text corpus instead.
+  private static final boolean STORE = Boolean.getBoolean("corpus.store");
+  private static final String CONVERT_STORE = System.getProperty("corpus.convertStore");
+  //Number of files segmented in parallel; lower it to leave cores for other jobs
+  private static final int THREADS = Integer.getInteger("corpus.threads", Runtime.getRuntime().availableProcessors());
+
   //This is now a regular expression for the term "understanding" (possibly in plural).
   //You can adapt it to your needs to get a different corpus.
   public static final String KEYWORD_FILTER = ".*\\bunderstandings?\\b.*";
 
+  //Keywords for the multi-keyword mode, e.g. "understanding:understanding|understandings;explanation:explanation|explanations".
+  //If set, one corpus per keyword is extracted in one pass instead of the KEYWORD_FILTER corpus.
+  private static final String KEYWORDS = System.getProperty("corpus.keywords");
+
+  //Highest n-gram order for the frequency mode, from 1 to 3; 0 extracts a corpus instead.
+  //The tables are written next to CORPUS_FILE, e.g. elife-2grams.tsv, without the n-grams seen
+  //fewer than corpus.minCount times. Partial counts over corpus.ngramMemoryMB are spilled to disk.
+  private static final int NGRAMS = Integer.getInteger("corpus.ngrams", 0);
+  private static final int MIN_COUNT = Integer.getInteger("corpus.minCount", 2);
+  private static final long NGRAM_MEMORY = Integer.getInteger("corpus.ngramMemoryMB", 512) * (1L << 20);
+
+  //Sentence index mode: every sentence of the corpus is indexed once in corpus.sentenceIndex, and
+  //a corpus is then exported to CORPUS_FILE by a Lucene query on the sentences, corpus.sentenceQuery,
+  //e.g. "understanding*" or "/understandings?/ AND review_type:r". With corpus.surroundQuery the query
+  //is a span query in the surround syntax, e.g. "3w(understanding, mind)". Without a query the index is built.
+  private static final String SENTENCE_INDEX = System.getProperty("corpus.sentenceIndex");
+  private static final String SENTENCE_QUERY = System.getProperty("corpus.sentenceQuery");
+  private static final boolean SURROUND_QUERY = Boolean.getBoolean("corpus.surroundQuery");
+
+  //Where the word and sentence statistics are written as JSON, see CorpusStatistics
+  private static final Path STATS_FILE = Paths.get(System.getProperty("corpus.statsFile",
+      CORPUS_FILE.resolveSibling("elife-stats.json").toString()));
+  //Run metrics: a progress line every few seconds (0 for none), and the JSON summary of the stages
+  private static final int PROGRESS_SECONDS = Integer.getInteger("corpus.progressSeconds", 30);
+  private static final Path METRICS_FILE = Paths.get(System.getProperty("corpus.metricsFile",
+      CORPUS_FILE.resolveSibling("elife-metrics.json").toString()));
+
   public static boolean isReview(@NotNull Path file) {
-    return (ELIFE_REVIEW.matcher(file.getFileName().toString()).matches());
+    return isReview(file.getFileName().toString());
+  }
+
+  /**
+   * @param fileName the file name of an entry, e.g. from {@link CorpusEntry#getFileName()}
+   * @return whether the file is an eLife review
+   */
+  public static boolean isReview(@NotNull String fileName) {
+    return (ELIFE_REVIEW.matcher(fileName).matches());
   }
 
-  private static int reviews = 0;
+  /**
+   * The review type of an eLife file: "r" or "a", followed by "sa" for the sub-article parts,
+   * or {@link CorpusStatistics#ARTICLE} if the file is not a review.
+   */
+  static String getReviewType(@NotNull Path file) {
+    return getReviewType(file.getFileName().toString());
+  }
 
+  /** The review type of an eLife file name, see {@link #getReviewType(Path)}. */
+  static String getReviewType(@NotNull String fileName) {
+    Matcher matcher = ELIFE_REVIEW.matcher(fileName);
+    if (!matcher.matches()) {
+      return CorpusStatistics.ARTICLE;
+    }
+    return matcher.group(2) == null ? matcher.group(1) : matcher.group(1) + matcher.group(2);
+  }
 
   /**
-   * Recursively get all corpus files from the specified directory.
+   * The corpus of a file: the first directory below the starting directory,
+   * or the starting directory itself for the files directly in it.
+   */
+  static String getCorpusName(Path startingDir, Path file) {
+    Path relative = startingDir.relativize(file);
+    if (relative.getNameCount() > 1) {
+      return relative.getName(0).toString();
+    }
+    return startingDir.getFileName() != null ? startingDir.getFileName().toString() : startingDir.toString();
+  }
+
+  /**
+   * The corpus of an entry: the first directory below the root of the source,
+   * or the directory or archive itself for the entries directly in it.
+   */
+  static String getCorpusName(CorpusSource source, CorpusEntry entry) {
+    String relativeName = entry.getRelativeName();
+    int slash = relativeName.indexOf('/');
+    return slash > 0 ? relativeName.substring(0, slash) : source.getName();
+  }
+
+  /** Add the word and sentence counts of a cleaned file to the statistics. */
+  private static void count(CorpusStatistics stats, CorpusSource source, CorpusEntry entry, XmlTextCleaner cleaner) {
+    char[] text = cleaner.getBuffer();
+    int length = cleaner.getLength();
+    stats.add(getCorpusName(source, entry), getReviewType(entry.getFileName()),
+        CorpusStatistics.countWords(text, length), CorpusStatistics.countSentences(text, length));
+  }
+
+  /** Clean an entry, timing it as the {@link Metrics.Stage#CLEAN} stage. */
+  private static XmlTextCleaner cleanFile(CorpusEntry entry, Metrics metrics) throws IOException {
+    Metrics.Timer timer = metrics.start(Metrics.Stage.CLEAN, entry);
+    XmlTextCleaner cleaner = cleanFile(entry);
+    timer.stop(entry.getAttributes().size());
+    return cleaner;
+  }
+
+  /**
+   * Recursively get all corpus files from the specified directory or archive.
    *
-   * @param startingDir The starting directory
+   * @param startingDir The starting directory, or a zip or tar archive
    */
   private static void getCorpusFiles(Path startingDir)  throws IOException, ProcessingException {
 
-    Map<String, Integer> wordCounts = new HashMap<>();
+    CorpusStatistics stats = new CorpusStatistics();
 
     ObjectMapper mapper = new ObjectMapper();
     JsonSchemaFactory schemaFactory = JsonSchemaFactory.byDefault();
 
     // Read the byte[] from the file and convert it to a JsonNode
-    JsonNode node = mapper.readTree(Files.readAllBytes(Paths.get("C:/marcin/review_schema.json")));
+    byte[] schemaSource = Files.readAllBytes(Paths.get("C:/marcin/review_schema.json"));
+    JsonNode node = mapper.readTree(schemaSource);
     // Get the JsonSchema from the JsonNode
     JsonSchema schema = schemaFactory.getJsonSchema(node);
     /* JsonSchema schema = schemaFactory.getJsonSchema(new String(Files.readAllBytes(Paths.get("C:/marcin/review_schema.json"))), StandardCharsets.UTF_8); */
 
-    Files.walkFileTree(startingDir, new SimpleFileVisitor<Path>() {
-      @Override
-      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        if (file.toString().endsWith(".json")) {
-          JsonNode json = mapper.readTree(new String(Files.readAllBytes(file)));
-
-          try {
+    // Validation errors are reported on stderr; files validated before are skipped
+    try (
+        SchemaValidator validator = new SchemaValidator(schema, schemaSource, JSONIndexer.VALIDATION_CACHE_DIR, null);
+        CorpusSource source = CorpusSource.open(startingDir)
+    ) {
+      source.walk(name -> name.endsWith(".json") || name.endsWith(".xml"), entry -> {
+        if (entry.getRelativeName().endsWith(".json")) {
+          byte[] bytes = entry.readAllBytes();
+          JsonNode json = mapper.readTree(bytes);
+          String hash = SchemaValidator.hash(bytes);
+          if (!validator.isKnownValid(hash)) {
             // Validate the JSON node against the schema
-            schema.validate(json);
-          } catch (ProcessingException e) {
-            // Handle the exception
-            e.printStackTrace();
-          }
-          Document doc = new Document();
-          doc.add(new StringField("filename", file.toString(), Field.Store.YES));
-          doc.add(new StringField("path", file.toString(), Field.Store.YES));
-          doc.add(new StringField("modified", Long.toString(attrs.lastModifiedTime().toMillis()), Field.Store.YES));
-          doc.add(new StringField("created", Long.toString(attrs.creationTime().toMillis()), Field.Store.YES));
-          doc.add(new StringField("accessed", Long.toString(attrs.lastAccessTime().toMillis()), Field.Store.YES));
-          doc.add(new StringField("type", "json", Field.Store.YES));
-
-          if (json.isObject()) {
-            ObjectNode object = (ObjectNode) json;
-            object.fields().forEachRemaining(entry -> {
-              String key = entry.getKey();
-              JsonNode value = entry.getValue();
-              if (value.isTextual()) {
-                doc.add(new StringField(key, value.asText(), Field.Store.YES));
-              } else if (value.isNumber()) {
-                doc.add(new StringField(key, value.asText(), Field.Store.YES));
-              } else if (value.isBoolean()) {
-                doc.add(new StringField(key, Boolean.toString(value.asBoolean()), Field.Store.YES));
-              }
-            });
+            validator.validate(entry.getName(), hash, json);
           }
+          Document doc = JSONIndexer.createDocument(entry.getName(), entry.getAttributes(), json, FieldMapping.DEFAULT);
 
           // writer.addDocument(doc);
-        } else if (file.toString().endsWith(".xml")) {
+        } else {
           // process xml files
-          String content = Files.readString(file);
-          if (isReview(file)) {
-            wordCounts.put(file.toString(), getWordCount(content));
-            reviews += 1;
-          }
+          count(stats, source, entry, cleanFile(entry));
         }
-        return FileVisitResult.CONTINUE;
-      }
-    });
-    int total = wordCounts.values().stream().mapToInt(Integer::intValue).sum();
-    double mean = wordCounts.values().stream().mapToInt(Integer::intValue).average().orElse(0.0);
-    double median = wordCounts.values().stream().sorted().skip(wordCounts.size() / 2).findFirst().orElse(0);
-
-    System.out.println("Total: " + total + " in " + wordCounts.size() + " files.");
-    System.out.println("Reviews: " + reviews);
-    System.out.println("Mean: " + mean);
-    System.out.println("Median: " + median);
+      });
+    }
+    printSummary(stats);
   }
 
   /**
    * Generate a filtered corpus and store it in the specified file.
+   * The files are cleaned, segmented and filtered in parallel by a {@link SegmentationEngine},
+   * and their sentences are written in the order of the directory walk.
    *
-   * @param startingDir  The starting directory for JSON files
-   * @param corpusFile   The path to the output corpus file
+   * @param startingDir  The starting directory for JSON files, or a zip or tar archive
+   * @param corpusFile   The path to the output corpus file, see {@link CorpusWriter}
    * @param filter  The regular expression for filtering corpus text
+   * @param metrics The metrics of the run
    * @throws IOException If an I/O error occurs
    */
-  private static void getFilteredCorpusText(Path startingDir, Path corpusFile, Pattern filter)  throws IOException, ProcessingException {
+  private static void getFilteredCorpusText(Path startingDir, Path corpusFile, Pattern filter, Metrics metrics)
+      throws IOException, ProcessingException, InterruptedException {
+
+    CorpusStatistics stats = new CorpusStatistics();
+
+    try (
+        CorpusWriter corpusWriter = newCorpusWriter(corpusFile);
+        SegmentationEngine engine = new SegmentationEngine(getSrxDocument(), EN_ONE, THREADS);
+        CorpusSource source = CorpusSource.open(startingDir)
+    ) {
+      engine.setMetrics(metrics);
+      source.walk(name -> name.endsWith(".xml"), new CorpusSource.EntryVisitor() {
+        private long sequence = 0;
+
+        @Override
+        public void visit(CorpusEntry entry) throws IOException {
+          // process xml files in parallel, cleaning each one once
+          metrics.discovered();
+          try {
+            engine.submit(sequence++, entry.getName(), () -> {
+              XmlTextCleaner cleaner = cleanFile(entry, metrics);
+              count(stats, source, entry, cleaner);
+              String text = new String(cleaner.getBuffer(), 0, cleaner.getLength());
+              Metrics.Timer timer = metrics.start(Metrics.Stage.SEGMENT, entry);
+              List<String> sentences = engine.getFilteredText(text, filter);
+              timer.stop(text.length());
+              metrics.addSentences(sentences.size());
+              metrics.fileDone(entry.getAttributes().size());
+              return sentences;
+            }, corpusWriter);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted at " + entry);
+          }
+        }
+      });
+      metrics.walkDone();
+    }
 
-    Map<String, Integer> wordCounts = new HashMap<>();
+    printSummary(stats);
+  }
 
-    reviews = 0;
 
-    Files.walkFileTree(startingDir, new SimpleFileVisitor<Path>() {
-      @Override
-      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-     if (file.toString().endsWith(".xml")) {
-          // process xml files
-          String content = Files.readString(file);
-          if (isReview(file)) {
-            wordCounts.put(file.toString(), getWordCount(content));
-            reviews += 1;
+  /**
+   * Generate one corpus per keyword in a single pass. Each cleaned file is first scanned with
+   * the keyword automaton, and only the regions around the hits are segmented.
+   *
+   * @param startingDir The starting directory, or a zip or tar archive
+   * @param corpusFiles The output corpus file of each keyword
+   * @param keywords    The keyword automaton
+   * @param metrics     The metrics of the run
+   * @throws IOException If an I/O error occurs
+   */
+  private static void getKeywordCorpora(Path startingDir, Map<String, Path> corpusFiles, KeywordAutomaton keywords,
+                                        Metrics metrics) throws IOException, InterruptedException {
+
+    CorpusStatistics stats = new CorpusStatistics();
+
+    Map<String, CorpusWriter> corpusWriters = new LinkedHashMap<>();
+    try {
+      for (Map.Entry<String, Path> corpusFile : corpusFiles.entrySet()) {
+        corpusWriters.put(corpusFile.getKey(), newCorpusWriter(corpusFile.getValue()));
+      }
+      try (
+          SegmentationEngine engine = new SegmentationEngine(getSrxDocument(), EN_ONE, THREADS);
+          CorpusSource source = CorpusSource.open(startingDir)
+      ) {
+        engine.setMetrics(metrics);
+        source.walk(name -> name.endsWith(".xml"), new CorpusSource.EntryVisitor() {
+          private long sequence = 0;
+
+          @Override
+          public void visit(CorpusEntry entry) throws IOException {
+            metrics.discovered();
+            try {
+              engine.submitKeywords(sequence++, entry.getName(), () -> {
+                XmlTextCleaner cleaner = cleanFile(entry, metrics);
+                count(stats, source, entry, cleaner);
+                String text = new String(cleaner.getBuffer(), 0, cleaner.getLength());
+                Metrics.Timer timer = metrics.start(Metrics.Stage.SEGMENT, entry);
+                Map<String, List<String>> sentences = engine.getKeywordSentences(text, keywords);
+                timer.stop(text.length());
+                for (List<String> keywordSentences : sentences.values()) {
+                  metrics.addSentences(keywordSentences.size());
+                }
+                metrics.fileDone(entry.getAttributes().size());
+                return sentences;
+              }, corpusWriters);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("Interrupted at " + entry);
+            }
           }
-          Files.write(corpusFile,
-              getFilteredText(getCleanText(content), filter),
-              StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        });
+        metrics.walkDone();
+      }
+    } finally {
+      for (CorpusWriter corpusWriter : corpusWriters.values()) {
+        corpusWriter.close();
+      }
+    }
+
+    printSummary(stats);
+  }
+
+  /** The work done on one corpus file by {@link #forEachXmlFile}. */
+  @FunctionalInterface
+  interface EntryTask {
+    void process(CorpusSource source, CorpusEntry entry) throws IOException;
+  }
+
+  /**
+   * Walk the XML files of the corpus and process them on {@link #THREADS} threads. The walk waits
+   * while four files per thread are queued, as in {@link SegmentationEngine}, so memory stays
+   * bounded; a file that fails is reported and counted, and the others are still processed.
+   *
+   * @param startingDir The starting directory, or a zip or tar archive
+   * @param action      What the task does, for the error messages
+   * @param metrics     The metrics of the run
+   * @param task        The work done on each file
+   * @throws IOException If the corpus cannot be walked
+   */
+  static void forEachXmlFile(Path startingDir, String action, Metrics metrics, EntryTask task)
+      throws IOException, InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    Semaphore permits = new Semaphore(THREADS * 4);
+    try (CorpusSource source = CorpusSource.open(startingDir)) {
+      source.walk(name -> name.endsWith(".xml"), entry -> {
+        metrics.discovered();
+        try {
+          permits.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted at " + entry);
+        }
+        pool.execute(() -> {
+          try {
+            task.process(source, entry);
+            metrics.fileDone(entry.getAttributes().size());
+          } catch (IOException | RuntimeException e) {
+            System.err.println("Could not " + action + " " + entry + ": " + e);
+            metrics.fileFailed();
+          } finally {
+            permits.release();
+          }
+        });
+      });
+      metrics.walkDone();
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+  }
+
+  /**
+   * Count the token and n-gram frequencies of the cleaned text of all XML files, see {@link FrequencyCounter}.
+   * The files are cleaned and counted in parallel, each thread in its own partial counts.
+   *
+   * @param startingDir  The starting directory, or a zip or tar archive
+   * @param outputPrefix The path prefix of the frequency tables
+   * @param maxOrder     The highest n-gram order
+   * @param minCount     The minimum count of the n-grams written
+   * @param metrics      The metrics of the run
+   * @throws IOException If an I/O error occurs
+   */
+  private static void getFrequencies(Path startingDir, Path outputPrefix, int maxOrder, int minCount,
+                                     Metrics metrics) throws IOException, InterruptedException {
+    Path workDir = Files.createTempDirectory(outputPrefix.toAbsolutePath().getParent(), "ngrams");
+    FrequencyCounter counter = new FrequencyCounter(workDir, maxOrder, NGRAM_MEMORY, THREADS);
+    List<Path> tables;
+    try {
+      forEachXmlFile(startingDir, "count", metrics, (source, entry) -> {
+        XmlTextCleaner cleaner = cleanFile(entry, metrics);
+        Metrics.Timer timer = metrics.start(Metrics.Stage.COUNT, entry);
+        counter.add(cleaner.getBuffer(), cleaner.getLength());
+        timer.stop(cleaner.getLength());
+      });
+      tables = counter.finish(outputPrefix, minCount);
+    } finally {
+      // The runs left by a failed walk or merge can be large
+      try (DirectoryStream<Path> runs = Files.newDirectoryStream(workDir)) {
+        for (Path run : runs) {
+          Files.deleteIfExists(run);
         }
-        return FileVisitResult.CONTINUE;
       }
-    });
-    
-    int total = wordCounts.values().stream().mapToInt(Integer::intValue).sum();
-    double mean = wordCounts.values().stream().mapToInt(Integer::intValue).average().orElse(0.0);
-    double median = wordCounts.values().stream().sorted().skip(wordCounts.size() / 2).findFirst().orElse(0);
+      Files.deleteIfExists(workDir);
+    }
 
-    System.out.println("Total: " + total + " in " + wordCounts.size() + " files.");
-    System.out.println("Reviews: " + reviews);
-    System.out.println("Mean: " + mean);
-    System.out.println("Median: " + median);
+    System.out.println("Tokens: " + counter.getTokens());
+    for (int order = 1; order <= maxOrder; order++) {
+      System.out.println(order + "-gram types: " + counter.getTypes(order) + ", written to " + tables.get(order - 1));
+    }
   }
 
+  /**
+   * Index every sentence of the corpus once, see {@link SentenceIndex}. The files are cleaned and
+   * segmented in parallel; the sentences of a file that was indexed before replace the old ones.
+   *
+   * @param startingDir The starting directory, or a zip or tar archive
+   * @param indexDir    The sentence index directory
+   * @param metrics     The metrics of the run
+   * @throws IOException If an I/O error occurs
+   */
+  static void buildSentenceIndex(Path startingDir, Path indexDir, Metrics metrics)
+      throws IOException, InterruptedException {
+    try (
+        Directory dir = FSDirectory.open(indexDir);
+        IndexWriter writer = new IndexWriter(dir, SentenceIndex.config(SentenceIndex.analyzer()))
+    ) {
+      forEachXmlFile(startingDir, "index the sentences of", metrics, (source, entry) -> {
+        XmlTextCleaner cleaner = cleanFile(entry, metrics);
+        String text = new String(cleaner.getBuffer(), 0, cleaner.getLength());
+        Metrics.Timer timer = metrics.start(Metrics.Stage.SEGMENT, entry);
+        List<String> sentences = sentenceTokenize(text);
+        timer.stop(text.length());
+        timer = metrics.start(Metrics.Stage.INDEX, entry);
+        SentenceIndex.addSentences(writer, entry.getName(), getCorpusName(source, entry),
+            getReviewType(entry.getFileName()), sentences);
+        timer.stop(text.length());
+        metrics.addSentences(sentences.size());
+      });
+      Metrics.Timer timer = metrics.start(Metrics.Stage.COMMIT, indexDir);
+      writer.commit();
+      timer.stop(0);
+    }
+  }
+
+  /**
+   * Export the sentences matching a query from the sentence index into a corpus file, grouped by
+   * source file in path order, see {@link SentenceIndex#export(IndexReader, Query, CorpusWriter)}.
+   *
+   * @param indexDir   The sentence index directory
+   * @param corpusFile The path to the output corpus file, see {@link CorpusWriter}
+   * @param query      The query, see {@link SentenceIndex#parse(String, boolean, org.apache.lucene.analysis.Analyzer)}
+   * @param surround   Whether the query is in the surround syntax
+   * @param metrics    The metrics of the run
+   * @return the number of sentences exported
+   * @throws IOException If an I/O error occurs
+   */
+  static long exportSentences(Path indexDir, Path corpusFile, String query, boolean surround, Metrics metrics)
+      throws IOException {
+    Query parsed;
+    try {
+      parsed = SentenceIndex.parse(query, surround, SentenceIndex.analyzer());
+    } catch (org.apache.lucene.queryparser.classic.ParseException
+             | org.apache.lucene.queryparser.surround.parser.ParseException e) {
+      throw new IllegalArgumentException("Invalid sentence query: " + query, e);
+    }
+    metrics.walkDone();
+    try (
+        Directory dir = FSDirectory.open(indexDir);
+        IndexReader reader = DirectoryReader.open(dir);
+        CorpusWriter corpusWriter = newCorpusWriter(corpusFile)
+    ) {
+      Metrics.Timer timer = metrics.start(Metrics.Stage.WRITE, corpusFile);
+      long sentences = SentenceIndex.export(reader, parsed, corpusWriter);
+      timer.stop(0);
+      metrics.addSentences(sentences);
+      return sentences;
+    }
+  }
+
+  /** Print the word counts of the reviews, and write the full statistics to {@link #STATS_FILE}. */
+  private static void printSummary(CorpusStatistics stats) throws IOException {
+    CorpusStatistics.Group reviews = stats.getReviews();
+    QuantileHistogram words = reviews.getWords();
+
+    System.out.println("Total: " + words.getTotal() + " in " + reviews.getFiles() + " files.");
+    System.out.println("Reviews: " + reviews.getFiles());
+    System.out.println("Mean: " + words.getMean());
+    System.out.println("Median: " + words.quantile(0.5));
+    System.out.println("P90: " + words.quantile(0.9) + ", P99: " + words.quantile(0.99));
+    stats.writeJson(STATS_FILE);
+    System.out.println("Statistics written to " + STATS_FILE);
+  }
 
   /**
    * Returns the text content of the given XML code.
-   * The text content is obtained by removing any XML comments and tags from the code.
-   * The XML comments are matched by the XML_COMMENT_PATTERN regular expression.
-   * The XML tags are matched by the XML_TAG_PATTERN regular expression.
-   * TODO: convert xml entities to UTF-8 / use proper XSLT conversion.
+   * The text content is obtained in a single pass by {@link XmlTextCleaner}, which removes
+   * any XML comments and tags, keeps CDATA contents and converts XML entities to characters.
    * @param xml_code the XML code to be processed
    * @return the text content of the XML code
    */
   public static String getCleanText(String xml_code) {
-    // Remove XML comments
-    String text = XML_COMMENT_PATTERN.matcher(xml_code).replaceAll("");
-    //Remove XML tags
-    text = XML_TAG_PATTERN.matcher(text).replaceAll("");
-    //Replace standard entities
-    text = XML_LT_ENTITY.matcher(text).replaceAll("<");
-    text = XML_GT_ENTITY.matcher(text).replaceAll(">");
-    text = XML_AMP_ENTITY.matcher(text).replaceAll("&");
-    text = XML_QUOT_ENTITY.matcher(text).replaceAll("\"");
-    text = XML_APOS_ENTITY.matcher(text).replaceAll("'");
+    return CLEANER.get().clean(xml_code);
+  }
 
-    //Replace numerical entities and return:
-    return convertXmlEntityToUtf8(text);
+  /**
+   * Read the given XML file and clean it in one pass into the reusable buffer of this thread's cleaner.
+   *
+   * @param file the XML file
+   * @return the cleaner, with the text in {@link XmlTextCleaner#getBuffer()}
+   * @throws IOException If the file cannot be read
+   */
+  static XmlTextCleaner cleanFile(Path file) throws IOException {
+    XmlTextCleaner cleaner = CLEANER.get();
+    try (Reader reader = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)) {
+      cleaner.reset(reader).cleanToBuffer();
+    }
+    return cleaner;
   }
 
+  /**
+   * Clean an entry of a corpus source into the reusable buffer of this thread's cleaner, see {@link #cleanFile(Path)}.
+   *
+   * @param entry the XML entry
+   * @return the cleaner, with the text in {@link XmlTextCleaner#getBuffer()}
+   * @throws IOException If the entry cannot be read
+   */
+  static XmlTextCleaner cleanFile(CorpusEntry entry) throws IOException {
+    XmlTextCleaner cleaner = CLEANER.get();
+    try (Reader reader = new InputStreamReader(entry.openStream(), StandardCharsets.UTF_8)) {
+      cleaner.reset(reader).cleanToBuffer();
+    }
+    return cleaner;
+  }
+
+  /**
+   * Replaces decimal and hexadecimal numerical XML entities with the characters they stand for.
+   * @param input the text to be processed
+   * @return the text with the numerical entities replaced
+   */
   public static String convertXmlEntityToUtf8(String input) {
 
     if (input == null) {
@@ -231,12 +560,21 @@ public class TextCorpusMaker {
     int lastPos = 0;
     // loop through the matches
     while (matcher.find()) {
+      // get the value of the entity, either decimal or hexadecimal
+      int value;
+      try {
+        value = matcher.group(1) != null ? Integer.parseInt(matcher.group(1)) : Integer.parseInt(matcher.group(2), 16);
+      } catch (NumberFormatException e) {
+        value = -1;
+      }
+      // leave out-of-range entities as they are
+      if (!Character.isValidCodePoint(value)) {
+        continue;
+      }
       // append the text before the match to the output
       output.append(input, lastPos, matcher.start());
-      // get the decimal value of the entity
-      int value = Integer.parseInt(matcher.group(1));
-      // convert the value to a UTF-8 character and append it to the output
-      output.append((char) value);
+      // append the character, as a surrogate pair if it is above U+FFFF
+      output.appendCodePoint(value);
       // update the last position of the matcher
       lastPos = matcher.end();
     }
@@ -249,57 +587,109 @@ public class TextCorpusMaker {
 
   static SrxDocument createSrxDocument() {
     try {
-      try (
-          InputStream inputStream = new FileInputStream(SEGMENT_SRX);
-          BufferedReader srxReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))
-      ) {
-        Map<String, Object> parserParameters = new HashMap<>();
-        parserParameters.put(Srx2SaxParser.VALIDATE_PARAMETER, true);
-        SrxParser srxParser = new Srx2SaxParser(parserParameters);
-        return srxParser.parse(srxReader);
-      }
+      return new SrxRuleCache(SRX_CACHE_DIR).load(SEGMENT_SRX, EN_ONE);
     } catch (IOException e) {
       throw new RuntimeException("Could not load SRX rules", e);
     }
   }
 
+  static SrxDocument getSrxDocument() {
+    return SrxHolder.srxDocument;
+  }
+
   public static List<String> getFilteredText(String text, Pattern filter) {
     List<String> filteredSentences= new ArrayList<String>();
     for (String sentence: sentenceTokenize(text)) {
-      if (filter.matcher(sentence).matches()) {
-        filteredSentences.add(sentence + System.lineSeparator());
+      String line = SegmentationEngine.toLine(sentence);
+      if (!line.isEmpty() && filter.matcher(line).matches()) {
+        filteredSentences.add(line + System.lineSeparator());
       }
     }
     return filteredSentences;
   }
   
   public static List<String> sentenceTokenize(String text) {
-    return tokenize(text, srxDocument, EN_ONE);
+    return tokenize(text, getSrxDocument(), EN_ONE);
   }
 
   static List<String> tokenize(String text, SrxDocument srxDocument, String code) {
-    List<String> segments = new ArrayList<>();
-    TextIterator textIterator = new SrxTextIterator(srxDocument, code, text);
-    while (textIterator.hasNext()) {
-      segments.add(textIterator.next());
-    }
-    return segments;
+    return SegmentationEngine.tokenize(text, srxDocument, code);
   }
 
   /**
    * Returns the number of words in the given text.
-   * A word is defined as a sequence of non-whitespace characters separated by whitespace characters.
+   * A word is defined as a sequence of non-whitespace characters separated by whitespace characters;
+   * leading or trailing whitespace does not count as an empty word.
    * The text is first cleaned by removing XML tags.
    * @param contents - the XML-formatted text to be analyzed
    * @return the word count of the text
    */
   public static int getWordCount(String contents) {
-    // Split the text by whitespace characters and get the length of the resulting array
-    return getCleanText(contents).split("\\s+").length;
+    XmlTextCleaner cleaner = CLEANER.get();
+    try {
+      cleaner.reset(contents).cleanToBuffer();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return CorpusStatistics.countWords(cleaner.getBuffer(), cleaner.getLength());
+  }
+
+  /**
+   * The corpus file of each keyword, e.g. elife-understanding.txt next to the corpus file. The
+   * characters of a keyword name other than letters, digits, "_" and "-" are replaced with "_",
+   * as in {@link SrxRuleCache}, so that any name gives a valid file name.
+   *
+   * @param corpusFile the corpus file of the single-keyword mode
+   * @param keywords   the keyword names
+   * @return the corpus file of each keyword, in the order of the keywords
+   * @throws IllegalArgumentException If two keywords would share a file
+   */
+  static Map<String, Path> keywordCorpusFiles(Path corpusFile, List<String> keywords) {
+    Map<String, Path> corpusFiles = new LinkedHashMap<>();
+    for (String keyword : keywords) {
+      String name = keyword.replaceAll("[^A-Za-z0-9_-]", "_");
+      Path file = corpusFile(corpusFile.resolveSibling("elife-" + name + ".txt"));
+      if (corpusFiles.containsValue(file)) {
+        throw new IllegalArgumentException("The keyword " + keyword + " would share the corpus file " + file);
+      }
+      corpusFiles.put(keyword, file);
+    }
+    return corpusFiles;
+  }
+
+  /** Add ".gz" to the corpus file name if the output is compressed. */
+  private static Path corpusFile(Path file) {
+    return GZIP ? file.resolveSibling(file.getFileName() + ".gz") : file;
+  }
+
+  /** Open a corpus writer, which also writes a {@link CorpusStore} if {@link #STORE} is set. */
+  private static CorpusWriter newCorpusWriter(Path corpusFile) throws IOException {
+    CorpusWriter corpusWriter = new CorpusWriter(corpusFile, FLUSH_SIZE, GZIP);
+    if (STORE) {
+      try {
+        corpusWriter.setStore(new CorpusStoreWriter(storeBase(corpusFile), FLUSH_SIZE));
+      } catch (IOException e) {
+        corpusWriter.close();
+        throw e;
+      }
+    }
+    return corpusWriter;
+  }
+
+  /** The base path of the store of a corpus file, without the ".gz" and ".txt" extensions. */
+  static Path storeBase(Path corpusFile) {
+    String name = corpusFile.getFileName().toString();
+    if (name.endsWith(".gz")) {
+      name = name.substring(0, name.length() - ".gz".length());
+    }
+    if (name.endsWith(".txt")) {
+      name = name.substring(0, name.length() - ".txt".length());
+    }
+    return corpusFile.resolveSibling(name);
   }
 
   //Main method:
-  public static void main(String[] args) throws IOException, ProcessingException {
+  public static void main(String[] args) throws IOException, ProcessingException, InterruptedException {
     Directory dir = FSDirectory.open(Paths.get(INDEX_DIR));
     IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
     IndexWriter writer = new IndexWriter(dir, config);
@@ -307,7 +697,34 @@ public class TextCorpusMaker {
     Path startingDir = Paths.get(JSON_DIR);
     //getCorpusFiles(startingDir);
 
-    getFilteredCorpusText(startingDir, CORPUS_FILE, Pattern.compile(KEYWORD_FILTER));
+    Metrics metrics = new Metrics();
+    metrics.startProgress(System.out, PROGRESS_SECONDS);
+    try {
+      if (CONVERT_STORE != null) {
+        Path corpusFile = Paths.get(CONVERT_STORE);
+        long sentences = CorpusStoreWriter.convert(corpusFile, storeBase(corpusFile), FLUSH_SIZE);
+        System.out.println(sentences + " sentences written to " + CorpusStore.dataFile(storeBase(corpusFile)));
+      } else if (SENTENCE_INDEX != null && SENTENCE_QUERY != null) {
+        long sentences = exportSentences(Paths.get(SENTENCE_INDEX), corpusFile(CORPUS_FILE), SENTENCE_QUERY,
+            SURROUND_QUERY, metrics);
+        System.out.println(sentences + " sentences written to " + corpusFile(CORPUS_FILE));
+      } else if (SENTENCE_INDEX != null) {
+        buildSentenceIndex(startingDir, Paths.get(SENTENCE_INDEX), metrics);
+      } else if (NGRAMS > 0) {
+        getFrequencies(startingDir, CORPUS_FILE.resolveSibling("elife"), NGRAMS, MIN_COUNT, metrics);
+      } else if (KEYWORDS != null) {
+        KeywordAutomaton keywords = KeywordAutomaton.parse(KEYWORDS, true);
+        Map<String, Path> corpusFiles = keywordCorpusFiles(CORPUS_FILE, keywords.getKeywords());
+        getKeywordCorpora(startingDir, corpusFiles, keywords, metrics);
+      } else {
+        getFilteredCorpusText(startingDir, corpusFile(CORPUS_FILE), Pattern.compile(KEYWORD_FILTER), metrics);
+      }
+    } finally {
+      metrics.stopProgress();
+    }
+    System.out.println(metrics.progressLine());
+    metrics.writeJson(METRICS_FILE);
+    System.out.println("Metrics written to " + METRICS_FILE);
 
     writer.close();
   }
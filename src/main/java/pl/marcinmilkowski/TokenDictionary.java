@@ -0,0 +1,177 @@
+package pl.marcinmilkowski;
+
+import java.util.Arrays;
+
+/**
+ * Encodes tokens as dense int ids, starting from 1. The characters of all tokens are kept
+ * in one growing array and looked up through an open-addressing table, so a token that is
+ * already known costs no allocation. Instances are not thread-safe.
+ */
+public class TokenDictionary {
+
+  private static final int MIN_CAPACITY = 1024;
+
+  private char[] chars = new char[MIN_CAPACITY * 8];
+  private int charCount = 0;
+  /** The start of each token in {@link #chars}; the token with id i ends at starts[i + 1]. */
+  private int[] starts = new int[MIN_CAPACITY];
+  private int[] hashes = new int[MIN_CAPACITY];
+  private int size = 0;
+  /** The ids of the tokens, 0 for an empty slot. */
+  private int[] table = new int[MIN_CAPACITY * 2];
+
+  /**
+   * Get the id of a token, adding it if needed.
+   *
+   * @param text  the text with the token
+   * @param start the start of the token
+   * @param end   the end of the token, exclusive
+   * @return the id of the token, at least 1
+   */
+  public int id(char[] text, int start, int end) {
+    int hash = hash(text, start, end);
+    int mask = table.length - 1;
+    int slot = hash & mask;
+    for (int id = table[slot]; id != 0; id = table[slot]) {
+      if (hashes[id] == hash && equals(id, text, start, end)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    int id = ++size;
+    if (id + 1 >= starts.length) {
+      starts = Arrays.copyOf(starts, starts.length * 2);
+      hashes = Arrays.copyOf(hashes, hashes.length * 2);
+    }
+    int length = end - start;
+    if (charCount + length > chars.length) {
+      chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + length));
+    }
+    System.arraycopy(text, start, chars, charCount, length);
+    starts[id] = charCount;
+    charCount += length;
+    starts[id + 1] = charCount;
+    hashes[id] = hash;
+    table[slot] = id;
+    if (size * 2 > table.length) {
+      rehash();
+    }
+    return id;
+  }
+
+  /**
+   * @param id the id of a token
+   * @return the token
+   */
+  public String token(int id) {
+    if (id < 1 || id > size) {
+      throw new IllegalArgumentException("Unknown token id " + id);
+    }
+    return new String(chars, starts[id], starts[id + 1] - starts[id]);
+  }
+
+  /** @return the number of tokens */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the ids of all tokens, ordered by their tokens as {@link String#compareTo(String)}
+   *     orders them, without creating the strings
+   */
+  public int[] sortedIds() {
+    int[] ids = new int[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = i + 1;
+    }
+    sort(ids, new int[size], 0, size);
+    return ids;
+  }
+
+  /** Remove all tokens and release the memory they took. */
+  public void clear() {
+    chars = new char[MIN_CAPACITY * 8];
+    starts = new int[MIN_CAPACITY];
+    hashes = new int[MIN_CAPACITY];
+    table = new int[MIN_CAPACITY * 2];
+    size = 0;
+    charCount = 0;
+  }
+
+  /** @return the approximate number of bytes held by the dictionary */
+  public long ramBytesUsed() {
+    return chars.length * (long) Character.BYTES
+        + (starts.length + hashes.length + table.length) * (long) Integer.BYTES;
+  }
+
+  private boolean equals(int id, char[] text, int start, int end) {
+    int from = starts[id];
+    if (starts[id + 1] - from != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (chars[from++] != text[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Merge sort of ids[from, to) by token, with a buffer of the same length. */
+  private void sort(int[] ids, int[] buffer, int from, int to) {
+    if (to - from < 2) {
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    sort(ids, buffer, from, middle);
+    sort(ids, buffer, middle, to);
+    if (compare(ids[middle - 1], ids[middle]) <= 0) {
+      return;
+    }
+    System.arraycopy(ids, from, buffer, from, to - from);
+    for (int i = from, left = from, right = middle; i < to; i++) {
+      if (right == to || (left < middle && compare(buffer[left], buffer[right]) <= 0)) {
+        ids[i] = buffer[left++];
+      } else {
+        ids[i] = buffer[right++];
+      }
+    }
+  }
+
+  private int compare(int id1, int id2) {
+    int from1 = starts[id1];
+    int from2 = starts[id2];
+    int length1 = starts[id1 + 1] - from1;
+    int length2 = starts[id2 + 1] - from2;
+    for (int i = 0, n = Math.min(length1, length2); i < n; i++) {
+      char c1 = chars[from1 + i];
+      char c2 = chars[from2 + i];
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+    }
+    return length1 - length2;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int id = 1; id <= size; id++) {
+      int slot = hashes[id] & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = id;
+    }
+  }
+
+  private static int hash(char[] text, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + text[i];
+    }
+    // Spread the bits, since the table is indexed by the low bits
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,353 @@
+package pl.marcinmilkowski;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * A single-pass XML-to-text cleaner. It removes XML comments, tags, processing instructions
+ * and declarations, keeps the contents of CDATA sections verbatim, and decodes the standard
+ * named entities as well as decimal and hexadecimal numerical entities, including code points
+ * above U+FFFF. Unknown or malformed entities are left as they are.
+ * <p>
+ * The input is either a {@link Reader}, consumed through a fixed-size buffer, or a character
+ * array, scanned in place. The output goes to a caller's array, an {@link Appendable} or
+ * a reusable internal buffer, so a cleaner that is reused for many documents produces
+ * almost no garbage. Instances are not thread-safe.
+ */
+public class XmlTextCleaner {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /** The longest entity name that is decoded, e.g. "#1114111" or "#x10FFFF". */
+  private static final int MAX_ENTITY_LENGTH = 10;
+
+  private final char[] readBuffer = new char[BUFFER_SIZE];
+  private char[] input = new char[0];
+  private char[] output;
+  private int length = 0;
+
+  private Reader in;
+  private char[] buf = readBuffer;
+  private int pos = 0;
+  private int limit = 0;
+  private boolean eof = true;
+
+  private boolean inCdata = false;
+  private char pendingLow = 0;
+  private int entityValue;
+
+  /**
+   * Start cleaning the XML read from the given reader. The reader is not closed by the cleaner.
+   *
+   * @param in the XML input
+   * @return this cleaner
+   */
+  public XmlTextCleaner reset(Reader in) {
+    this.in = in;
+    this.buf = readBuffer;
+    this.pos = 0;
+    this.limit = 0;
+    this.eof = false;
+    return resetState();
+  }
+
+  /**
+   * Start cleaning the XML in the given array. The array is scanned in place and must not
+   * be modified until the cleaning is done.
+   *
+   * @param xml the XML input
+   * @param off the start of the input in the array
+   * @param len the length of the input
+   * @return this cleaner
+   */
+  public XmlTextCleaner reset(char[] xml, int off, int len) {
+    this.in = null;
+    this.buf = xml;
+    this.pos = off;
+    this.limit = off + len;
+    this.eof = true;
+    return resetState();
+  }
+
+  /**
+   * Start cleaning the given XML. The characters are copied once into a reusable array.
+   *
+   * @param xml the XML input
+   * @return this cleaner
+   */
+  public XmlTextCleaner reset(String xml) {
+    if (input.length < xml.length()) {
+      input = new char[xml.length()];
+    }
+    xml.getChars(0, xml.length(), input, 0);
+    return reset(input, 0, xml.length());
+  }
+
+  private XmlTextCleaner resetState() {
+    inCdata = false;
+    pendingLow = 0;
+    length = 0;
+    return this;
+  }
+
+  /**
+   * Write the next characters of the clean text into the given array.
+   *
+   * @param dst the destination array
+   * @param off the offset in the destination array
+   * @param len the maximum number of characters to write
+   * @return the number of characters written, or -1 at the end of the input
+   * @throws IOException If the input cannot be read
+   */
+  public int read(char[] dst, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int n = 0;
+    if (pendingLow != 0) {
+      dst[off + n++] = pendingLow;
+      pendingLow = 0;
+    }
+    while (n < len && fill(1) > 0) {
+      char c = buf[pos];
+      if (inCdata) {
+        if (c == ']' && lookingAt("]]>")) {
+          pos += 3;
+          inCdata = false;
+        } else {
+          dst[off + n++] = c;
+          pos++;
+        }
+      } else if (c == '<') {
+        if (lookingAt("<!--")) {
+          skipPast("-->");
+        } else if (lookingAt("<![CDATA[")) {
+          pos += "<![CDATA[".length();
+          inCdata = true;
+        } else {
+          skipPast(">");
+        }
+      } else if (c == '&' && decodeEntity()) {
+        if (entityValue < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+          dst[off + n++] = (char) entityValue;
+        } else {
+          dst[off + n++] = Character.highSurrogate(entityValue);
+          char low = Character.lowSurrogate(entityValue);
+          if (n < len) {
+            dst[off + n++] = low;
+          } else {
+            pendingLow = low;
+          }
+        }
+      } else {
+        dst[off + n++] = c;
+        pos++;
+      }
+    }
+    return n == 0 ? -1 : n;
+  }
+
+  /**
+   * Clean the rest of the input into the given appendable.
+   *
+   * @param out where the clean text is written
+   * @throws IOException If the input cannot be read or the output cannot be written
+   */
+  public void cleanTo(Appendable out) throws IOException {
+    char[] chunk = ensureOutput(BUFFER_SIZE);
+    CharBuffer wrapper = null;
+    for (int n = read(chunk, 0, chunk.length); n >= 0; n = read(chunk, 0, chunk.length)) {
+      if (out instanceof StringBuilder) {
+        ((StringBuilder) out).append(chunk, 0, n);
+      } else if (out instanceof Writer) {
+        ((Writer) out).write(chunk, 0, n);
+      } else {
+        if (wrapper == null) {
+          wrapper = CharBuffer.wrap(chunk);
+        }
+        wrapper.limit(n).position(0);
+        out.append(wrapper);
+      }
+    }
+    length = 0;
+  }
+
+  /**
+   * Clean the rest of the input into the internal buffer, see {@link #getBuffer()}.
+   * The buffer is reused by the next call, so the text must be consumed before that.
+   *
+   * @return the length of the clean text
+   * @throws IOException If the input cannot be read
+   */
+  public int cleanToBuffer() throws IOException {
+    // The clean text is never longer than the XML it comes from
+    char[] out = ensureOutput(eof ? limit - pos + 1 : BUFFER_SIZE);
+    length = 0;
+    while (true) {
+      if (out.length - length < 2) {
+        out = output = Arrays.copyOf(out, out.length * 2);
+      }
+      int n = read(out, length, out.length - length);
+      if (n < 0) {
+        return length;
+      }
+      length += n;
+    }
+  }
+
+  /**
+   * Clean the given XML and return the text.
+   *
+   * @param xml the XML input
+   * @return the clean text
+   */
+  public String clean(String xml) {
+    try {
+      reset(xml).cleanToBuffer();
+    } catch (IOException e) {
+      // Arrays are never read through a reader
+      throw new IllegalStateException(e);
+    }
+    return new String(output, 0, length);
+  }
+
+  /** @return the buffer filled by {@link #cleanToBuffer()} */
+  public char[] getBuffer() {
+    return output;
+  }
+
+  /** @return the length of the text in the buffer filled by {@link #cleanToBuffer()} */
+  public int getLength() {
+    return length;
+  }
+
+  private char[] ensureOutput(int capacity) {
+    if (output == null || output.length < capacity) {
+      output = new char[Math.max(capacity, BUFFER_SIZE)];
+    }
+    return output;
+  }
+
+  /**
+   * Decode the entity at the current position, if it is one that we know.
+   * On success, the code point is in {@link #entityValue} and the entity is consumed.
+   */
+  private boolean decodeEntity() throws IOException {
+    int available = fill(MAX_ENTITY_LENGTH + 2);
+    int end = -1;
+    for (int i = 1; i < available && i <= MAX_ENTITY_LENGTH + 1; i++) {
+      if (buf[pos + i] == ';') {
+        end = pos + i;
+        break;
+      }
+    }
+    if (end < 0) {
+      return false;
+    }
+    int start = pos + 1;
+    int length = end - start;
+    if (length > 1 && buf[start] == '#') {
+      int value = -1;
+      if (buf[start + 1] == 'x' || buf[start + 1] == 'X') {
+        if (length > 2) {
+          value = parseCodePoint(start + 2, end, 16);
+        }
+      } else {
+        value = parseCodePoint(start + 1, end, 10);
+      }
+      if (value <= 0) {
+        return false;
+      }
+      entityValue = value;
+    } else if (equals(start, length, "lt")) {
+      entityValue = '<';
+    } else if (equals(start, length, "gt")) {
+      entityValue = '>';
+    } else if (equals(start, length, "amp")) {
+      entityValue = '&';
+    } else if (equals(start, length, "quot")) {
+      entityValue = '"';
+    } else if (equals(start, length, "apos")) {
+      entityValue = '\'';
+    } else {
+      return false;
+    }
+    pos = end + 1;
+    return true;
+  }
+
+  /** @return the code point, or -1 if the digits are malformed or out of range */
+  private int parseCodePoint(int start, int end, int radix) {
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      int digit = Character.digit(buf[i], radix);
+      if (digit < 0) {
+        return -1;
+      }
+      value = value * radix + digit;
+      if (value > Character.MAX_CODE_POINT) {
+        return -1;
+      }
+    }
+    return Character.isSurrogate((char) value) && value < Character.MIN_SUPPLEMENTARY_CODE_POINT ? -1 : value;
+  }
+
+  private boolean equals(int start, int length, String name) {
+    if (length != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (buf[start + i] != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean lookingAt(String s) throws IOException {
+    if (fill(s.length()) < s.length()) {
+      return false;
+    }
+    return equals(pos, s.length(), s);
+  }
+
+  /** Skip everything up to and including the given delimiter, or to the end of the input. */
+  private void skipPast(String delimiter) throws IOException {
+    int length = delimiter.length();
+    char first = delimiter.charAt(0);
+    while (fill(length) >= length) {
+      if (buf[pos] == first && equals(pos, length, delimiter)) {
+        pos += length;
+        return;
+      }
+      pos++;
+    }
+    pos = limit;
+  }
+
+  /**
+   * Make at least n characters available from the current position, unless the input ends first.
+   *
+   * @return the number of characters available
+   */
+  private int fill(int n) throws IOException {
+    if (limit - pos >= n || eof) {
+      return limit - pos;
+    }
+    System.arraycopy(buf, pos, buf, 0, limit - pos);
+    limit -= pos;
+    pos = 0;
+    while (limit < n && !eof) {
+      int read = in.read(buf, limit, buf.length - limit);
+      if (read < 0) {
+        eof = true;
+      } else {
+        limit += read;
+      }
+    }
+    return limit - pos;
+  }
+}
@@ -0,0 +1,33 @@
+package pl.marcinmilkowski;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A reader that returns the text content of the XML read from the underlying reader,
+ * cleaned in one streaming pass by an {@link XmlTextCleaner} with a fixed-size buffer,
+ * so very large documents are never held in memory.
+ */
+public class XmlTextReader extends Reader {
+
+  private final Reader in;
+  private final XmlTextCleaner cleaner;
+
+  /**
+   * @param in the XML input
+   */
+  public XmlTextReader(Reader in) {
+    this.in = in;
+    this.cleaner = new XmlTextCleaner().reset(in);
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    return cleaner.read(cbuf, off, len);
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
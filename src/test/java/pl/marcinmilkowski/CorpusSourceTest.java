@@ -0,0 +1,197 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CorpusSourceTest {
+
+  @TempDir
+  Path dir;
+
+  private static final String LONG_NAME = "elife/" + "very-long-directory-name/".repeat(5) + "eLife.00003.r001.xml";
+
+  @Test
+  void testDirectoryEntriesKeepTheirPaths() throws IOException {
+    Path sub = Files.createDirectories(dir.resolve("corpus").resolve("2013"));
+    Files.writeString(sub.resolve("eLife.00003.xml"), "<p>text</p>");
+    Files.writeString(sub.resolve("notes.txt"), "skipped");
+    Map<String, String> entries = read(dir.resolve("corpus"));
+    assertEquals(Map.of("2013/eLife.00003.xml", "<p>text</p>"), entries);
+    try (CorpusSource source = CorpusSource.open(dir.resolve("corpus"))) {
+      assertEquals("corpus", source.getName());
+      source.walk(name -> true, entry -> {
+        assertEquals(sub.resolve(entry.getFileName()).toString(), entry.getName());
+        assertNotNull(entry.getFile());
+      });
+    }
+  }
+
+  @Test
+  void testZipEntriesAreReadThroughTheZipFileSystem() throws IOException {
+    Path zip = dir.resolve("elife.zip");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+      out.putNextEntry(new ZipEntry("2013/"));
+      out.putNextEntry(new ZipEntry("2013/eLife.00003.xml"));
+      out.write("<p>text</p>".getBytes(StandardCharsets.UTF_8));
+      out.putNextEntry(new ZipEntry("2013/eLife.00003.json"));
+      out.write("{}".getBytes(StandardCharsets.UTF_8));
+    }
+    assertEquals(Map.of("2013/eLife.00003.xml", "<p>text</p>"), read(zip));
+    try (CorpusSource source = CorpusSource.open(zip)) {
+      assertEquals("elife.zip", source.getName());
+      source.walk(name -> name.endsWith(".xml"), entry -> {
+        assertEquals(zip + "!/2013/eLife.00003.xml", entry.getName());
+        assertEquals("2013", TextCorpusMaker.getCorpusName(source, entry));
+        assertTrue(Files.exists(entry.getFile().resolveSibling("eLife.00003.json")));
+      });
+    }
+  }
+
+  @Test
+  void testTarGzWithLongNamesAndPaxHeaders() throws IOException {
+    Path tar = dir.resolve("elife.tar.gz");
+    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tar))) {
+      writeTar(out);
+    }
+    Map<String, String> entries = read(tar);
+    assertEquals(4, entries.size(), entries.toString());
+    assertEquals("<p>short</p>", entries.get("elife/eLife.00001.xml"));
+    assertEquals("<p>long</p>", entries.get(LONG_NAME));
+    assertEquals("<p>pax \u00e9</p>", entries.get("elife/pax/eLife.00002.a002.xml"));
+    assertEquals("x".repeat(1000), entries.get("prefix/eLife.00004.xml"));
+
+    try (CorpusSource source = CorpusSource.open(tar)) {
+      source.walk(name -> name.startsWith("elife/eLife.00001"), entry -> {
+        assertEquals(tar + "!/elife/eLife.00001.xml", entry.getName());
+        assertEquals(1_600_000_000_000L, entry.getAttributes().lastModifiedTime().toMillis());
+        assertNull(entry.getFile());
+        assertEquals("elife", TextCorpusMaker.getCorpusName(source, entry));
+      });
+    }
+    assertTrue(TextCorpusMaker.isReview("eLife.00003.r001.xml"));
+    assertFalse(TextCorpusMaker.isReview("eLife.00003.xml"));
+  }
+
+  @Test
+  void testNotATarArchive() throws IOException {
+    Path tar = dir.resolve("broken.tar");
+    Files.write(tar, "not a tar archive".repeat(100).getBytes(StandardCharsets.UTF_8));
+    assertThrows(IOException.class, () -> read(tar));
+    assertThrows(IllegalArgumentException.class, () -> CorpusSource.open(Files.writeString(dir.resolve("a.rar"), "")));
+  }
+
+  @Test
+  void testPipelineIndexesArchives() throws Exception {
+    Path zip = dir.resolve("plos.zip");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+      for (int i = 0; i < 10; i++) {
+        out.putNextEntry(new ZipEntry("reviews/article" + i + ".json"));
+        out.write(("{\"doi\": \"10.1371/journal.pone." + i + "\"}").getBytes(StandardCharsets.UTF_8));
+      }
+      out.putNextEntry(new ZipEntry("reviews/article0.xml"));
+      out.write("<article><p>Understanding the zipped text</p></article>".getBytes(StandardCharsets.UTF_8));
+    }
+    Path tar = dir.resolve("plos.tgz");
+    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tar))) {
+      for (int i = 10; i < 15; i++) {
+        writeEntry(out, "reviews/article" + i + ".json", '0',
+            ("{\"doi\": \"10.1371/journal.pone." + i + "\"}").getBytes(StandardCharsets.UTF_8), "");
+      }
+      out.write(new byte[1024]);
+    }
+
+    Directory index = new ByteBuffersDirectory();
+    try (IndexWriter writer = new IndexWriter(index, new IndexWriterConfig(new StandardAnalyzer()))) {
+      IndexingPipeline pipeline = new IndexingPipeline(writer, new ObjectMapper(), null, 2, 2);
+      pipeline.run(zip);
+      pipeline.run(tar);
+      assertEquals(15, pipeline.getIndexed());
+      assertEquals(0, pipeline.getFailed());
+    }
+    try (DirectoryReader reader = DirectoryReader.open(index)) {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      assertEquals(1, searcher.count(new TermQuery(new Term("doi", "10.1371/journal.pone.12"))));
+      assertEquals(1, searcher.count(new TermQuery(new Term("path", zip + "!/reviews/article3.json"))));
+      assertEquals(1, searcher.count(new TermQuery(new Term("path", tar + "!/reviews/article12.json"))));
+      assertEquals(1, searcher.count(new TermQuery(new Term(JSONIndexer.CONTENTS_FIELD, "zipped"))));
+    }
+  }
+
+  private static Map<String, String> read(Path input) throws IOException {
+    Map<String, String> entries = new TreeMap<>();
+    try (CorpusSource source = CorpusSource.open(input)) {
+      source.walk(name -> name.endsWith(".xml"), entry ->
+          entries.put(entry.getRelativeName(), new String(entry.readAllBytes(), StandardCharsets.UTF_8)));
+    }
+    return entries;
+  }
+
+  /** A tar with a ustar entry, a directory, a GNU long name, a pax path, a ustar prefix, and a skipped file. */
+  private static void writeTar(OutputStream out) throws IOException {
+    writeEntry(out, "./elife/", '5', new byte[0], "");
+    writeEntry(out, "./elife/eLife.00001.xml", '0', "<p>short</p>".getBytes(StandardCharsets.UTF_8), "");
+    byte[] longName = (LONG_NAME + "\0").getBytes(StandardCharsets.UTF_8);
+    writeEntry(out, "././@LongLink", 'L', longName, "");
+    writeEntry(out, LONG_NAME.substring(0, 99), '0', "<p>long</p>".getBytes(StandardCharsets.UTF_8), "");
+    String record = "path=elife/pax/eLife.00002.a002.xml\n";
+    int length = record.length() + 3;
+    byte[] pax = (length + " " + record).getBytes(StandardCharsets.UTF_8);
+    assertEquals(length, pax.length);
+    writeEntry(out, "PaxHeaders/x", 'x', pax, "");
+    writeEntry(out, "truncated.xml", '0', "<p>pax \u00e9</p>".getBytes(StandardCharsets.UTF_8), "");
+    writeEntry(out, "eLife.00004.xml", '0', "x".repeat(1000).getBytes(StandardCharsets.UTF_8), "prefix");
+    writeEntry(out, "elife/notes.txt", '0', "skipped".getBytes(StandardCharsets.UTF_8), "");
+    out.write(new byte[1024]);
+  }
+
+  private static void writeEntry(OutputStream out, String name, char type, byte[] contents, String prefix)
+      throws IOException {
+    byte[] header = new byte[512];
+    put(header, 0, name.getBytes(StandardCharsets.UTF_8));
+    put(header, 100, "0000644\0".getBytes(StandardCharsets.US_ASCII));
+    put(header, 108, "0000000\0".getBytes(StandardCharsets.US_ASCII));
+    put(header, 116, "0000000\0".getBytes(StandardCharsets.US_ASCII));
+    put(header, 124, String.format("%011o\0", contents.length).getBytes(StandardCharsets.US_ASCII));
+    put(header, 136, String.format("%011o\0", 1_600_000_000L).getBytes(StandardCharsets.US_ASCII));
+    put(header, 148, "        ".getBytes(StandardCharsets.US_ASCII));
+    header[156] = (byte) type;
+    put(header, 257, "ustar\00000".getBytes(StandardCharsets.US_ASCII));
+    put(header, 345, prefix.getBytes(StandardCharsets.UTF_8));
+    int sum = 0;
+    for (byte b : header) {
+      sum += b & 0xff;
+    }
+    put(header, 148, String.format("%06o\0 ", sum).getBytes(StandardCharsets.US_ASCII));
+    out.write(header);
+    out.write(contents);
+    out.write(new byte[(512 - contents.length % 512) % 512]);
+  }
+
+  private static void put(byte[] header, int offset, byte[] value) {
+    System.arraycopy(value, 0, header, offset, value.length);
+  }
+}
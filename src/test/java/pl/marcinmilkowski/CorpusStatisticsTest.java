@@ -0,0 +1,85 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CorpusStatisticsTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void testQuantilesAreExactForSmallValues() {
+    QuantileHistogram histogram = new QuantileHistogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.add(i);
+    }
+    // The upper median, like sorted().skip(n / 2)
+    assertEquals(51, histogram.quantile(0.5));
+    assertEquals(91, histogram.quantile(0.9));
+    assertEquals(100, histogram.quantile(0.99));
+    assertEquals(100, histogram.quantile(1));
+    assertEquals(1, histogram.quantile(0));
+    assertEquals(5050, histogram.getTotal());
+    assertEquals(50.5, histogram.getMean(), 1e-9);
+    assertEquals(0, new QuantileHistogram().quantile(0.5));
+  }
+
+  @Test
+  void testQuantilesOfLargeValuesAreClose() {
+    Random random = new Random(42);
+    int[] values = new int[10000];
+    QuantileHistogram histogram = new QuantileHistogram();
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextInt(1_000_000);
+      histogram.add(values[i]);
+    }
+    Arrays.sort(values);
+    for (double q : new double[] {0.5, 0.9, 0.99}) {
+      int exact = values[(int) Math.floor(q * values.length)];
+      assertEquals(exact, histogram.quantile(q), exact * 0.02);
+    }
+    assertEquals(values[values.length - 1], histogram.getMax());
+  }
+
+  @Test
+  void testCountWordsAndSentences() {
+    char[] text = "  This is it. Is it?!  And... no end\n".toCharArray();
+    assertEquals(8, CorpusStatistics.countWords(text, text.length));
+    assertEquals(4, CorpusStatistics.countSentences(text, text.length));
+    assertEquals(0, CorpusStatistics.countWords(text, 2));
+    assertEquals(0, CorpusStatistics.countSentences(text, 2));
+  }
+
+  @Test
+  void testGroupsAndJsonReport() throws Exception {
+    CorpusStatistics stats = new CorpusStatistics();
+    stats.add("elife", CorpusStatistics.ARTICLE, 1000, 50);
+    stats.add("elife", "r", 100, 5);
+    stats.add("elife", "a", 300, 15);
+    stats.add("plos", CorpusStatistics.ARTICLE, 2000, 90);
+
+    assertEquals(4, stats.getAll().getFiles());
+    assertEquals(2, stats.getReviews().getFiles());
+    assertEquals(400, stats.getReviews().getWords().getTotal());
+    assertEquals(3, stats.getCorpora().get("elife").getFiles());
+    assertEquals(2, stats.getReviewTypes().get(CorpusStatistics.ARTICLE).getFiles());
+
+    Path report = dir.resolve("stats.json");
+    stats.writeJson(report);
+    JsonNode json = new ObjectMapper().readTree(report.toFile());
+    assertEquals(3400, json.at("/all/words/total").asLong());
+    // The upper median of 100 and 300
+    assertEquals(300, json.at("/reviews/words/p50").asInt());
+    assertEquals(90, json.at("/corpora/plos/sentences/max").asInt());
+    assertEquals(1, json.at("/reviewTypes/r/files").asInt());
+  }
+}
@@ -0,0 +1,135 @@
+package pl.marcinmilkowski;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CorpusStoreTest {
+
+  @TempDir
+  Path dir;
+
+  private static final String NL = System.lineSeparator();
+
+  /** Write three documents through a corpus writer, out of order, with the store attached. */
+  private Path writeCorpus(Path corpusFile) throws IOException {
+    Path base = TextCorpusMaker.storeBase(corpusFile);
+    try (CorpusWriter writer = new CorpusWriter(corpusFile, 64, false)) {
+      writer.setStore(new CorpusStoreWriter(base, 64));
+      writer.write(2, "c.zip!/2013/eLife.00003.r001.xml", Arrays.asList("Reviewer sentence." + NL));
+      writer.write(1, "2013/eLife.00002.xml", Arrays.asList("Caf\u00e9 understanding." + NL, "Second one." + NL,
+          "A third, rather longer sentence that spans several chunks." + NL));
+      writer.skip(3);
+      writer.write(0, "2013/eLife.00001.xml", Arrays.asList("First." + NL, "" + NL));
+    }
+    return base;
+  }
+
+  @Test
+  void testSentencesAndDocumentsAreReadBackAcrossChunks() throws IOException {
+    Path base = writeCorpus(dir.resolve("corpus.txt"));
+    assertEquals(dir.resolve("corpus"), base);
+
+    // Tiny chunks, so that sentences span chunk boundaries
+    try (CorpusStore store = CorpusStore.open(base, 16)) {
+      assertEquals(6, store.getSentenceCount());
+      assertEquals(3, store.getDocumentCount());
+      assertEquals(Arrays.asList("First.", ""), store.getSentences(0));
+      assertEquals("Caf\u00e9 understanding.", store.getSentence(2));
+      assertEquals("A third, rather longer sentence that spans several chunks.", store.getSentence(4));
+      assertEquals("Reviewer sentence.", store.getSentence(5));
+      ByteBuffer bytes = store.getSentenceBytes(2);
+      assertTrue(bytes.isReadOnly());
+      assertEquals("Caf\u00e9 understanding.".getBytes(StandardCharsets.UTF_8).length, bytes.remaining());
+
+      CorpusStore.Document review = store.getDocument(2);
+      assertEquals("c.zip!/2013/eLife.00003.r001.xml", review.getPath());
+      assertEquals("r", review.getReviewType());
+      assertTrue(review.isReview());
+      assertFalse(store.getDocument(1).isReview());
+      assertEquals(2, store.getDocument(1).getFirstSentence());
+      assertEquals(3, store.getDocument(1).getSentenceCount());
+
+      assertEquals(0, store.documentOf(1));
+      assertEquals(1, store.documentOf(2));
+      assertEquals(1, store.documentOf(4));
+      assertEquals(2, store.documentOf(5));
+      assertThrows(IndexOutOfBoundsException.class, () -> store.getSentence(6));
+    }
+  }
+
+  @Test
+  void testSplitCoversAllDocumentsInBalancedRanges() throws IOException {
+    Path base = dir.resolve("split");
+    try (CorpusStoreWriter writer = new CorpusStoreWriter(base, 64)) {
+      for (int i = 0; i < 10; i++) {
+        List<String> sentences = new ArrayList<>();
+        for (int j = 0; j <= i % 3; j++) {
+          sentences.add("Sentence " + i + "." + j + ".");
+        }
+        writer.add("file" + i + ".xml", sentences);
+      }
+    }
+    try (CorpusStore store = CorpusStore.open(base)) {
+      List<CorpusStore.Range> ranges = store.split(3);
+      assertEquals(3, ranges.size());
+      int nextDocument = 0;
+      long nextSentence = 0;
+      for (CorpusStore.Range range : ranges) {
+        assertEquals(nextDocument, range.getFirstDocument());
+        assertEquals(nextSentence, range.getFirstSentence());
+        assertTrue(range.getEndDocument() > range.getFirstDocument());
+        nextDocument = range.getEndDocument();
+        nextSentence = range.getEndSentence();
+      }
+      assertEquals(store.getDocumentCount(), nextDocument);
+      assertEquals(store.getSentenceCount(), nextSentence);
+      assertEquals(10, store.split(100).size());
+      assertEquals(1, store.split(1).size());
+    }
+  }
+
+  @Test
+  void testConvertTheTextCorpus() throws IOException {
+    Path corpusFile = dir.resolve("written.txt");
+    Path written = writeCorpus(corpusFile);
+    Path converted = dir.resolve("converted");
+    assertEquals(6, CorpusStoreWriter.convert(corpusFile, converted, 64));
+    for (Path file : Arrays.asList(CorpusStore.dataFile(written), CorpusStore.offsetsFile(written),
+        CorpusStore.documentsFile(written))) {
+      Path other = converted.resolveSibling("converted" + file.getFileName().toString().substring("written".length()));
+      assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(other), file.toString());
+    }
+
+    Path multiLine = dir.resolve("multi.txt");
+    try (CorpusWriter writer = new CorpusWriter(multiLine, 64, false)) {
+      writer.write(0, "a.xml", Arrays.asList("One line" + NL + "and another." + NL));
+    }
+    assertThrows(IOException.class, () -> CorpusStoreWriter.convert(multiLine, dir.resolve("multi"), 64));
+  }
+
+  @Test
+  void testConvertACorpusWithoutSideIndexAsOneDocument() throws IOException {
+    Path corpusFile = dir.resolve("plain.txt");
+    Files.writeString(corpusFile, "First sentence." + NL + NL + "Second sentence." + NL);
+    Path base = dir.resolve("plain");
+    assertEquals(2, CorpusStoreWriter.convert(corpusFile, base, 64));
+    try (CorpusStore store = CorpusStore.open(base)) {
+      assertEquals(2, store.getSentenceCount());
+      assertEquals(1, store.getDocumentCount());
+      CorpusStore.Document doc = store.getDocument(0);
+      assertEquals("plain.txt", doc.getPath());
+      assertEquals(Arrays.asList("First sentence.", "Second sentence."), store.getSentences(0));
+    }
+  }
+}
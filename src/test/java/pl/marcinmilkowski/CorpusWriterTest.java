@@ -0,0 +1,86 @@
+package pl.marcinmilkowski;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CorpusWriterTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void testOutOfOrderWritesComeOutInInputOrder() throws Exception {
+    Path corpusFile = dir.resolve("corpus.txt");
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      order.add(i);
+    }
+    Collections.shuffle(order, new Random(42));
+
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try (CorpusWriter writer = new CorpusWriter(corpusFile, 64, false)) {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i : order) {
+        futures.add(pool.submit(() -> {
+          if (i % 3 == 0) {
+            writer.skip(i);
+          } else {
+            writer.write(i, "file" + i + ".xml", Arrays.asList("a" + i + "\n", "b" + i + "\n"));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    StringBuilder expected = new StringBuilder();
+    StringBuilder expectedIndex = new StringBuilder();
+    int sentences = 0;
+    for (int i = 0; i < 200; i++) {
+      if (i % 3 != 0) {
+        expected.append("a").append(i).append("\nb").append(i).append("\n");
+        expectedIndex.append(sentences).append("\t2\tfile").append(i).append(".xml").append(System.lineSeparator());
+        sentences += 2;
+      }
+    }
+    assertEquals(expected.toString(), Files.readString(corpusFile));
+    assertEquals(expectedIndex.toString(), Files.readString(CorpusWriter.indexFile(corpusFile)));
+  }
+
+  @Test
+  void testGzipOutput() throws IOException {
+    Path corpusFile = dir.resolve("corpus.txt.gz");
+    try (CorpusWriter writer = new CorpusWriter(corpusFile, 1024, true)) {
+      writer.write(1, "second.xml", Collections.singletonList("Second sentence.\n"));
+      writer.write(0, "first.xml", Collections.singletonList("First sentence.\n"));
+      assertEquals(2, writer.getSentences());
+    }
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(corpusFile))) {
+      assertEquals("First sentence.\nSecond sentence.\n", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  void testMissingSequenceNumberFailsOnClose() throws IOException {
+    CorpusWriter writer = new CorpusWriter(dir.resolve("corpus.txt"), 1024, false);
+    writer.write(1, "second.xml", Collections.singletonList("Second sentence.\n"));
+    assertThrows(IOException.class, writer::close);
+  }
+}
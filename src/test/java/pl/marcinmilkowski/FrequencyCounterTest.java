@@ -0,0 +1,127 @@
+package pl.marcinmilkowski;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrequencyCounterTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void testLongIntHashMap() {
+    LongIntHashMap map = new LongIntHashMap();
+    for (long key = 1; key <= 1000; key++) {
+      map.add(key * 7919, (int) key);
+      map.add(key * 7919, 1);
+    }
+    assertEquals(1000, map.size());
+    assertEquals(43, map.get(42 * 7919));
+    assertEquals(0, map.get(3));
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertThrows(IllegalArgumentException.class, () -> map.add(0, 1));
+  }
+
+  @Test
+  void testTokenDictionary() {
+    TokenDictionary dictionary = new TokenDictionary();
+    char[] text = "the cat and the hat".toCharArray();
+    int the = dictionary.id(text, 0, 3);
+    assertEquals(1, the);
+    assertEquals(2, dictionary.id(text, 4, 7));
+    assertEquals(the, dictionary.id(text, 12, 15));
+    for (int i = 0; i < 5000; i++) {
+      char[] token = ("t" + i).toCharArray();
+      assertEquals(i + 3, dictionary.id(token, 0, token.length));
+    }
+    assertEquals("the", dictionary.token(the));
+    assertEquals("t4999", dictionary.token(5002));
+
+    List<String> sorted = new ArrayList<>();
+    for (int id : dictionary.sortedIds()) {
+      sorted.add(dictionary.token(id));
+    }
+    List<String> expected = new ArrayList<>(sorted);
+    Collections.sort(expected);
+    assertEquals(expected, sorted);
+    assertEquals(dictionary.size(), new HashSet<>(sorted).size());
+  }
+
+  @Test
+  void testSpilledCountsMatchInMemoryCounts() throws Exception {
+    List<String> texts = new ArrayList<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = 0; j < 300; j++) {
+        text.append("w").append(random.nextInt(j % 2 == 0 ? 50 : 2000));
+        text.append(random.nextInt(20) == 0 ? ". " : " ");
+      }
+      texts.add(text.toString());
+    }
+    Map<String, Long> expected = new TreeMap<>();
+    for (String text : texts) {
+      for (String sentence : text.split("\\. ")) {
+        String[] words = sentence.trim().split(" ");
+        for (int i = 0; i + 1 < words.length; i++) {
+          expected.merge(words[i] + " " + words[i + 1], 1L, Long::sum);
+        }
+      }
+    }
+
+    // A tiny budget forces many spills
+    FrequencyCounter counter = new FrequencyCounter(dir, 3, 64 * 1024, 4);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (String text : texts) {
+      futures.add(pool.submit(() -> {
+        counter.add(text.toCharArray(), text.length());
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    pool.shutdown();
+    Path prefix = dir.resolve("out");
+    List<Path> tables = counter.finish(prefix, 2);
+
+    assertEquals(200 * 300, counter.getTokens());
+    assertEquals(expected.size(), counter.getTypes(2));
+    Map<String, Long> actual = new TreeMap<>();
+    for (String line : Files.readAllLines(tables.get(1), StandardCharsets.UTF_8)) {
+      String[] fields = line.split("\t");
+      actual.put(fields[0], Long.parseLong(fields[1]));
+    }
+    expected.values().removeIf(count -> count < 2);
+    assertEquals(expected, actual);
+    assertEquals(new ArrayList<>(actual.keySet()),
+        new ArrayList<>(new TreeSet<>(actual.keySet())));
+    assertTrue(Files.exists(dir.resolve("out-3grams.tsv")));
+    try (var files = Files.list(dir)) {
+      assertEquals(3, files.count(), "The runs are deleted");
+    }
+  }
+
+  @Test
+  void testTokensAreLowercasedWords() throws Exception {
+    FrequencyCounter counter = new FrequencyCounter(dir, 1, 1 << 20, 1);
+    char[] text = "Understanding, understanding; UNDERSTANDINGS (42)".toCharArray();
+    counter.add(text, text.length);
+    List<Path> tables = counter.finish(dir.resolve("words"), 1);
+    assertEquals(Arrays.asList("42\t1", "understanding\t2", "understandings\t1"),
+        Files.readAllLines(tables.get(0), StandardCharsets.UTF_8));
+    assertEquals(4, counter.getTokens());
+  }
+}
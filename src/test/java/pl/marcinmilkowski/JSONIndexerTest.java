@@ -0,0 +1,301 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fge.jsonschema.main.JsonSchema;
+import com.github.fge.jsonschema.main.JsonSchemaFactory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JSONIndexerTest {
+
+  @TempDir
+  Path jsonDir;
+
+  @Test
+  void testPipelineIndexesAllFilesAndReportsFailures() throws Exception {
+    Files.createDirectories(jsonDir.resolve("sub"));
+    for (int i = 0; i < 50; i++) {
+      Files.writeString(jsonDir.resolve("sub").resolve("article" + i + ".json"),
+          "{\"doi\": \"10.1371/journal.pone." + i + "\", \"year\": 2020, \"reviewed\": true}");
+    }
+    Files.writeString(jsonDir.resolve("broken.json"), "{\"doi\": ");
+    Files.writeString(jsonDir.resolve("notes.txt"), "not indexed");
+
+    Directory dir = new ByteBuffersDirectory();
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+      IndexingPipeline pipeline = new IndexingPipeline(writer, new ObjectMapper(), null, 4, 2);
+      pipeline.run(jsonDir);
+      assertEquals(50, pipeline.getIndexed());
+      assertEquals(1, pipeline.getFailed());
+    }
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      assertEquals(50, reader.numDocs());
+      IndexSearcher searcher = new IndexSearcher(reader);
+      assertEquals(1, searcher.count(new TermQuery(new Term("doi", "10.1371/journal.pone.7"))));
+      assertEquals(50, searcher.count(new TermQuery(new Term("reviewed", "true"))));
+    }
+  }
+
+  @Test
+  void testIncrementalIndexingReplacesChangedAndDeletesMissingFiles() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      Files.writeString(jsonDir.resolve("article" + i + ".json"), "{\"doi\": \"10.7554/eLife." + i + "\"}");
+    }
+    Directory dir = new ByteBuffersDirectory();
+    indexIncrementally(dir);
+
+    Files.writeString(jsonDir.resolve("article0.json"), "{\"doi\": \"10.7554/eLife.100\"}");
+    Files.setLastModifiedTime(jsonDir.resolve("article0.json"), FileTime.fromMillis(0));
+    Files.delete(jsonDir.resolve("article1.json"));
+    Files.writeString(jsonDir.resolve("article5.json"), "{\"doi\": \"10.7554/eLife.5\"}");
+
+    IndexingPipeline pipeline = indexIncrementally(dir);
+    assertEquals(2, pipeline.getIndexed());
+    assertEquals(3, pipeline.getUnchanged());
+    assertEquals(1, pipeline.getDeleted());
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      assertEquals(5, reader.numDocs());
+      IndexSearcher searcher = new IndexSearcher(reader);
+      assertEquals(0, searcher.count(new TermQuery(new Term("doi", "10.7554/eLife.0"))));
+      assertEquals(1, searcher.count(new TermQuery(new Term("doi", "10.7554/eLife.100"))));
+      assertEquals(0, searcher.count(new TermQuery(new Term("doi", "10.7554/eLife.1"))));
+    }
+  }
+
+  @Test
+  void testIncrementalIndexingRefusesAnIndexWithStringFileTimes() throws Exception {
+    Directory dir = new ByteBuffersDirectory();
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+      // The file times as they were indexed before they were typed
+      Document doc = new Document();
+      doc.add(new StringField("path", jsonDir.resolve("article0.json").toString(), Field.Store.YES));
+      doc.add(new StringField("modified", "1600000000000", Field.Store.YES));
+      writer.addDocument(doc);
+    }
+    Files.writeString(jsonDir.resolve("article0.json"), "{\"doi\": \"10.7554/eLife.0\"}");
+    IOException e = assertThrows(IOException.class, () -> indexIncrementally(dir));
+    assertTrue(e.getMessage().contains("rebuild"), e.getMessage());
+  }
+
+  private IndexingPipeline indexIncrementally(Directory dir) throws Exception {
+    IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+    try (IndexWriter writer = new IndexWriter(dir, config)) {
+      IndexingPipeline pipeline = new IndexingPipeline(writer, new ObjectMapper(), null, 2, 4);
+      try (DirectoryReader reader = DirectoryReader.open(writer)) {
+        pipeline.setKnownFiles(IndexingPipeline.readModifiedTimes(reader));
+      }
+      pipeline.run(jsonDir);
+      writer.commit();
+      return pipeline;
+    }
+  }
+
+  @Test
+  void testFullTextIsIndexedFromCompanionXml() throws Exception {
+    Files.writeString(jsonDir.resolve("eLife.00003.json"), "{\"doi\": \"10.7554/eLife.00003\"}");
+    Files.writeString(jsonDir.resolve("eLife.00003.xml"),
+        "<article><!-- hidden comment --><p>Predictive <italic>processing</italic> &amp; cognitive science</p></article>");
+    Files.writeString(jsonDir.resolve("eLife.00004.json"), "{\"doi\": \"10.7554/eLife.00004\"}");
+
+    Directory dir = new ByteBuffersDirectory();
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+      new IndexingPipeline(writer, new ObjectMapper(), null, 2, 2).run(jsonDir);
+    }
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      assertEquals(1, searcher.count(new PhraseQuery(JSONIndexer.CONTENTS_FIELD, "predictive", "processing")));
+      assertEquals(1, searcher.count(new PhraseQuery(JSONIndexer.CONTENTS_FIELD, "cognitive", "science")));
+      assertEquals(0, searcher.count(new TermQuery(new Term(JSONIndexer.CONTENTS_FIELD, "hidden"))));
+      assertEquals(0, searcher.count(new TermQuery(new Term(JSONIndexer.CONTENTS_FIELD, "italic"))));
+    }
+  }
+
+  @Test
+  void testNestedValuesAreFlattenedWithDottedNames() throws Exception {
+    Path file = jsonDir.resolve("nested.json");
+    String json = "{\"doi\": \"https://doi.org/10.7554/eLife.1\", \"year\": 2020, \"note\": null,"
+        + " \"authors\": [{\"name\": \"Ann\", \"orcid\": \"0000-1\"}, {\"name\": \"Bob\"}],"
+        + " \"keywords\": [\"cognition\", [\"memory\"]], \"journal\": {\"title\": \"eLife\", \"issn\": {\"print\": \"2050-084X\"}}}";
+    Files.writeString(file, json);
+    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+
+    ObjectMapper mapper = new ObjectMapper();
+    Document streamed;
+    try (JsonParser parser = mapper.getFactory().createParser(Files.readAllBytes(file))) {
+      streamed = JSONIndexer.createDocument(file.toString(), attrs, parser, FieldMapping.DEFAULT);
+    }
+    assertArrayEquals(new String[] {"Ann", "Bob"}, streamed.getValues("authors.name"));
+    assertEquals("0000-1", streamed.get("authors.orcid"));
+    assertArrayEquals(new String[] {"cognition", "memory"}, streamed.getValues("keywords"));
+    assertEquals("2050-084X", streamed.get("journal.issn.print"));
+    assertEquals("2020", streamed.get("year"));
+    assertNull(streamed.get("note"));
+    assertEquals("10.7554/elife.1", streamed.getField(DoiMatcher.DOI_KEY_FIELD).stringValue());
+
+    Document fromTree = JSONIndexer.createDocument(file.toString(), attrs, mapper.readTree(json), FieldMapping.DEFAULT);
+    assertEquals(streamed.toString(), fromTree.toString());
+  }
+
+  @Test
+  void testInvalidFilesAreReportedQuarantinedAndValidFilesCached(@TempDir Path work) throws Exception {
+    byte[] schemaSource = ("{\"type\": \"object\", \"required\": [\"doi\"],"
+        + " \"properties\": {\"doi\": {\"type\": \"string\"}, \"year\": {\"type\": \"integer\"}}}")
+        .getBytes(StandardCharsets.UTF_8);
+    ObjectMapper mapper = new ObjectMapper();
+    JsonSchema schema = JsonSchemaFactory.byDefault().getJsonSchema(mapper.readTree(schemaSource));
+    Files.createDirectories(jsonDir.resolve("sub"));
+    for (int i = 0; i < 10; i++) {
+      Files.writeString(jsonDir.resolve("article" + i + ".json"), "{\"doi\": \"10.7554/eLife." + i + "\", \"year\": 2020}");
+    }
+    Files.writeString(jsonDir.resolve("sub").resolve("bad.json"), "{\"doi\": 42, \"year\": \"soon\"}");
+
+    Path report = work.resolve("report.jsonl");
+    Path quarantine = work.resolve("quarantine");
+    for (int run = 0; run < 2; run++) {
+      Directory dir = new ByteBuffersDirectory();
+      try (SchemaValidator validator = new SchemaValidator(schema, schemaSource, work.resolve("cache"), report);
+           IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+        IndexingPipeline pipeline = new IndexingPipeline(writer, mapper, validator, 3, 4);
+        pipeline.setInvalidFilePolicy(IndexingPipeline.InvalidFilePolicy.QUARANTINE, quarantine);
+        pipeline.run(jsonDir);
+        assertEquals(10, pipeline.getIndexed());
+        assertEquals(1, pipeline.getInvalid());
+        assertEquals(0, pipeline.getFailed());
+        assertEquals(run == 0 ? 11 : 1, validator.getValidated());
+        assertEquals(run == 0 ? 0 : 10, validator.getCacheHits());
+      }
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertEquals(10, reader.numDocs());
+      }
+    }
+    assertTrue(Files.isRegularFile(quarantine.resolve("sub").resolve("bad.json")));
+    List<String> lines = Files.readAllLines(report, StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    Set<String> pointers = new HashSet<>();
+    for (String line : lines) {
+      JsonNode error = mapper.readTree(line);
+      assertTrue(error.get("file").asText().endsWith("bad.json"));
+      assertFalse(error.get("message").asText().isEmpty());
+      pointers.add(error.get("pointer").asText());
+    }
+    assertEquals(new HashSet<>(Arrays.asList("/doi", "/year")), pointers);
+  }
+
+  @Test
+  void testShardValidatorsWriteTheirOwnCacheFilesAndReadAllOfThem(@TempDir Path work) throws Exception {
+    byte[] schemaSource = "{\"type\": \"object\"}".getBytes(StandardCharsets.UTF_8);
+    ObjectMapper mapper = new ObjectMapper();
+    JsonSchema schema = JsonSchemaFactory.byDefault().getJsonSchema(mapper.readTree(schemaSource));
+    Path cacheDir = work.resolve("cache");
+    List<String> hashes = new ArrayList<>();
+    for (int shard = 0; shard < 2; shard++) {
+      byte[] json = ("{\"doi\": \"10.1000/" + shard + "\"}").getBytes(StandardCharsets.UTF_8);
+      String hash = SchemaValidator.hash(json);
+      hashes.add(hash);
+      try (SchemaValidator validator = new SchemaValidator(schema, schemaSource, cacheDir, "-shard-" + shard, null)) {
+        assertTrue(validator.validate("file" + shard + ".json", hash, mapper.readTree(json)));
+      }
+    }
+    try (Stream<Path> files = Files.list(cacheDir)) {
+      assertEquals(2, files.count());
+    }
+    try (SchemaValidator validator = new SchemaValidator(schema, schemaSource, cacheDir, null)) {
+      for (String hash : hashes) {
+        assertTrue(validator.isKnownValid(hash));
+      }
+    }
+    assertEquals(Paths.get("out", "indexer-metrics-shard-3.json"),
+        IndexShards.shardFile(Paths.get("out", "indexer-metrics.json"), 3));
+  }
+
+  @Test
+  void testShardsPartitionTheFilesAndMergeIntoOneIndex(@TempDir Path work) throws Exception {
+    for (int i = 0; i < 60; i++) {
+      Files.writeString(jsonDir.resolve("article" + i + ".json"), "{\"doi\": \"10.7554/eLife." + i + "\"}");
+    }
+    Path indexDir = work.resolve("index");
+    int shards = 3;
+    int total = 0;
+    for (int shard = 0; shard < shards; shard++) {
+      try (Directory dir = FSDirectory.open(IndexShards.shardDir(indexDir, shard));
+           IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+        IndexingPipeline pipeline = new IndexingPipeline(writer, new ObjectMapper(), null, 2, 4);
+        pipeline.setShard(shard, shards);
+        pipeline.run(jsonDir);
+        assertTrue(pipeline.getIndexed() > 0 && pipeline.getIndexed() < 60);
+        total += pipeline.getIndexed();
+        writer.commit();
+      }
+    }
+    assertEquals(60, total);
+    assertEquals(2, IndexShards.shardOf("article7.json", shards));
+    assertArrayEquals(new int[]{2, 8}, IndexShards.parse("2/8"));
+    assertThrows(IllegalArgumentException.class, () -> IndexShards.parse("8/8"));
+
+    // All the shards in one walk: each file is read once and goes to the same shard as above
+    Path oneWalk = work.resolve("one-walk");
+    List<Directory> dirs = new ArrayList<>();
+    List<IndexWriter> writers = new ArrayList<>();
+    for (int shard = 0; shard < shards; shard++) {
+      dirs.add(FSDirectory.open(IndexShards.shardDir(oneWalk, shard)));
+      writers.add(new IndexWriter(dirs.get(shard), new IndexWriterConfig(new StandardAnalyzer())));
+    }
+    IndexingPipeline pipeline = new IndexingPipeline(writers, new ObjectMapper(), null, 2, 4);
+    pipeline.run(jsonDir);
+    assertEquals(60, pipeline.getIndexed());
+    assertEquals(60, pipeline.getMetrics().getCount(Metrics.Stage.READ));
+    assertThrows(IllegalStateException.class, () -> pipeline.setShard(0, shards));
+    for (int shard = 0; shard < shards; shard++) {
+      writers.get(shard).close();
+      try (Directory expectedDir = FSDirectory.open(IndexShards.shardDir(indexDir, shard));
+           DirectoryReader expected = DirectoryReader.open(expectedDir);
+           DirectoryReader actual = DirectoryReader.open(dirs.get(shard))) {
+        assertEquals(expected.numDocs(), actual.numDocs());
+      }
+      dirs.get(shard).close();
+    }
+
+    IndexShards.merge(indexDir, shards, new IndexWriterConfig(new StandardAnalyzer()), 1);
+    try (Directory dir = FSDirectory.open(indexDir); DirectoryReader reader = DirectoryReader.open(dir)) {
+      assertEquals(60, reader.numDocs());
+      assertEquals(1, reader.leaves().size());
+      IndexSearcher searcher = new IndexSearcher(reader);
+      for (int i = 0; i < 60; i++) {
+        assertEquals(1, searcher.count(new TermQuery(new Term("doi", "10.7554/eLife." + i))));
+      }
+    }
+  }
+}
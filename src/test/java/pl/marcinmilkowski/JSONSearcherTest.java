@@ -0,0 +1,251 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JSONSearcherTest {
+
+  @TempDir
+  Path jsonDir;
+
+  @Test
+  void testNormalize() {
+    assertEquals("10.3390/ijms21010001", DoiMatcher.normalize(" https://doi.org/10.3390/IJMS21010001 "));
+    assertEquals("10.3390/ijms21010001", DoiMatcher.normalize("doi:10.3390/ijms21010001"));
+  }
+
+  @Test
+  void testDoiMatcherWritesMatchedAndMissingInInputOrder() throws Exception {
+    Directory dir = new ByteBuffersDirectory();
+    ObjectMapper mapper = new ObjectMapper();
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+      for (int i = 0; i < 10; i++) {
+        Path file = jsonDir.resolve("article" + i + ".json");
+        Files.writeString(file, "{\"doi\": \"10.3390/IJMS" + i + "\"}");
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        writer.addDocument(JSONIndexer.createDocument(file.toString(), attrs, mapper.readTree(file.toFile()),
+            FieldMapping.DEFAULT));
+        if (i % 4 == 0) {
+          writer.commit();
+        }
+      }
+      writer.deleteDocuments(new Term("doi", "10.3390/IJMS9"));
+    }
+
+    StringBuilder matched = new StringBuilder();
+    StringBuilder missing = new StringBuilder();
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      DoiMatcher matcher = new DoiMatcher(reader, DoiMatcher.DOI_KEY_FIELD, 3, matched, missing);
+      for (String doi : new String[]{"10.3390/ijms5", "10.3390/ijms42", "https://doi.org/10.3390/ijms1",
+          "10.3390/ijms9", "", "10.3390/ijms0", "10.3390/ijms5"}) {
+        matcher.add(doi);
+      }
+      matcher.flush();
+      assertEquals(7, matcher.getRecords());
+      assertEquals(4, matcher.getMatched());
+    }
+    String nl = System.lineSeparator();
+    assertEquals("10.3390/ijms5" + nl + "https://doi.org/10.3390/ijms1" + nl + "10.3390/ijms0" + nl + "10.3390/ijms5" + nl,
+        matched.toString());
+    assertEquals("10.3390/ijms42" + nl + "10.3390/ijms9" + nl + nl, missing.toString());
+  }
+
+  @Test
+  void testRangeAndSortedQueriesOnTypedFields() throws Exception {
+    ObjectMapper mapper = new ObjectMapper();
+    FieldMapping mapping = FieldMapping.fromSchema(mapper.readTree("{\"type\": \"object\", \"properties\": {"
+        + "\"year\": {\"type\": \"integer\"}, \"score\": {\"type\": [\"number\", \"null\"]},"
+        + "\"published\": {\"type\": \"string\", \"format\": \"date\"},"
+        + "\"authors\": {\"type\": \"array\", \"items\": {\"type\": \"object\", \"properties\": {\"name\": {\"type\": \"string\"}}}}}}"));
+    assertEquals(FieldMapping.Type.LONG, mapping.getType("year"));
+    assertEquals(FieldMapping.Type.DOUBLE, mapping.getType("score"));
+    assertEquals(FieldMapping.Type.DATE, mapping.getType("published"));
+    assertEquals(FieldMapping.Type.KEYWORD, mapping.getType("authors.name"));
+    assertEquals(FieldMapping.Type.DATE, mapping.getType("modified"));
+    assertEquals(FieldMapping.Type.DOUBLE, mapping.with("year:double").getType("year"));
+
+    Directory dir = new ByteBuffersDirectory();
+    int[] years = {2021, 2009, 2015, 2019, 2012};
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+      for (int i = 0; i < years.length; i++) {
+        Path file = jsonDir.resolve("article" + i + ".json");
+        Files.writeString(file, "{\"year\": " + years[i] + ", \"score\": " + (i * 1.5)
+            + ", \"published\": \"" + years[i] + "-06-01\", \"authors\": [{\"name\": \"Author " + (char) ('E' - i)
+            + "\"}, {\"name\": \"Zed\"}]}");
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        writer.addDocument(JSONIndexer.createDocument(file.toString(), attrs, mapper.readTree(file.toFile()), mapping));
+      }
+      // A year that is not a number is left out, the document is still indexed
+      Path file = jsonDir.resolve("undated.json");
+      Files.writeString(file, "{\"year\": \"unknown\"}");
+      BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+      writer.addDocument(JSONIndexer.createDocument(file.toString(), attrs, mapper.readTree(file.toFile()), mapping));
+    }
+
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      TopDocs hits = JSONSearcher.search(searcher, mapping, "year", "2012", "2019", "-year", 10);
+      assertEquals(3, hits.totalHits.value);
+      assertEquals(Arrays.asList("2019", "2015", "2012"), storedValues(searcher, hits, "year"));
+
+      hits = JSONSearcher.search(searcher, mapping, "published", "2015-01-01", null, "score", 10);
+      assertEquals(Arrays.asList("0.0", "3.0", "4.5"), storedValues(searcher, hits, "score"));
+
+      hits = JSONSearcher.search(searcher, mapping, "score", "1", "5", "authors.name", 10);
+      assertEquals(Arrays.asList("2019", "2015", "2009"), storedValues(searcher, hits, "year"));
+
+      hits = JSONSearcher.search(searcher, mapping, null, null, null, "-modified", 10);
+      assertEquals(6, hits.totalHits.value);
+    }
+  }
+
+  @Test
+  void testFacetCountsPerValueAcrossSegmentsUnderAFilter() throws Exception {
+    ObjectMapper mapper = new ObjectMapper();
+    FieldMapping mapping = FieldMapping.DEFAULT.with("year:long").withFacets("journal;year;keywords;license");
+    assertEquals(Arrays.asList("journal", "year", "keywords", "license"), new ArrayList<>(mapping.getFacets()));
+
+    Directory dir = new ByteBuffersDirectory();
+    String[] journals = {"plos", "elife", "plos", "mdpi", "plos", "elife"};
+    int[] years = {2015, 2015, 2018, 2019, 2021, 2018};
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+      for (int i = 0; i < journals.length; i++) {
+        Path file = jsonDir.resolve("article" + i + ".json");
+        Files.writeString(file, "{\"journal\": \"" + journals[i] + "\", \"year\": " + years[i]
+            + ", \"review_type\": \"" + (i % 2 == 0 ? "r" : "none") + "\", \"keywords\": [\"mind\", \"k" + i % 3 + "\"]}");
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        writer.addDocument(JSONIndexer.createDocument(file.toString(), attrs, mapper.readTree(file.toFile()), mapping));
+        if (i % 2 == 1) {
+          writer.commit();
+        }
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      assertEquals(3, reader.leaves().size());
+      IndexSearcher searcher = new IndexSearcher(reader, executor);
+      List<String> dims = new ArrayList<>(mapping.getFacets());
+      List<FacetResult> results =
+          JSONSearcher.aggregate(searcher, mapping.getFacetsConfig(), null, dims, 10, executor);
+      assertEquals(Map.of("plos", 3, "elife", 2, "mdpi", 1), counts(results.get(0)));
+      assertEquals(Map.of("2015", 2, "2018", 2, "2019", 1, "2021", 1), counts(results.get(1)));
+      // Every document has two keywords
+      assertEquals(Map.of("mind", 6, "k0", 2, "k1", 2, "k2", 2), counts(results.get(2)));
+      assertNull(results.get(3));
+
+      // Reviewed articles from 2016 on
+      results = JSONSearcher.aggregate(searcher, mapping.getFacetsConfig(),
+          JSONSearcher.filter(mapping, "year", "2016", null, "review_type:r"), dims, 10, executor);
+      assertEquals(Map.of("plos", 2), counts(results.get(0)));
+      assertEquals(Map.of("2018", 1, "2021", 1), counts(results.get(1)));
+      assertNull(JSONSearcher.filter(mapping, null, null, null, " "));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static Map<String, Integer> counts(FacetResult result) {
+    Map<String, Integer> counts = new LinkedHashMap<>();
+    for (LabelAndValue labelAndValue : result.labelValues) {
+      counts.put(labelAndValue.label, labelAndValue.value.intValue());
+    }
+    return counts;
+  }
+
+  private static List<String> storedValues(IndexSearcher searcher, TopDocs hits, String field) throws Exception {
+    List<String> values = new ArrayList<>();
+    for (ScoreDoc hit : hits.scoreDocs) {
+      values.add(searcher.storedFields().document(hit.doc).get(field));
+    }
+    return values;
+  }
+
+  @Test
+  void testFederatedSearchReportsTheIndexOfEachHitAndMatchesDoisPerIndex() throws Exception {
+    ObjectMapper mapper = new ObjectMapper();
+    Map<String, DirectoryReader> readers = new LinkedHashMap<>();
+    String[] publishers = {"plos", "mdpi", "elife"};
+    for (int p = 0; p < publishers.length; p++) {
+      Directory dir = new ByteBuffersDirectory();
+      try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+        // Index p has the DOIs 0 to 10 * (p + 1) - 1, in a few segments
+        for (int i = 0; i < 10 * (p + 1); i++) {
+          Path file = jsonDir.resolve(publishers[p] + i + ".json");
+          Files.writeString(file, "{\"doi\": \"10.1000/" + i + "\", \"publisher\": \"" + publishers[p] + "\"}");
+          BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+          writer.addDocument(JSONIndexer.createDocument(file.toString(), attrs, mapper.readTree(file.toFile()),
+              FieldMapping.DEFAULT));
+          if (i % 7 == 6) {
+            writer.commit();
+          }
+        }
+      }
+      readers.put(publishers[p], DirectoryReader.open(dir));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try (FederatedIndex indexes = new FederatedIndex(readers, executor)) {
+      assertEquals(Arrays.asList(publishers), indexes.getNames());
+      IndexSearcher searcher = indexes.getSearcher();
+      TopDocs hits = searcher.search(new MatchAllDocsQuery(), 100);
+      assertEquals(60, hits.totalHits.value);
+      for (ScoreDoc hit : hits.scoreDocs) {
+        assertEquals(searcher.storedFields().document(hit.doc).get("publisher"), indexes.getName(hit.doc));
+      }
+      assertEquals(3, searcher.count(new TermQuery(new Term("doi", "10.1000/5"))));
+
+      List<StringBuilder> matched = Arrays.asList(new StringBuilder(), new StringBuilder(), new StringBuilder());
+      List<StringBuilder> missing = Arrays.asList(new StringBuilder(), new StringBuilder(), new StringBuilder());
+      DoiMatcher matcher = new DoiMatcher(indexes.getReaders(), DoiMatcher.DOI_KEY_FIELD, 4, matched, missing);
+      matcher.setExecutor(executor);
+      for (int i = 0; i < 40; i += 3) {
+        matcher.add("10.1000/" + i);
+      }
+      matcher.flush();
+      assertEquals(14, matcher.getRecords());
+      assertEquals(10, matcher.getMatched());
+      assertEquals(4, matcher.getMatched(0));
+      assertEquals(7, matcher.getMatched(1));
+      assertEquals(10, matcher.getMatched(2));
+      String nl = System.lineSeparator();
+      assertEquals("10.1000/0" + nl + "10.1000/3" + nl + "10.1000/6" + nl + "10.1000/9" + nl, matched.get(0).toString());
+      assertTrue(missing.get(2).toString().startsWith("10.1000/30" + nl));
+    } finally {
+      executor.shutdown();
+      for (DirectoryReader reader : readers.values()) {
+        reader.close();
+      }
+    }
+    assertEquals(Arrays.asList("plos", "mdpi"),
+        new ArrayList<>(FederatedIndex.parse("plos=/data/a; /data/LuceneIndex-mdpi").keySet()));
+  }
+}
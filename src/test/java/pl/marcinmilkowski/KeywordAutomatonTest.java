@@ -0,0 +1,62 @@
+package pl.marcinmilkowski;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeywordAutomatonTest {
+
+  private static List<String> hits(KeywordAutomaton automaton, String text) {
+    List<String> hits = new ArrayList<>();
+    automaton.find(text, 0, text.length(), (start, end, keyword) -> {
+      hits.add(automaton.getKeywords().get(keyword) + "@" + start + ":" + text.substring(start, end));
+      return true;
+    });
+    return hits;
+  }
+
+  @Test
+  void testWholeWordsOnly() {
+    KeywordAutomaton automaton = KeywordAutomaton.parse("understanding:understanding|understandings", true);
+    assertEquals(List.of("understanding@0:Understanding", "understanding@31:understandings"),
+        hits(automaton, "Understanding misunderstanding understandings understandingly"));
+    assertFalse(automaton.matches("misunderstandings"));
+    assertTrue(automaton.matches("(understanding)"));
+  }
+
+  @Test
+  void testOverlappingTermsOfSeveralKeywords() {
+    KeywordAutomaton automaton = KeywordAutomaton.parse("he;she;hers;his;theory:theory|theories", false);
+    assertEquals(List.of("she@0:she", "he@4:he", "hers@7:hers", "his@12:his", "theory@16:theories"),
+        hits(automaton, "she he hers his theories ushers"));
+  }
+
+  @Test
+  void testTermSharedByTwoKeywordsIsReportedForBoth() {
+    KeywordAutomaton automaton = KeywordAutomaton.parse(
+        "understanding:understanding|Understanding;comprehension:comprehension|UNDERSTANDING", true);
+    assertEquals(List.of("understanding@4:understanding", "comprehension@4:understanding",
+        "comprehension@22:comprehension"), hits(automaton, "Our understanding and comprehension"));
+  }
+
+  @Test
+  void testCaseAndNonAsciiCharacters() {
+    KeywordAutomaton automaton = KeywordAutomaton.parse("\u00e9tude;na\u00efve", true);
+    assertEquals(List.of("\u00e9tude@0:\u00c9tude", "na\u00efve@11:NA\u00cfVE"),
+        hits(automaton, "\u00c9tude tr\u00e8s NA\u00cfVE \u00e9tudes"));
+    KeywordAutomaton caseSensitive = KeywordAutomaton.parse("DNA", false);
+    assertTrue(hits(caseSensitive, "dna").isEmpty());
+    assertEquals(1, hits(caseSensitive, "the DNA.").size());
+  }
+
+  @Test
+  void testStopEarly() {
+    KeywordAutomaton automaton = KeywordAutomaton.parse("a", false);
+    int[] count = {0};
+    automaton.find("a a a a", 0, 7, (start, end, keyword) -> ++count[0] < 2);
+    assertEquals(2, count[0]);
+  }
+}
@@ -0,0 +1,70 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void testStagesAreCountedAcrossThreads() throws Exception {
+    Metrics metrics = new Metrics();
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    for (int i = 0; i < 1000; i++) {
+      metrics.discovered();
+      pool.execute(() -> {
+        metrics.start(Metrics.Stage.READ, "file").stop(100);
+        metrics.start(Metrics.Stage.PARSE, "file").stop(100);
+        metrics.fileDone(100);
+      });
+    }
+    metrics.walkDone();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+    metrics.fileFailed();
+    metrics.addSentences(7);
+
+    assertEquals(1000, metrics.getFiles());
+    assertEquals(1000, metrics.getCount(Metrics.Stage.READ));
+    assertEquals(0, metrics.getCount(Metrics.Stage.COMMIT));
+    String line = metrics.progressLine();
+    assertTrue(line.contains("1001/1000 files"), line);
+    assertTrue(line.contains("1 failed"), line);
+    assertTrue(line.contains("7 sentences"), line);
+
+    Path file = dir.resolve("metrics.json");
+    metrics.writeJson(file);
+    JsonNode json = new ObjectMapper().readTree(file.toFile());
+    assertEquals(1000, json.get("files").asLong());
+    assertEquals(100_000, json.get("bytes").asLong());
+    assertEquals(1000, json.get("stages").get("read").get("count").asLong());
+    assertEquals(100_000, json.get("stages").get("parse").get("bytes").asLong());
+    assertTrue(json.get("stages").get("read").get("p99Micros").asLong()
+        >= json.get("stages").get("read").get("p50Micros").asLong());
+    assertFalse(json.get("stages").has("commit"));
+  }
+
+  @Test
+  void testEtaOnlyAfterTheWalk() {
+    Metrics metrics = new Metrics();
+    metrics.discovered();
+    metrics.discovered();
+    metrics.fileDone(10);
+    assertTrue(metrics.progressLine().contains("2 found so far"));
+    assertFalse(metrics.progressLine().contains("ETA"));
+    metrics.walkDone();
+    assertTrue(metrics.progressLine().contains("1/2 files"));
+    assertTrue(metrics.progressLine().contains("ETA"));
+  }
+}
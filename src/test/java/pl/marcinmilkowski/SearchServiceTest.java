@@ -0,0 +1,91 @@
+package pl.marcinmilkowski;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchServiceTest {
+
+  @TempDir
+  Path jsonDir;
+
+  private final HttpClient client = HttpClient.newHttpClient();
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  void testEndpointsAndRefresh() throws Exception {
+    Directory dir = new ByteBuffersDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()));
+    for (int i = 0; i < 3; i++) {
+      Files.writeString(jsonDir.resolve("eLife." + i + ".json"), "{\"doi\": \"10.7554/eLife." + i + "\", \"year\": " + (2020 + i) + "}");
+      Files.writeString(jsonDir.resolve("eLife." + i + ".xml"), "<p>Predictive processing, part " + i + "</p>");
+    }
+    IndexingPipeline pipeline = new IndexingPipeline(writer, mapper, null, 2, 2);
+    FieldMapping mapping = FieldMapping.DEFAULT.with("year:long");
+    pipeline.setFieldMapping(mapping);
+    pipeline.run(jsonDir);
+    writer.commit();
+
+    try (SearchService service = new SearchService(dir, new StandardAnalyzer(), mapping, 0, 100, 60_000)) {
+      String base = "http://localhost:" + service.getPort();
+
+      JsonNode doi = get(base + "/doi?doi=" + URLEncoder.encode("https://doi.org/10.7554/ELIFE.1", StandardCharsets.UTF_8));
+      assertTrue(doi.get("found").asBoolean());
+      assertEquals("10.7554/eLife.1", doi.at("/hits/0/doi").asText());
+
+      JsonNode search = get(base + "/search?q=" + URLEncoder.encode("\"predictive processing\"", StandardCharsets.UTF_8)
+          + "&sort=-year");
+      assertEquals(3, search.get("total").asInt());
+      assertTrue(search.at("/hits/0/path").asText().endsWith("eLife.2.json"));
+
+      HttpResponse<String> match = client.send(HttpRequest.newBuilder(URI.create(base + "/match"))
+              .POST(HttpRequest.BodyPublishers.ofString("Title,DOI\nA,10.7554/eLife.0\nB,10.7554/eLife.9\n")).build(),
+          HttpResponse.BodyHandlers.ofString());
+      assertEquals(200, match.statusCode());
+      JsonNode matched = mapper.readTree(match.body());
+      assertEquals(2, matched.get("records").asInt());
+      assertEquals(1, matched.get("matched").asInt());
+      assertEquals("10.7554/eLife.9", matched.at("/missing/0").asText());
+
+      assertEquals(400, client.send(HttpRequest.newBuilder(URI.create(base + "/search?q=" + URLEncoder.encode("(", StandardCharsets.UTF_8))).build(),
+          HttpResponse.BodyHandlers.ofString()).statusCode());
+      assertEquals(405, client.send(HttpRequest.newBuilder(URI.create(base + "/match")).build(),
+          HttpResponse.BodyHandlers.ofString()).statusCode());
+
+      // A new commit is visible after a refresh, and the cached response is dropped
+      assertFalse(get(base + "/doi?doi=10.7554/eLife.9").get("found").asBoolean());
+      Files.writeString(jsonDir.resolve("eLife.9.json"), "{\"doi\": \"10.7554/eLife.9\"}");
+      pipeline.run(jsonDir);
+      writer.commit();
+      assertFalse(get(base + "/doi?doi=10.7554/eLife.9").get("found").asBoolean());
+      service.refresh();
+      assertTrue(get(base + "/doi?doi=10.7554/eLife.9").get("found").asBoolean());
+    } finally {
+      writer.close();
+    }
+  }
+
+  private JsonNode get(String uri) throws Exception {
+    HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(uri)).build(),
+        HttpResponse.BodyHandlers.ofString());
+    assertEquals(200, response.statusCode(), response.body());
+    return mapper.readTree(response.body());
+  }
+}
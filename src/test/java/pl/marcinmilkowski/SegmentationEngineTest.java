@@ -0,0 +1,145 @@
+package pl.marcinmilkowski;
+
+import net.loomchild.segment.srx.LanguageRule;
+import net.loomchild.segment.srx.Rule;
+import net.loomchild.segment.srx.SrxDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentationEngineTest {
+
+  @TempDir
+  Path dir;
+
+  private static SrxDocument simpleRules() {
+    LanguageRule rule = new LanguageRule("Simple");
+    rule.addRule(new Rule(true, "[.!?]\\s", ""));
+    SrxDocument document = new SrxDocument();
+    document.addLanguageMap(".*", rule);
+    return document;
+  }
+
+  @Test
+  void testSubmittedFilesAreWrittenInOrderAndFailuresSkipped() throws Exception {
+    Path corpusFile = dir.resolve("corpus.txt");
+    Pattern filter = Pattern.compile(".*");
+    try (
+        CorpusWriter writer = new CorpusWriter(corpusFile, 256, false);
+        SegmentationEngine engine = new SegmentationEngine(simpleRules(), "EN_one", 3)
+    ) {
+      for (int i = 0; i < 100; i++) {
+        int n = i;
+        engine.submit(i, "file" + i, () -> {
+          if (n == 50) {
+            throw new IllegalStateException("broken file");
+          }
+          Thread.sleep(n % 7);
+          return engine.getFilteredText("Text " + n + ".", filter);
+        }, writer);
+      }
+    }
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      if (i != 50) {
+        expected.append("Text ").append(i).append(".").append(System.lineSeparator());
+      }
+    }
+    assertEquals(expected.toString(), Files.readString(corpusFile));
+  }
+
+  @Test
+  void testFilesHeldBackBehindASlowFileCountAsInFlight() throws Exception {
+    Path corpusFile = dir.resolve("corpus.txt");
+    CountDownLatch slowFile = new CountDownLatch(1);
+    AtomicInteger started = new AtomicInteger();
+    try (
+        CorpusWriter writer = new CorpusWriter(corpusFile, 256, false);
+        SegmentationEngine engine = new SegmentationEngine(simpleRules(), "EN_one", 2)
+    ) {
+      Thread submitter = new Thread(() -> {
+        try {
+          for (int i = 0; i < 100; i++) {
+            int n = i;
+            engine.submit(i, "file" + i, () -> {
+              started.incrementAndGet();
+              if (n == 0) {
+                slowFile.await();
+              }
+              return List.of("Text " + n + "." + System.lineSeparator());
+            }, writer);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      submitter.start();
+      Thread.sleep(300);
+      // Two workers, four files each: the files finished behind file 0 keep their slots
+      assertEquals(8, started.get());
+      slowFile.countDown();
+      submitter.join();
+    }
+    assertEquals(100, Files.readAllLines(corpusFile).size());
+  }
+
+  @Test
+  void testKeywordSentencesMatchFullSegmentation() throws Exception {
+    String[] words = {"the", "model", "Dr.", "understanding", "e.g.", "data", "Fig.", "theory", "results", "show",
+        "Understandings", "misunderstanding", "we", "et", "al.", "1.5", "(see", "below)", "novel"};
+    String[] ends = {". ", "? ", "! ", ".\n", " ", " ", " ", " ", ", ", "\n\n"};
+    Random random = new Random(7);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      text.append(words[random.nextInt(words.length)]).append(ends[random.nextInt(ends.length)]);
+    }
+    KeywordAutomaton keywords = KeywordAutomaton.parse("understanding:understanding|understandings;theory", true);
+    try (SegmentationEngine engine = new SegmentationEngine(TextCorpusMaker.getSrxDocument(), "EN_one", 2)) {
+      Map<String, List<String>> result = engine.getKeywordSentences(text.toString(), keywords);
+
+      List<String> understanding = new ArrayList<>();
+      List<String> theory = new ArrayList<>();
+      for (String sentence : engine.sentenceTokenize(text.toString())) {
+        String line = SegmentationEngine.toLine(sentence);
+        if (Pattern.compile("(?i).*\\bunderstandings?\\b.*").matcher(line).matches()) {
+          understanding.add(line + System.lineSeparator());
+        }
+        if (Pattern.compile("(?i).*\\btheory\\b.*").matcher(line).matches()) {
+          theory.add(line + System.lineSeparator());
+        }
+      }
+      assertFalse(understanding.isEmpty());
+      assertEquals(understanding, result.get("understanding"));
+      assertEquals(theory, result.get("theory"));
+      assertTrue(engine.getKeywordSentences("No hits in this text.", keywords).isEmpty());
+    }
+  }
+
+  @Test
+  void testKeywordAndRegexModesWriteTheSameLines() throws Exception {
+    String text = TextCorpusMaker.getCleanText("<p>\nWe need more understanding of this.\nAnother sentence\nabout"
+        + " understanding,\n  split over lines. Unrelated.\n\n</p>\n");
+    String nl = System.lineSeparator();
+    List<String> expected = List.of("We need more understanding of this." + nl,
+        "Another sentence about understanding, split over lines." + nl);
+    try (SegmentationEngine engine = new SegmentationEngine(TextCorpusMaker.getSrxDocument(), "EN_one", 1)) {
+      assertEquals(expected, engine.getKeywordSentences(text, KeywordAutomaton.parse("understanding", true))
+          .get("understanding"));
+      assertEquals(expected, engine.getFilteredText(text, Pattern.compile(TextCorpusMaker.KEYWORD_FILTER)));
+      assertEquals(expected, TextCorpusMaker.getFilteredText(text, Pattern.compile(TextCorpusMaker.KEYWORD_FILTER)));
+    }
+    assertEquals("a b c", SegmentationEngine.toLine("\n a\r\n\tb \n\n c \n"));
+    assertEquals("", SegmentationEngine.toLine(" \n\n"));
+  }
+}
@@ -0,0 +1,106 @@
+package pl.marcinmilkowski;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SentenceIndexTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void testExportMergesSegmentsInPathAndSentenceOrder() throws Exception {
+    Path corpusFile = dir.resolve("corpus.txt");
+    try (Directory index = new ByteBuffersDirectory()) {
+      try (IndexWriter writer = new IndexWriter(index, SentenceIndex.config(SentenceIndex.analyzer()))) {
+        // One segment per file, written out of path order
+        SentenceIndex.addSentences(writer, "b.xml", "c", "r",
+            Arrays.asList("Understanding b0. ", "Nothing. ", "More\n understanding b2."));
+        writer.commit();
+        SentenceIndex.addSentences(writer, "a.xml", "c", "a", Arrays.asList("Understanding a0.", "Nothing."));
+        writer.commit();
+        SentenceIndex.addSentences(writer, "c.xml", "c", "", Arrays.asList("Nothing at all."));
+        writer.commit();
+      }
+      try (IndexReader reader = DirectoryReader.open(index)) {
+        assertEquals(3, reader.leaves().size());
+        try (CorpusWriter out = new CorpusWriter(corpusFile, 64, false)) {
+          assertEquals(3, SentenceIndex.export(reader, SentenceIndex.parse("understanding", false,
+              SentenceIndex.analyzer()), out));
+        }
+      }
+    }
+    String nl = System.lineSeparator();
+    assertEquals("Understanding a0." + nl + "Understanding b0." + nl + "More understanding b2." + nl,
+        Files.readString(corpusFile));
+    assertEquals("0\t1\ta.xml" + nl + "1\t2\tb.xml" + nl, Files.readString(CorpusWriter.indexFile(corpusFile)));
+  }
+
+  @Test
+  void testBuildIndexesEverySentenceOnceWithOffsetsAndExportsAQuery() throws Exception {
+    Path xmlDir = dir.resolve("elife");
+    Files.createDirectories(xmlDir.resolve("2013"));
+    String article = "<article><p>We lack understanding of this. Nothing else is here.</p></article>";
+    String review = "<review><p>The authors show no understanding. The mind is a span away from understanding.</p></review>";
+    Files.writeString(xmlDir.resolve("2013/eLife.00003.xml"), article);
+    Files.writeString(xmlDir.resolve("2013/eLife.00003.r001.xml"), review);
+
+    Path indexDir = dir.resolve("sentences");
+    TextCorpusMaker.buildSentenceIndex(xmlDir, indexDir, new Metrics());
+    // Rebuilding replaces the sentences of the files instead of adding them again
+    TextCorpusMaker.buildSentenceIndex(xmlDir, indexDir, new Metrics());
+
+    String reviewText = TextCorpusMaker.getCleanText(review);
+    List<String> reviewSentences = TextCorpusMaker.sentenceTokenize(reviewText);
+    int expected = TextCorpusMaker.sentenceTokenize(TextCorpusMaker.getCleanText(article)).size()
+        + reviewSentences.size();
+    try (Directory index = FSDirectory.open(indexDir); IndexReader reader = DirectoryReader.open(index)) {
+      assertEquals(expected, reader.numDocs());
+      IndexSearcher searcher = new IndexSearcher(reader);
+      ScoreDoc[] hits = searcher.search(SentenceIndex.parse("review_type:r", false, SentenceIndex.analyzer()),
+          100).scoreDocs;
+      assertEquals(reviewSentences.size(), hits.length);
+      for (ScoreDoc hit : hits) {
+        Document doc = searcher.storedFields().document(hit.doc);
+        assertEquals("2013", doc.get(SentenceIndex.CORPUS_FIELD));
+        int ordinal = doc.getField(SentenceIndex.ORDINAL_FIELD).numericValue().intValue();
+        int start = doc.getField(SentenceIndex.START_FIELD).numericValue().intValue();
+        int end = doc.getField(SentenceIndex.END_FIELD).numericValue().intValue();
+        assertEquals(reviewSentences.get(ordinal), doc.get(SentenceIndex.TEXT_FIELD));
+        assertEquals(reviewSentences.get(ordinal), reviewText.substring(start, end));
+      }
+    }
+
+    Path corpusFile = dir.resolve("corpus.txt");
+    assertEquals(2, TextCorpusMaker.exportSentences(indexDir, corpusFile, "/understandings?/ AND review_type:r",
+        false, new Metrics()));
+    List<String> expectedLines = new ArrayList<>();
+    for (String sentence : reviewSentences) {
+      if (sentence.contains("understanding")) {
+        expectedLines.add(SegmentationEngine.toLine(sentence));
+      }
+    }
+    assertEquals(expectedLines, Files.readAllLines(corpusFile));
+
+    assertEquals(1, TextCorpusMaker.exportSentences(indexDir, corpusFile, "8w(mind, understanding)",
+        true, new Metrics()));
+    assertEquals(List.of(SegmentationEngine.toLine(reviewSentences.get(1))), Files.readAllLines(corpusFile));
+  }
+}
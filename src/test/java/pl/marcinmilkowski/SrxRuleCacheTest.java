@@ -0,0 +1,51 @@
+package pl.marcinmilkowski;
+
+import net.loomchild.segment.srx.SrxDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SrxRuleCacheTest {
+
+  @TempDir
+  Path cacheDir;
+
+  @Test
+  void testCachedRulesSegmentLikeTheParsedRules() throws IOException {
+    String text = "Dr. Smith wrote e.g. this sentence. And this one!\nA new line starts here. Fig. 2 shows it.";
+    SrxRuleCache cache = new SrxRuleCache(cacheDir);
+
+    SrxDocument parsed = cache.load("/segment.srx", "EN_one");
+    try (Stream<Path> files = Files.list(cacheDir)) {
+      assertEquals(1, files.count());
+    }
+    SrxDocument cached = cache.load("/segment.srx", "EN_one");
+    assertNotSame(parsed, cached);
+    assertEquals(parsed.getLanguageRuleList("EN_one").size(), cached.getLanguageRuleList("EN_one").size());
+    assertEquals(SegmentationEngine.tokenize(text, parsed, "EN_one"), SegmentationEngine.tokenize(text, cached, "EN_one"));
+  }
+
+  @Test
+  void testSelectedRulesSegmentLikeTheFullDocument() throws IOException {
+    String text = "Dr. Smith wrote e.g. this sentence. And this one!\nA new line starts here. Fig. 2 shows it.";
+    byte[] srx;
+    try (var in = SrxRuleCacheTest.class.getResourceAsStream("/segment.srx")) {
+      srx = in.readAllBytes();
+    }
+    SrxDocument full = SrxRuleCache.parse(srx);
+    SrxDocument selected = SrxRuleCache.select(full, "EN_one");
+    assertTrue(selected.getLanguageMapList().size() < full.getLanguageMapList().size());
+    assertEquals(SegmentationEngine.tokenize(text, full, "EN_one"), SegmentationEngine.tokenize(text, selected, "EN_one"));
+  }
+
+  @Test
+  void testMissingResource() {
+    assertThrows(IOException.class, () -> new SrxRuleCache(cacheDir).load("/missing.srx", "EN_one"));
+  }
+}
@@ -2,6 +2,9 @@ package pl.marcinmilkowski;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
@@ -19,6 +22,27 @@ class TextCorpusMakerTest {
     assertEquals(3, TextCorpusMaker.getWordCount("<H1>This <b>is</b> it</H1>"));
     assertEquals(3, TextCorpusMaker.getWordCount("<H1>This <b>is</b> <!-- really!!!--> it</H1>"));
     assertNotEquals(3, TextCorpusMaker.getWordCount("<H1>This is <strong>not</strong> it.</H1>"));
+    assertEquals(3, TextCorpusMaker.getWordCount("<H1>\n  This is it\n</H1>"));
+    assertEquals(0, TextCorpusMaker.getWordCount("<H1> </H1>"));
+  }
+
+  @Test
+  void testGetReviewType() {
+    assertEquals(CorpusStatistics.ARTICLE, TextCorpusMaker.getReviewType(Paths.get("eLife.00003.xml")));
+    assertEquals("a", TextCorpusMaker.getReviewType(Paths.get("eLife.00003.a013.xml")));
+    assertEquals("rsa", TextCorpusMaker.getReviewType(Paths.get("eLife.00003.rsa1.xml")));
+    assertEquals("elife", TextCorpusMaker.getCorpusName(Paths.get("data/elife"), Paths.get("data/elife/eLife.00003.xml")));
+    assertEquals("2013", TextCorpusMaker.getCorpusName(Paths.get("data/elife"), Paths.get("data/elife/2013/eLife.00003.xml")));
+  }
+
+  @Test
+  void testKeywordCorpusFilesHaveSafeNames() {
+    Path corpusFile = Paths.get("out", "elife-understanding.txt");
+    assertEquals(Arrays.asList(Paths.get("out", "elife-understanding.txt"), Paths.get("out", "elife-a_b_c_.txt")),
+        List.copyOf(TextCorpusMaker.keywordCorpusFiles(corpusFile, Arrays.asList("understanding", "a/b:c*"))
+            .values()));
+    assertThrows(IllegalArgumentException.class,
+        () -> TextCorpusMaker.keywordCorpusFiles(corpusFile, Arrays.asList("a/b", "a:b")));
   }
 
   @Test
@@ -131,8 +155,30 @@ class TextCorpusMakerTest {
        result = TextCorpusMaker.convertXmlEntityToUtf8(input);
 
       assertEquals(expected, result);
+    // Hexadecimal and supplementary code points
+      assertEquals("A\u00e9 \uD83D\uDE00", TextCorpusMaker.convertXmlEntityToUtf8("&#65;&#xe9; &#128512;"));
     }
 
-  
+  @Test
+  public void testGetCleanTextEntities() {
+    assertEquals("caf\u00e9 &#128512;", TextCorpusMaker.getCleanText("<p>caf&#xE9; <![CDATA[&#128512;]]></p>"));
+    assertEquals("\uD83D\uDE00", TextCorpusMaker.getCleanText("&#x1F600;"));
+  }
+
+  @Test
+  public void testXmlTextReader() throws IOException {
+    String xml = "<H1>This <b>is</b> <!-- really!!!--> it &amp; &#65;&lt;b&gt; &unknown; &</H1>";
+    assertEquals("This is  it & A<b> &unknown; &", readAll(new XmlTextReader(new StringReader(xml)), 1));
+    assertEquals("This is  it & A<b> &unknown; &", readAll(new XmlTextReader(new StringReader(xml)), 4096));
+  }
+
+  private static String readAll(Reader reader, int chunk) throws IOException {
+    StringBuilder text = new StringBuilder();
+    char[] buffer = new char[chunk];
+    for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+      text.append(buffer, 0, n);
+    }
+    return text.toString();
+  }
 
-}
\ No newline at end of file
+}
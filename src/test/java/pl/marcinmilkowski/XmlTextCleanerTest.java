@@ -0,0 +1,65 @@
+package pl.marcinmilkowski;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XmlTextCleanerTest {
+
+  @Test
+  void testCommentsTagsAndCdata() {
+    XmlTextCleaner cleaner = new XmlTextCleaner();
+    assertEquals("This is  it", cleaner.clean("<?xml version=\"1.0\"?><H1>This <b>is</b> <!-- <b>really</b> --> it</H1>"));
+    assertEquals("a < b && <c>", cleaner.clean("<p><![CDATA[a < b && <c>]]></p>"));
+    assertEquals("", cleaner.clean(""));
+  }
+
+  @Test
+  void testEntities() {
+    XmlTextCleaner cleaner = new XmlTextCleaner();
+    assertEquals("<>&\"'", cleaner.clean("&lt;&gt;&amp;&quot;&apos;"));
+    assertEquals("A\u00e9\u00e9", cleaner.clean("&#65;&#233;&#xE9;"));
+    // Supplementary code points are not truncated
+    assertEquals("\uD83D\uDE00\uD83D\uDE00", cleaner.clean("&#128512;&#x1F600;"));
+    // Entities are decoded only once
+    assertEquals("&lt;", cleaner.clean("&amp;lt;"));
+    // Unknown, malformed or out-of-range entities are kept
+    assertEquals("&nbsp; &#xZZ; &#1114112; & x", cleaner.clean("&nbsp; &#xZZ; &#1114112; & x"));
+  }
+
+  @Test
+  void testStreamingAcrossSmallReads() throws IOException {
+    StringBuilder xml = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      xml.append("<p id=\"").append(i).append("\">x&#x1F600;<!-- c -->y&amp;</p>");
+      expected.append("x\uD83D\uDE00y&");
+    }
+    XmlTextCleaner cleaner = new XmlTextCleaner().reset(new StringReader(xml.toString()));
+    StringBuilder text = new StringBuilder();
+    char[] one = new char[1];
+    for (int n = cleaner.read(one, 0, 1); n >= 0; n = cleaner.read(one, 0, 1)) {
+      text.append(one, 0, n);
+    }
+    assertEquals(expected.toString(), text.toString());
+
+    StringWriter writer = new StringWriter();
+    new XmlTextCleaner().reset(new StringReader(xml.toString())).cleanTo(writer);
+    assertEquals(expected.toString(), writer.toString());
+  }
+
+  @Test
+  void testBufferIsReused() throws IOException {
+    XmlTextCleaner cleaner = new XmlTextCleaner();
+    cleaner.reset("<a>first document</a>").cleanToBuffer();
+    char[] buffer = cleaner.getBuffer();
+    assertEquals("first document", new String(buffer, 0, cleaner.getLength()));
+    cleaner.reset(new StringReader("<a>second</a>")).cleanToBuffer();
+    assertSame(buffer, cleaner.getBuffer());
+    assertEquals("second", new String(cleaner.getBuffer(), 0, cleaner.getLength()));
+  }
+}